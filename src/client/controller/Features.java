@@ -1,7 +1,9 @@
 package client.controller;
 
+import client.model.ServerMessage;
+
 import java.io.File;
-import java.io.IOException;
+import java.util.function.Consumer;
 
 /**
  * An interface representing higher level functions for view implementations instances to use (access specific
@@ -16,6 +18,15 @@ public interface Features {
      */
     void sendTextOut(String out);
 
+    /**
+     * Subscribes the given handler to the messages of the given type received from the connected server, which are
+     * handed to it on the thread reading from the server.
+     *
+     * @param type    the type of the messages to be handled
+     * @param handler the handler of the messages
+     */
+    void subscribe(ServerMessage.Type type, Consumer<ServerMessage> handler);
+
     /**
      * Returns the username of this client.
      *
@@ -24,7 +35,8 @@ public interface Features {
     String getClientUsername();
 
     /**
-     * Requests the model to send a file to the connected server.
+     * Requests the model to send a file to the connected server. The file is sent in the background, after the files
+     * requested before it, and the view is told to display an error when it cannot be sent.
      *
      * @param fileName  the name of the file being sent
      * @param filesize  the size of the file being sent
@@ -32,8 +44,16 @@ public interface Features {
      * @param isPrivate whether the file being sent was in a private message
      * @param receiver  the receiver of the file if in a private message (null if it wasn't privately messaged)
      * @param sender    the sender of the file if in a private message (null if it wasn't privately messaged)
-     * @throws IOException when there is an error reading the desired file
      */
-    void sendFile(String fileName, long filesize, File file, boolean isPrivate, String receiver, String sender)
-            throws IOException;
+    void sendFile(String fileName, long filesize, File file, boolean isPrivate, String receiver, String sender);
+
+    /**
+     * Requests a file from the connected server, asking the view where to save it. When the server can send ranges of
+     * files, the file is downloaded in the background in several ranges at once, after the files requested before
+     * it, and the view is told to display an error when it cannot be saved.
+     *
+     * @param fileOwner the user who uploaded the file
+     * @param fileName  the name the file was uploaded under
+     */
+    void requestFile(String fileOwner, String fileName);
 }
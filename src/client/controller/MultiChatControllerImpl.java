@@ -1,11 +1,17 @@
 package client.controller;
 
+import client.model.MessageDispatcher;
 import client.model.MultiChatModel;
+import client.model.ServerMessage;
 import client.view.MultiChatView;
 
 import java.io.*;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * An implementation of the client's controller object, possessing both model and view objects of the client, delegating
@@ -14,6 +20,22 @@ import java.util.List;
 public class MultiChatControllerImpl implements MultiChatController, Features {
     private MultiChatModel model;
     private final MultiChatView view;
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private String username = "";
+    private boolean clientClosed = false;
+    private long presenceSequence = -1; //the sequence number of the last change of the users, -1 awaiting a list
+    private String presenceRoom; //the room of the displayed users, null for the room joined
+    //the rooms subscribed to with /subscribe, and the one the user's messages are sent to, null for the room joined
+    private final Set<String> subscribedRooms = ConcurrentHashMap.newKeySet();
+    private volatile String currentRoom;
+    //the most connections a file is downloaded over at once
+    private static final int DOWNLOAD_RANGES = 4;
+    //sends and saves the user's files one after another, so neither the view nor the server's messages wait for them
+    private final ExecutorService transfers = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MultiChat-transfers");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Constructs an instance of a MultiChatControllerImpl, providing this object with instances of a MultiChatView and
@@ -25,88 +47,204 @@ public class MultiChatControllerImpl implements MultiChatController, Features {
     public MultiChatControllerImpl(MultiChatModel model, MultiChatView view) {
         this.model = model;
         this.view = view;
+        subscribeHandlers();
         view.giveFeatures(this); //give itself to the view as a Features object, allowing limited and specific method access
     }
 
+    //subscribes the handling of what the server communicates based on the pre-determined protocols (ie. SUBMITNAME)
+    private void subscribeHandlers() {
+        dispatcher.subscribe(ServerMessage.Type.SUBMITNAME, message -> submitName("Choose a screen name:"));
+        dispatcher.subscribe(ServerMessage.Type.SUBMITANOTHERNAME,
+                message -> submitName("Please select a different screen name:"));
+        dispatcher.subscribe(ServerMessage.Type.NAMEACCEPTED, message -> {
+            model.setUsername(username);
+            view.display();
+            view.setTextFieldEditable(true);
+        });
+        subscribeChatLog(ServerMessage.Type.MESSAGE, "black", true);
+        subscribeChatLog(ServerMessage.Type.MESSAGEUSERJOINED, "green", true);
+        subscribeChatLog(ServerMessage.Type.MESSAGEUSERLEFT, "red", true);
+        subscribeChatLog(ServerMessage.Type.MESSAGEWELCOME, "blue", false);
+        dispatcher.subscribe(ServerMessage.Type.ACTIVEUSERLIST, message -> {
+            if (Objects.equals(message.getRoom(), currentRoom)) {
+                view.setActiveUsers(message.getList());
+            }
+        });
+        dispatcher.subscribe(ServerMessage.Type.USERLIST, this::setActiveUsers);
+        dispatcher.subscribe(ServerMessage.Type.USERJOINED, this::changeActiveUsers);
+        dispatcher.subscribe(ServerMessage.Type.USERLEFT, this::changeActiveUsers);
+        subscribeChatLog(ServerMessage.Type.MESSAGEHELP, "orange", false);
+        subscribeChatLog(ServerMessage.Type.VOTEKICK, "orange", false);
+        subscribeChatLog(ServerMessage.Type.FAILEDVOTEKICK, "red", false);
+        subscribeChatLog(ServerMessage.Type.SUCCESSFULVOTEKICK, "red", false);
+        dispatcher.subscribe(ServerMessage.Type.ACTIVESERVERLIST,
+                message -> view.setActiveServers(message.getList()));
+        subscribeChatLog(ServerMessage.Type.WHISPER, "white", true);
+        subscribeChatLog(ServerMessage.Type.PRIVATEMESSAGE, "black", true);
+        subscribeChatLog(ServerMessage.Type.FILE, "black", true);
+        subscribeChatLog(ServerMessage.Type.FAILEDFILETRANSFER, "red", false);
+        dispatcher.subscribe(ServerMessage.Type.FILEDATA, this::saveFile);
+        subscribeChatLog(ServerMessage.Type.PRIVATEFILE, "black", true);
+        dispatcher.subscribe(ServerMessage.Type.SERVERCLOSE, message -> {
+            view.displayError(false, "Server has closed.");
+            clientClosed = true;
+        });
+        dispatcher.subscribe(ServerMessage.Type.DISCONNECTED, message -> {
+            view.displayError(false, message.getArgument());
+            clientClosed = true;
+        });
+        dispatcher.subscribe(ServerMessage.Type.REQUESTEDNEWROOM, this::switchRooms);
+        dispatcher.subscribe(ServerMessage.Type.SUBSCRIBED, message -> {
+            subscribedRooms.add(message.getArgument());
+            view.appendChatLog("Subscribed to room " + message.getArgument() + ". Type /switch "
+                    + message.getArgument() + " to chat in it and /switch to return.", "orange", false, "SUBSCRIBED");
+        });
+        dispatcher.subscribe(ServerMessage.Type.UNSUBSCRIBED, this::unsubscribed);
+    }
+
+    //subscribes appending the messages of the given type to the chat log in the given color
+    private void subscribeChatLog(ServerMessage.Type type, String color, boolean hasDate) {
+        dispatcher.subscribe(type,
+                message -> view.appendChatLog(inRoom(message, hasDate), color, hasDate, type.name()));
+    }
+
+    /*
+    Returns the text of a message marked with the number of the subscribed room it was sent in, if any. The mark goes
+    after the date and sender of the message, so the view still finds them where it expects them.
+     */
+    private static String inRoom(ServerMessage message, boolean hasDate) {
+        String text = message.getArgument();
+        String room = message.getRoom();
+        if (room == null) {
+            return text;
+        }
+        int mark = 0;
+        if (hasDate) {
+            mark = text.indexOf("] ") + 2;
+            int sender = text.indexOf(": ", mark);
+            mark = sender < 0 ? mark : sender + 2;
+        }
+        return text.substring(0, mark) + "[room " + room + "] " + text.substring(mark);
+    }
+
+    /*
+    Displays a snapshot of the current room's users, unless it is older than the changes already displayed. The first
+    snapshot of a room switched to replaces the users of the room displayed before.
+     */
+    private void setActiveUsers(ServerMessage message) {
+        String room = message.getRoom();
+        if (!Objects.equals(room, currentRoom)) {
+            return;
+        }
+        long sequence = message.getSequence();
+        if (sequence >= presenceSequence || !Objects.equals(room, presenceRoom)) {
+            presenceRoom = room;
+            presenceSequence = sequence;
+            view.setActiveUsers(message.getList());
+        }
+    }
+
+    /*
+    Applies a change of the room's users to the displayed users if it follows the last change applied. A missed change
+    (such as one dropped while this client fell behind) is noticed by the gap in the sequence numbers, after which the
+    changes are ignored until a snapshot of the users requested from the server has been received.
+     */
+    private void changeActiveUsers(ServerMessage message) {
+        if (!Objects.equals(message.getRoom(), presenceRoom) || !Objects.equals(presenceRoom, currentRoom)) {
+            return;
+        }
+        long sequence = message.getSequence();
+        if (presenceSequence < 0 || sequence <= presenceSequence) {
+            return;
+        }
+        if (sequence != presenceSequence + 1) {
+            presenceSequence = -1;
+            model.sendText("/users", presenceRoom);
+            return;
+        }
+        presenceSequence = sequence;
+        if (message.getType() == ServerMessage.Type.USERJOINED) {
+            view.addActiveUsers(message.getList());
+        } else {
+            view.removeActiveUsers(message.getList());
+        }
+    }
+
+    //asks the user for a screen name and submits it to the server
+    private void submitName(String prompt) {
+        username = view.getName(prompt);
+        model.sendText(username);
+    }
+
+    //asks the user where to save the file announced by a FILEDATA [filesize]:[filename] message and saves it
+    private void saveFile(ServerMessage message) {
+        String argument = message.getArgument();
+        File file = view.showSaveDialog(argument.substring(argument.indexOf(":") + 1));
+        long fileSize = Long.parseLong(argument.substring(0, argument.indexOf(":")));
+        try {
+            model.saveFile(file, fileSize);
+        } catch (IOException ioe) {
+            view.displayError(true, "Error saving file.");
+        }
+    }
+
+    //connects to the room requested by the user, leaving the current room once connected
+    private void switchRooms(ServerMessage message) {
+        try {
+            MultiChatModel newModel = model.switchPorts(message.getArgument());
+            model.sendText("/quit");
+            view.appendChatLog("Successfully left.", "red", false, "REQUESTEDNEWROOM");
+            model = newModel;
+            presenceSequence = -1; //the new room numbers the changes of its users on its own
+            presenceRoom = null;
+            subscribedRooms.clear(); //subscriptions end with the connection they were made on
+            currentRoom = null;
+        } catch (IOException e) {
+            model.sendText("UNSUCCESSFULROOMCHANGE Cannot connect to new chat room.");
+        } catch (NumberFormatException nfe) {
+            model.sendText("UNSUCCESSFULROOMCHANGE Cannot find specified room number.");
+        }
+    }
+
+    //forgets a subscription the server ended, returning to the room joined if it was the current room
+    private void unsubscribed(ServerMessage message) {
+        String argument = message.getArgument();
+        int space = argument.indexOf(' ');
+        String room = space < 0 ? argument : argument.substring(0, space);
+        subscribedRooms.remove(room);
+        view.appendChatLog(space < 0 ? "Unsubscribed from room " + room + "." : argument.substring(space + 1),
+                "orange", false, "UNSUBSCRIBED");
+        if (room.equals(currentRoom)) {
+            currentRoom = null;
+            model.sendText("/users");
+        }
+    }
+
+    /*
+    Makes the given subscribed room the one the user's messages are sent to and whose users are displayed, or the
+    room joined for an empty room, and asks for its users. The users of the room displayed before stay until the
+    new room's users arrive.
+     */
+    private void switchChannel(String room) {
+        if (room.isEmpty()) {
+            currentRoom = null;
+            view.appendChatLog("Chatting in the room joined.", "orange", false, "SWITCH");
+        } else if (subscribedRooms.contains(room)) {
+            currentRoom = room;
+            view.appendChatLog("Chatting in room " + room + ".", "orange", false, "SWITCH");
+        } else {
+            view.appendChatLog("Type /subscribe " + room + " before switching to room " + room + ".", "orange",
+                    false, "SWITCH");
+            return;
+        }
+        model.sendText("/users", currentRoom);
+    }
+
     @Override
     public void run() {
-        String username = "";
-        boolean clientClosed = false;
-
         while (model.isConnectionRunning()) { //while the server and this client is still connected
-
-            String line = model.getSocketInput(); //listen and capture what the server just communicated
-
-            //handle what the server communicated based on the pre-determined protocols (ie. SUBMITNAME & NAMEACCEPTED)
-            if (line.startsWith("SUBMITNAME")) {
-                String name = view.getName("Choose a screen name:");
-                username = name;
-                model.sendText(username);
-            } else if (line.startsWith("SUBMITANOTHERNAME")) {
-                String name = view.getName("Please select a different screen name:");
-                username = name;
-                model.sendText(username);
-            } else if (line.startsWith("NAMEACCEPTED")) {
-                model.setUsername(username);
-                view.display();
-                view.setTextFieldEditable(true);
-            } else if (line.startsWith("MESSAGE ")) {
-                view.appendChatLog(line.substring(8), "black", true, "MESSAGE");
-            } else if (line.startsWith("MESSAGEUSERJOINED ")) {
-                view.appendChatLog(line.substring(18), "green", true, "MESSAGEUSERJOINED");
-            } else if (line.startsWith("MESSAGEUSERLEFT ")) {
-                view.appendChatLog(line.substring(16), "red", true, "MESSAGEUSERLEFT");
-            } else if (line.startsWith("MESSAGEWELCOME ")) {
-                view.appendChatLog(line.substring(15), "blue", false, "MESSAGEWELCOME");
-            } else if (line.startsWith("ACTIVEUSERLIST ")) {
-                String[] arr = line.substring(15).split(",");
-                List<String> names = Arrays.asList(arr);
-                view.setActiveUsers(names);
-            } else if (line.startsWith("MESSAGEHELP ")) {
-                view.appendChatLog(line.substring(12), "orange", false, "MESSAGEHELP");
-            } else if (line.startsWith("VOTEKICK ")) {
-                view.appendChatLog(line.substring(9), "orange", false, "VOTEKICK");
-            } else if (line.startsWith("FAILEDVOTEKICK ")) {
-                view.appendChatLog(line.substring(15), "red", false, "FAILEDVOTEKICK");
-            } else if (line.startsWith("SUCCESSFULVOTEKICK ")) {
-                view.appendChatLog(line.substring(19), "red", false, "SUCCESSFULVOTEKICK");
-            } else if (line.startsWith("ACTIVESERVERLIST ")) {
-                String[] arr = line.substring(17).split(",");
-                List<String> servers = Arrays.asList(arr);
-                view.setActiveServers(servers);
-            } else if (line.startsWith("WHISPER ")) {
-                view.appendChatLog(line.substring(8), "white", true, "WHISPER");
-            } else if (line.startsWith("PRIVATEMESSAGE ")) {
-                view.appendChatLog(line.substring(15), "black", true, "PRIVATEMESSAGE");
-            } else if (line.startsWith("FILE ")) {
-                view.appendChatLog(line.substring(5), "black", true, "FILE");
-            } else if (line.startsWith("FAILEDFILETRANSFER ")) {
-                view.appendChatLog(line.substring(19), "red", false, "FAILEDFILETRANSFER");
-            } else if (line.startsWith("FILEDATA ")) {
-                File file = view.showSaveDialog(line.substring(line.indexOf(":") + 1));
-                long fileSize = Long.parseLong(line.substring(9, line.indexOf(":")));
-                try {
-                    model.saveFile(file, fileSize);
-                } catch (IOException ioe) {
-                    view.displayError(true, "Error saving file.");
-                }
-            } else if (line.startsWith("PRIVATEFILE ")) {
-                view.appendChatLog(line.substring(12), "black", true, "PRIVATEFILE");
-            } else if (line.startsWith("SERVERCLOSE")) {
-                view.displayError(false, "Server has closed.");
-                clientClosed = true;
-            } else if (line.startsWith("REQUESTEDNEWROOM ")) {
-                try {
-                    MultiChatModel newModel = model.switchPorts(line.substring(17));
-                    model.sendText("/quit");
-                    view.appendChatLog("Successfully left.", "red", false, "REQUESTEDNEWROOM");
-                    model = newModel;
-                } catch (IOException e) {
-                    model.sendText("UNSUCCESSFULROOMCHANGE Cannot connect to new chat room.");
-                } catch (NumberFormatException nfe) {
-                    model.sendText("UNSUCCESSFULROOMCHANGE Cannot find specified room number.");
-                }
-            }
+            //listen and hand what the server just communicated to its handlers, messages of unknown types are ignored
+            dispatcher.dispatch(model.getServerMessage());
         }
         if (!clientClosed) {
             view.displayError(false, "Connection to server unexpectedly failed.");
@@ -115,7 +253,16 @@ public class MultiChatControllerImpl implements MultiChatController, Features {
 
     @Override
     public void sendTextOut(String out) {
-        model.sendText(out);
+        if (out.regionMatches(true, 0, "/switch", 0, 7) && (out.length() == 7 || out.charAt(7) == ' ')) {
+            switchChannel(out.substring(7).trim());
+        } else {
+            model.sendText(out, currentRoom);
+        }
+    }
+
+    @Override
+    public void subscribe(ServerMessage.Type type, Consumer<ServerMessage> handler) {
+        dispatcher.subscribe(type, handler);
     }
 
     @Override
@@ -124,12 +271,39 @@ public class MultiChatControllerImpl implements MultiChatController, Features {
     }
 
     @Override
-    public void sendFile(String fileName, long fileSize, File file, boolean isPrivate, String receiver, String sender)
-            throws IOException {
-        if (isPrivate) {
-            model.sendPrivateFile(fileName, fileSize, file, receiver, sender);
-        } else {
-            model.sendFile(fileName, fileSize, file);
+    public void sendFile(String fileName, long fileSize, File file, boolean isPrivate, String receiver, String sender) {
+        MultiChatModel room = model;
+        transfers.execute(() -> {
+            try {
+                if (isPrivate) {
+                    room.sendPrivateFile(fileName, fileSize, file, receiver, sender);
+                } else {
+                    room.sendFile(fileName, fileSize, file);
+                }
+            } catch (IOException ioe) {
+                view.displayError(true, "Something went wrong with sending the file!");
+            }
+        });
+    }
+
+    @Override
+    public void requestFile(String fileOwner, String fileName) {
+        MultiChatModel room = model;
+        if (!room.canSaveInRanges()) {
+            //the file is announced by a FILEDATA message and saved with the other messages
+            room.sendText("/requestfile " + fileOwner + ":" + fileName);
+            return;
         }
+        transfers.execute(() -> {
+            File file = view.showSaveDialog(fileName);
+            if (file == null) {
+                return;
+            }
+            try {
+                room.saveFileInRanges(file, fileOwner, fileName, DOWNLOAD_RANGES);
+            } catch (IOException ioe) {
+                view.displayError(true, "Error saving file.");
+            }
+        });
     }
 }
@@ -0,0 +1,159 @@
+package client.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The frames of version 2 of the wire format read from a server, with the DEFLATED frames a server sends once asked
+ * for compression replaced by the frames they hold. The DEFLATED frames of a connection carry a single DEFLATE
+ * stream primed with the same dictionary as the server's, each holding one frame without the four bytes its flush
+ * ended with. Every other frame is passed through as it is, so the raw bytes of files are never copied an extra time.
+ */
+final class DeflatedFrameInputStream extends InputStream {
+
+    //the bytes that end every flushed frame, which the server leaves out
+    private static final byte[] FLUSH_TRAILER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    private final InputStream in;
+    private final byte[] header = new byte[WireFormat.HEADER_LENGTH];
+    private final byte[] payload = new byte[WireFormat.MAX_DEFLATED_PAYLOAD + FLUSH_TRAILER.length];
+    //the bytes to be read before the rest of the current frame, a header or a decompressed frame
+    private final byte[] pending = new byte[WireFormat.HEADER_LENGTH + WireFormat.MAX_PAYLOAD];
+    private int pendingPosition = 0;
+    private int pendingLimit = 0;
+    private long frameRemaining = 0; //the bytes of the current frame still to be passed through from the input
+    private Inflater inflater; //created once the first DEFLATED frame arrives
+
+    /**
+     * Reads the frames from the given input, which must be at the start of a frame.
+     *
+     * @param in the input of the connection to the server
+     */
+    DeflatedFrameInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBytes()) {
+            return -1;
+        }
+        if (pendingPosition < pendingLimit) {
+            return pending[pendingPosition++] & 0xFF;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        frameRemaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextBytes()) {
+            return -1;
+        }
+        if (pendingPosition < pendingLimit) {
+            int amount = Math.min(length, pendingLimit - pendingPosition);
+            System.arraycopy(pending, pendingPosition, bytes, offset, amount);
+            pendingPosition += amount;
+            return amount;
+        }
+        int amountRead = in.read(bytes, offset, (int) Math.min(length, frameRemaining));
+        if (amountRead < 0) {
+            throw new EOFException();
+        }
+        frameRemaining -= amountRead;
+        return amountRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return pendingLimit - pendingPosition + (int) Math.min(frameRemaining, in.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        in.close();
+    }
+
+    /*
+    Makes sure there are bytes of a frame to be read, reading the header of the next frame once the last one has been
+    read and decompressing it when it is a DEFLATED frame. Returns false when the input ends between frames.
+     */
+    private boolean nextBytes() throws IOException {
+        while (pendingPosition == pendingLimit && frameRemaining == 0) {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            header[0] = (byte) b;
+            readFully(header, 1, header.length - 1);
+            int length = ((header[5] & 0xFF) << 24) | ((header[6] & 0xFF) << 16) | ((header[7] & 0xFF) << 8)
+                    | (header[8] & 0xFF);
+            if (header[0] == WireFormat.DEFLATED) {
+                if (length < 0 || length > WireFormat.MAX_DEFLATED_PAYLOAD) {
+                    throw new IOException("The server sent a compressed frame of " + length + " bytes.");
+                }
+                readFully(payload, 0, length);
+                inflate(length);
+            } else {
+                //the reader of the frames checks the length of the frame once it reads the header
+                System.arraycopy(header, 0, pending, 0, header.length);
+                pendingPosition = 0;
+                pendingLimit = header.length;
+                frameRemaining = length < 0 ? 0 : length;
+            }
+        }
+        return true;
+    }
+
+    //decompresses the frame held by the given bytes of a DEFLATED frame's payload into the pending bytes
+    private void inflate(int length) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(WireFormat.DICTIONARY);
+        }
+        System.arraycopy(FLUSH_TRAILER, 0, payload, length, FLUSH_TRAILER.length);
+        inflater.setInput(payload, 0, length + FLUSH_TRAILER.length);
+        int inflated = 0;
+        try {
+            while (inflater.getRemaining() > 0 && inflated < pending.length) {
+                int amount = inflater.inflate(pending, inflated, pending.length - inflated);
+                if (amount == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+                    break;
+                }
+                inflated += amount;
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("The server sent a malformed compressed frame.", dfe);
+        }
+        if (inflater.getRemaining() > 0) {
+            throw new IOException("The server sent a compressed frame larger than a frame.");
+        }
+        pendingPosition = 0;
+        pendingLimit = inflated;
+    }
+
+    //reads exactly the given amount of bytes into the array
+    private void readFully(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int amountRead = in.read(bytes, offset, length);
+            if (amountRead < 0) {
+                throw new EOFException();
+            }
+            offset += amountRead;
+            length -= amountRead;
+        }
+    }
+}
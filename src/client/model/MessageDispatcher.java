@@ -0,0 +1,63 @@
+package client.model;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Hands every message received from a MultiChat server to the handlers subscribed to its type. The controller, the
+ * view or any headless consumer of the client subscribe to just the types they handle, and a message is delivered by
+ * a single lookup of its type instead of being compared against every type in turn.
+ *
+ * <p>Handlers may be subscribed from any thread, messages are dispatched on the thread reading from the server.
+ */
+public class MessageDispatcher {
+
+    private final Map<ServerMessage.Type, List<Consumer<ServerMessage>>> handlers =
+            new EnumMap<>(ServerMessage.Type.class);
+
+    /**
+     * Creates a dispatcher without any handlers.
+     */
+    public MessageDispatcher() {
+        for (ServerMessage.Type type : ServerMessage.Type.values()) {
+            handlers.put(type, new CopyOnWriteArrayList<>());
+        }
+    }
+
+    /**
+     * Subscribes the given handler to the messages of the given type, after the handlers already subscribed to it.
+     *
+     * @param type    the type of the messages to be handled
+     * @param handler the handler of the messages
+     */
+    public void subscribe(ServerMessage.Type type, Consumer<ServerMessage> handler) {
+        handlers.get(type).add(handler);
+    }
+
+    /**
+     * Unsubscribes the given handler from the messages of the given type.
+     *
+     * @param type    the type of the messages that were handled
+     * @param handler the handler to be unsubscribed
+     */
+    public void unsubscribe(ServerMessage.Type type, Consumer<ServerMessage> handler) {
+        handlers.get(type).remove(handler);
+    }
+
+    /**
+     * Hands the given message to every handler subscribed to its type, in the order they were subscribed.
+     *
+     * @param message the message received from the server
+     * @return whether any handler was subscribed to the message's type
+     */
+    public boolean dispatch(ServerMessage message) {
+        List<Consumer<ServerMessage>> subscribed = handlers.get(message.getType());
+        for (Consumer<ServerMessage> handler : subscribed) {
+            handler.accept(message);
+        }
+        return !subscribed.isEmpty();
+    }
+}
@@ -1,19 +1,41 @@
 package client.model;
 
-import java.io.PrintWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.BufferedInputStream;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -22,16 +44,51 @@ import javax.net.ssl.TrustManagerFactory;
 
 /**
  * Represents a standard model implementation of the MultiChatClient, handling the internal processes of the client.
- * Stores the IP address to the desired server, the SSLSocket to the server, a Scanner and PrintWriter object wrapped
- * around the SSL (Secure Socket Layer) Socket, and the username of the client.
+ * Stores the IP address to the desired server, the SSLSocket to the server, the buffered streams wrapped around the
+ * SSL (Secure Socket Layer) Socket, and the username of the client. Speaks version 2 of the wire format when the server
+ * offers it and the newline-delimited text protocol otherwise. In version 2 the files being downloaded are saved from
+ * their streams as their DATA frames arrive between the other messages, so the chat goes on during a download.
+ * Transfers cut off by a dropped connection can be continued where they stopped over a new connection: an upload of
+ * the same file only sends what the server is missing, and a partly saved download asks for the rest of the file.
+ * A large file can also be downloaded in byte ranges over several connections of its own at once, each written to
+ * its place in the file, which is faster over links with a high round trip time. Once version 2 is accepted the
+ * client asks the server to compress what it sends, and the compressed frames are decompressed as they are read.
+ * The keystores are loaded once for every connection the client opens, and a new connection to a server connected
+ * to before resumes the earlier TLS session, so joining a room again or fetching ranges skips the full handshake.
  */
 public class MultiChatClientModelImpl implements MultiChatModel {
 
+    //the SSLContext shared by every connection, created by the first one, guarded by its lock
+    private static SSLContext sslContext;
+    private static final ReentrantLock sslContextLock = new ReentrantLock();
+
     private final String ipAddress;
-    private Scanner in;
-    private PrintWriter out;
+    private DataInputStream in;
+    private BufferedInputStream bufferedIn; //the buffered input under the data stream, before any decompression
+    private DataOutputStream out;
     private final SSLSocket socket;
-    private String name;
+    private volatile String name;
+
+    //the state of the input, only used by the thread reading from the server
+    private boolean binaryInput = false;
+    private boolean compressionWanted = true; //whether the server is asked to compress its frames
+    private ServerMessage next; //the message read ahead by isConnectionRunning
+    private int fileStream; //the stream of the file announced by the last FILEDATA message
+    private final Map<Integer, Download> downloads = new HashMap<>(); //the files being saved, by their stream
+    private final Map<String, File> resumes = new ConcurrentHashMap<>(); //the downloads asked to resume, by owner:name
+    private final byte[] dataBuffer = new byte[WireFormat.DATA_CHUNK];
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+
+    //the state of the output, written by the controller and view threads alike
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private boolean binaryOutput = false;
+    private int nextStream = 1; //the id of the next file upload's stream, always odd
+
+    //the uploads waiting for the server's answers on their streams, guarded by the upload lock
+    private final ReentrantLock uploadLock = new ReentrantLock();
+    private final Condition uploadAnswered = uploadLock.newCondition();
+    private final Map<Integer, Upload> uploads = new HashMap<>();
+    private boolean inputEnded = false;
 
     /**
      * Creates a instance of this model and creates a SSLSocket to the given IP address and port number.
@@ -52,29 +109,60 @@ public class MultiChatClientModelImpl implements MultiChatModel {
         wrapClientIO();
     }
 
-    //returns the SSLSocket initialized with the keys and algorithm to use for encryption
-    private SSLSocket initSSLDetailsAndGetClientSocket(String ipAddress, int portNumber)
+    //returns a SSLSocket to the given IP address and port number, created from the context every connection shares
+    private static SSLSocket initSSLDetailsAndGetClientSocket(String ipAddress, int portNumber)
+            throws NoSuchAlgorithmException, KeyStoreException, IOException, CertificateException,
+            UnrecoverableKeyException, KeyManagementException {
+
+        //return a SSL socket with all the specific SSL context
+        SSLSocketFactory factory = getSSLContext().getSocketFactory();
+        return (SSLSocket) factory.createSocket(ipAddress, portNumber);
+    }
+
+    /*
+    Returns the SSLContext shared by every connection of the client, initialized with the keys and algorithm to use
+    for encryption by the first connection. Its cache of sessions lets a later connection to the same server resume
+    an earlier session instead of doing the full handshake.
+     */
+    private static SSLContext getSSLContext()
+            throws NoSuchAlgorithmException, KeyStoreException, IOException, CertificateException,
+            UnrecoverableKeyException, KeyManagementException {
+        sslContextLock.lock();
+        try {
+            if (sslContext == null) {
+                sslContext = initSSLContext();
+            }
+            return sslContext;
+        } finally {
+            sslContextLock.unlock();
+        }
+    }
+
+    //returns a new SSLContext initialized with the keys and algorithm to use for encryption
+    private static SSLContext initSSLContext()
             throws NoSuchAlgorithmException, KeyStoreException, IOException, CertificateException,
             UnrecoverableKeyException, KeyManagementException {
 
-        SSLSocketFactory factory;
         SSLContext ctx;
         KeyManagerFactory kmf;
         KeyStore ks;
         char[] passphrase = "socketpractice".toCharArray(); //password used for keystore
 
+        //resumes sessions from the stateless tickets of servers as well as their caches, as newer JDKs do by default
+        System.getProperties().putIfAbsent("jdk.tls.client.enableSessionTicketExtension", "true");
+
         //specifies TLS protocol, SunX509 key manager algorithm, and .jks keystore file types to be used
         ctx = SSLContext.getInstance("TLS");
         kmf = KeyManagerFactory.getInstance("SunX509");
         ks = KeyStore.getInstance("JKS");
 
         //loads the keystore to be used for encryption
-        ks.load(this.getClass().getClassLoader().getResourceAsStream(
+        ks.load(MultiChatClientModelImpl.class.getClassLoader().getResourceAsStream(
                 "client/resources/keystore/server_keystore.jks"), passphrase);
         kmf.init(ks, passphrase);
 
         //initializes the trust store of the client (what the client can trust, aka. certificates)
-        InputStream myKeys = this.getClass().getClassLoader().getResourceAsStream(
+        InputStream myKeys = MultiChatClientModelImpl.class.getClassLoader().getResourceAsStream(
                 "client/resources/keystore/clientTrustStore.jts");
         KeyStore myTrustStore = KeyStore.getInstance(KeyStore.getDefaultType());
         myTrustStore.load(myKeys, "socketpractice".toCharArray());
@@ -85,31 +173,320 @@ public class MultiChatClientModelImpl implements MultiChatModel {
 
         //initializes the SSL context to the key and trust stores with a default security provider
         ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-
-        //return a SSL socket with all the specific SSL context
-        factory = ctx.getSocketFactory();
-        return (SSLSocket) factory.createSocket(ipAddress, portNumber);
+        return ctx;
     }
 
-    //wraps the input and output streams in a Scanner and PrintWriter respectively
+    //wraps the input and output streams in buffered data streams, starting out in the text protocol
     private void wrapClientIO() throws IOException {
-        in = new Scanner(socket.getInputStream());
-        out = new PrintWriter(socket.getOutputStream(), true);
+        bufferedIn = new BufferedInputStream(socket.getInputStream());
+        in = new DataInputStream(bufferedIn);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WireFormat.DATA_CHUNK));
     }
 
     @Override
     public boolean isConnectionRunning() {
-        return in.hasNextLine();
+        if (next == null) {
+            try {
+                next = readMessage();
+            } catch (IOException ioe) {
+                next = null;
+            }
+            if (next == null) {
+                endTransfers();
+            }
+        }
+        return next != null;
     }
 
     @Override
-    public String getSocketInput() {
-        return in.nextLine();
+    public ServerMessage getServerMessage() {
+        if (!isConnectionRunning()) {
+            throw new NoSuchElementException("The connection to the server has ended.");
+        }
+        ServerMessage message = next;
+        next = null;
+        if (message.getType() == ServerMessage.Type.FILEDATA) {
+            fileStream = message.getStream();
+        }
+        return message;
+    }
+
+    /*
+    Reads the next message from the server, or returns null once the connection has ended. The offer of version 2 is
+    accepted here, switching the output to frames at once and the input once the server acknowledges the switch, so
+    the rest of the client only ever sees decoded messages.
+     */
+    private ServerMessage readMessage() throws IOException {
+        while (true) {
+            if (binaryInput) {
+                byte opcode = in.readByte();
+                int stream = in.readInt();
+                int length = readLength(opcode);
+                if (opcode == WireFormat.DATA) {
+                    ServerMessage failure = readData(stream, length);
+                    if (failure != null) {
+                        return failure;
+                    }
+                    continue;
+                }
+                ServerMessage message = readFrame(opcode, stream, length);
+                if (message == null || (stream % 2 == 1 && answerUpload(message))) {
+                    continue;
+                }
+                if (message.getType() == ServerMessage.Type.FILERESUME) {
+                    ServerMessage failure = resumeDownload(message);
+                    return failure == null ? message : failure;
+                }
+                //any other message on a download's stream means the server could not send the rest of the file
+                Download download = stream == 0 ? null : downloads.remove(stream);
+                if (download != null) {
+                    download.abort();
+                }
+                return message;
+            } else {
+                String line = readLine();
+                if (line == null) {
+                    return null;
+                } else if (!line.equals(WireFormat.PROTOCOL_LINE)) {
+                    return ServerMessage.fromLine(line);
+                } else if (binaryOutput) {
+                    binaryInput = true;
+                    if (compressionWanted) {
+                        //any frame after the acknowledgement may be a compressed one
+                        in = new DataInputStream(new DeflatedFrameInputStream(bufferedIn));
+                    }
+                } else {
+                    acceptBinary();
+                }
+            }
+        }
+    }
+
+    /*
+    Answers the server's offer of version 2 and asks for compression, every output after the answer is sent in
+    frames. A server that does not compress skips the COMPRESS command like any other it does not know.
+     */
+    private void acceptBinary() throws IOException {
+        outputLock.lock();
+        try {
+            out.write((WireFormat.PROTOCOL_LINE + "\n").getBytes(StandardCharsets.UTF_8));
+            if (compressionWanted) {
+                byte[] payload = WireFormat.COMPRESSION.getBytes(StandardCharsets.UTF_8);
+                writeFrame(WireFormat.COMPRESS, 0, payload, payload.length);
+            }
+            out.flush();
+            binaryOutput = true;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    //reads a line of the text protocol without its line separator, or returns null once the connection has ended
+    private String readLine() throws IOException {
+        lineBuffer.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return lineBuffer.size() == 0 ? null : lineBuffer.toString(StandardCharsets.UTF_8);
+            }
+            lineBuffer.write(b);
+        }
+        String line = lineBuffer.toString(StandardCharsets.UTF_8);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    //reads the payload length of a frame with the given opcode
+    private int readLength(byte opcode) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > (opcode == WireFormat.DATA ? WireFormat.MAX_DATA_PAYLOAD : WireFormat.MAX_PAYLOAD)) {
+            throw new IOException("The server sent a frame of " + length + " bytes.");
+        }
+        return length;
+    }
+
+    //reads the payload of a frame into a message, or skips it and returns null for DATA and unknown frames
+    private ServerMessage readFrame(byte opcode, int stream, int length) throws IOException {
+        ServerMessage.Type type = opcode == WireFormat.DATA ? null : ServerMessage.Type.forCode(opcode);
+        if (type == null) {
+            skip(length);
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new ServerMessage(type, stream, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /*
+    Saves the payload of a DATA frame to the download of its stream, or skips it when no file is being saved from the
+    stream. A frame longer than the rest of the file is cut off. Returns a FAILEDFILETRANSFER message when the file
+    could not be written, in which case the rest of its stream is skipped.
+     */
+    private ServerMessage readData(int stream, int length) throws IOException {
+        Download download = downloads.get(stream);
+        if (download == null) {
+            skip(length);
+            return null;
+        }
+        while (length > 0) {
+            int amountRead = Math.min(dataBuffer.length, length);
+            in.readFully(dataBuffer, 0, amountRead);
+            length -= amountRead;
+            download.write(dataBuffer, amountRead);
+        }
+        if (download.remaining > 0) {
+            return null;
+        }
+        downloads.remove(stream);
+        if (download.finish()) {
+            return null;
+        }
+        return new ServerMessage(ServerMessage.Type.FAILEDFILETRANSFER, stream,
+                "Error saving file " + download.file.getName() + ".");
+    }
+
+    /*
+    Hands the server's answer on the stream of an upload to the upload's thread, returning whether it was one. A
+    failure of an upload no one waits for anymore is returned like any other message.
+     */
+    private boolean answerUpload(ServerMessage message) {
+        uploadLock.lock();
+        try {
+            Upload upload = uploads.get(message.getStream());
+            switch (message.getType()) {
+                case FILEOFFSET:
+                    if (upload != null) {
+                        upload.offset = Long.parseLong(message.getArgument());
+                        upload.acknowledged = Math.max(upload.acknowledged, upload.offset);
+                    }
+                    break;
+                case FILEACK:
+                    if (upload != null) {
+                        upload.acknowledged = Math.max(upload.acknowledged, Long.parseLong(message.getArgument()));
+                    }
+                    break;
+                case FAILEDFILETRANSFER:
+                    if (upload == null) {
+                        return false;
+                    }
+                    upload.failure = message.getArgument();
+                    break;
+                default:
+                    return false;
+            }
+            uploadAnswered.signalAll();
+            return true;
+        } finally {
+            uploadLock.unlock();
+        }
+    }
+
+    /*
+    Starts saving the rest of a download asked to resume, announced by a FILERESUME [offset]:[filesize]:[owner]:
+    [filename] message, after the part of the file saved before. Returns a FAILEDFILETRANSFER message when the file
+    cannot be opened, in which case the rest of its stream is skipped.
+     */
+    private ServerMessage resumeDownload(ServerMessage message) {
+        String argument = message.getArgument();
+        int sizeAt = argument.indexOf(':') + 1;
+        int ownerAt = argument.indexOf(':', sizeAt) + 1;
+        long offset = Long.parseLong(argument.substring(0, sizeAt - 1));
+        long fileSize = Long.parseLong(argument.substring(sizeAt, ownerAt - 1));
+        File file = resumes.remove(argument.substring(ownerAt));
+        if (file == null) {
+            return null;
+        }
+        try {
+            Download download = new Download(file, offset, fileSize - offset);
+            if (fileSize == offset) {
+                download.finish();
+            } else {
+                downloads.put(message.getStream(), download);
+            }
+            return null;
+        } catch (IOException ioe) {
+            return new ServerMessage(ServerMessage.Type.FAILEDFILETRANSFER, message.getStream(),
+                    "Error saving file " + file.getName() + ".");
+        }
+    }
+
+    /*
+    Closes the files still being saved once the connection has ended, keeping what has been saved of them so they
+    can be resumed, and fails the uploads waiting for the server.
+     */
+    private void endTransfers() {
+        for (Download download : downloads.values()) {
+            download.finish();
+        }
+        downloads.clear();
+        uploadLock.lock();
+        try {
+            inputEnded = true;
+            uploadAnswered.signalAll();
+        } finally {
+            uploadLock.unlock();
+        }
+    }
+
+    //skips the given amount of bytes of input
+    private void skip(long amount) throws IOException {
+        while (amount > 0) {
+            int skipped = in.skipBytes((int) Math.min(amount, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            amount -= skipped;
+        }
     }
 
     @Override
     public void sendText(String output) {
-        out.println(output);
+        sendText(output, null);
+    }
+
+    @Override
+    public void sendText(String output, String room) {
+        outputLock.lock();
+        try {
+            if (binaryOutput) {
+                //the username is a chat message of its own, whatever it starts with
+                int command = name == null ? -1 : WireFormat.commandOf(output);
+                byte[] payload = WireFormat.argumentOf(command, output).getBytes(StandardCharsets.UTF_8);
+                int stream = room == null || !WireFormat.isChannelCommand(command) ? 0
+                        : WireFormat.CHANNEL | Integer.parseInt(room);
+                writeFrame(WireFormat.codeOf(command), stream, payload, payload.length);
+            } else {
+                out.write((output + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        } catch (IOException ioe) {
+            //a failed connection is noticed by the thread reading from the server
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    //sends a command in a frame of version 2, whether or not a username has been accepted
+    private void sendCommand(String command) throws IOException {
+        outputLock.lock();
+        try {
+            if (!binaryOutput) {
+                throw new IOException("The server does not speak version 2 of the wire format.");
+            }
+            int commandIndex = WireFormat.commandOf(command);
+            byte[] payload = WireFormat.argumentOf(commandIndex, command).getBytes(StandardCharsets.UTF_8);
+            writeFrame(WireFormat.codeOf(commandIndex), 0, payload, payload.length);
+            out.flush();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    //writes a frame of version 2, must be called holding the output lock
+    private void writeFrame(byte opcode, int stream, byte[] payload, int length) throws IOException {
+        out.writeByte(opcode);
+        out.writeInt(stream);
+        out.writeInt(length);
+        out.write(payload, 0, length);
     }
 
     @Override
@@ -130,48 +507,378 @@ public class MultiChatClientModelImpl implements MultiChatModel {
 
     @Override
     public void sendFile(String fileName, long filesize, File file) throws IOException {
-        out.println("/file " + fileName + ":" + filesize);
-        sendFileDownStream(file);
+        sendFileDownStream("/file " + fileName + ":" + filesize, filesize, file);
     }
 
     @Override
     public void sendPrivateFile(String fileName, long fileSize, File file, String receiver, String sender)
             throws IOException {
-        out.println("/privatefile " + receiver + ":" + fileName + ":" + fileSize);
-        sendFileDownStream(file);
+        sendFileDownStream("/privatefile " + receiver + ":" + fileName + ":" + fileSize, fileSize, file);
+    }
+
+    /*
+    Sends the given command followed by the contents of the file. In version 2 the command opens a stream of its own
+    and the contents follow as DATA frames of that stream, so chat sent meanwhile can go out between them. The server
+    first answers with the offset to send the contents from, which is past the start when it kept the file's upload
+    from a connection that dropped, then acknowledges the contents as it stores them. At most MAX_UNACKNOWLEDGED
+    bytes are sent ahead of its acknowledgements, and the upload is done once the server has acknowledged them all.
+    In the text protocol the contents follow the command raw, and nothing else may be sent until they have all been
+    sent.
+     */
+    private void sendFileDownStream(String command, long fileSize, File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[WireFormat.DATA_CHUNK];
+            int amountRead;
+            int stream;
+            Upload upload = new Upload();
+            outputLock.lock();
+            try {
+                if (!binaryOutput) {
+                    InputStream bis = new BufferedInputStream(fis);
+                    out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+                    while ((amountRead = bis.read(buffer, 0, buffer.length)) > -1) {
+                        out.write(buffer, 0, amountRead);
+                    }
+                    out.flush();
+                    return;
+                }
+                int commandIndex = WireFormat.commandOf(command);
+                byte[] payload = WireFormat.argumentOf(commandIndex, command).getBytes(StandardCharsets.UTF_8);
+                stream = nextStream;
+                nextStream += 2;
+                uploadLock.lock();
+                try {
+                    uploads.put(stream, upload);
+                } finally {
+                    uploadLock.unlock();
+                }
+                writeFrame(WireFormat.codeOf(commandIndex), stream, payload, payload.length);
+                out.flush();
+            } finally {
+                outputLock.unlock();
+            }
+            try {
+                long sent = awaitAcknowledged(upload, 0);
+                fis.getChannel().position(sent);
+                InputStream bis = new BufferedInputStream(fis);
+                while (sent < fileSize && (amountRead = bis.read(buffer, 0, buffer.length)) > -1) {
+                    awaitAcknowledged(upload, sent + amountRead - WireFormat.MAX_UNACKNOWLEDGED);
+                    outputLock.lock();
+                    try {
+                        writeFrame(WireFormat.DATA, stream, buffer, amountRead);
+                        out.flush();
+                    } finally {
+                        outputLock.unlock();
+                    }
+                    sent += amountRead;
+                }
+                awaitAcknowledged(upload, fileSize);
+            } finally {
+                uploadLock.lock();
+                try {
+                    uploads.remove(stream);
+                } finally {
+                    uploadLock.unlock();
+                }
+            }
+        }
+    }
+
+    /*
+    Waits until the server has told the upload its offset and acknowledged at least the given bytes of it, returning
+    the offset the upload continues from.
+     */
+    private long awaitAcknowledged(Upload upload, long bytes) throws IOException {
+        uploadLock.lock();
+        try {
+            while (upload.failure == null && !inputEnded && (upload.offset < 0 || upload.acknowledged < bytes)) {
+                uploadAnswered.await();
+            }
+            if (upload.failure != null) {
+                throw new IOException(upload.failure);
+            }
+            if (upload.offset < 0 || upload.acknowledged < bytes) {
+                throw new EOFException("The connection to the server has ended.");
+            }
+            return upload.offset;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            uploadLock.unlock();
+        }
     }
 
-    //reads a file and sends it down the socket's output stream
-    private void sendFileDownStream(File file) throws IOException {
-        FileInputStream fis = new FileInputStream(file);
-        BufferedInputStream bis = new BufferedInputStream(fis);
-        byte[] buffer = new byte[4096];
-        int amountRead;
-        while ((amountRead = bis.read(buffer, 0, buffer.length)) > -1) {
-            socket.getOutputStream().write(buffer, 0, amountRead);
+    /*
+    Asks the server for the rest of the file the given owner uploaded under the given name, which is saved after the
+    part of it already in the given file once its FILERESUME message is read.
+     */
+    @Override
+    public void resumeFile(File file, String fileOwner, String fileName) throws IOException {
+        outputLock.lock();
+        try {
+            if (!binaryOutput) {
+                throw new IOException("The server cannot resume downloads.");
+            }
+        } finally {
+            outputLock.unlock();
         }
-        socket.getOutputStream().flush();
-        fis.close();
-        bis.close();
+        resumes.put(fileOwner + ":" + fileName, file);
+        sendText("/resumefile " + fileOwner + ":" + fileName + ":" + file.length());
     }
 
+    @Override
+    public boolean canSaveInRanges() {
+        outputLock.lock();
+        try {
+            return binaryOutput;
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /*
+    Downloads the file in ranges, each over a connection of its own so that every range has a TCP window of its own.
+    The first connection first asks for an empty range, which tells the size of the file, and the file is then split
+    into at most the given amount of ranges of at least MIN_RANGE_BYTES. Every connection saves its range at its
+    position in the file, which is given its whole size beforehand. When a range fails, the connections of the others
+    are closed and the partly saved file is deleted. A file whose owner is named as name@room, such as a private file
+    sent from another room, is fetched from that room's port, which may belong to another server.
+     */
+    @Override
+    public void saveFileInRanges(File file, String fileOwner, String fileName, int ranges) throws IOException {
+        Queue<MultiChatClientModelImpl> connections = new ConcurrentLinkedQueue<>();
+        ExecutorService fetchers = null;
+        boolean saved = false;
+        int portNumber = roomOf(fileOwner);
+        try {
+            MultiChatClientModelImpl first = openRangeConnection(connections, portNumber);
+            long fileSize = first.fetchRange(null, fileOwner, fileName, 0, 0);
+            int count = (int) Math.max(1, Math.min(ranges, fileSize / WireFormat.MIN_RANGE_BYTES));
+            long rangeLength = (fileSize + count - 1) / count;
+            try (RandomAccessFile target = new RandomAccessFile(file, "rw")) {
+                target.setLength(fileSize);
+                FileChannel channel = target.getChannel();
+                fetchers = Executors.newFixedThreadPool(count, runnable -> {
+                    Thread thread = new Thread(runnable, "MultiChat-range");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                //the ranges are awaited in the order they end, so the first to fail closes the others' connections
+                CompletionService<Long> fetched = new ExecutorCompletionService<>(fetchers);
+                fetched.submit(() -> first.fetchRange(channel, fileOwner, fileName, 0, rangeLength));
+                for (int i = 1; i < count; i++) {
+                    long offset = i * rangeLength;
+                    fetched.submit(() -> openRangeConnection(connections, portNumber)
+                            .fetchRange(channel, fileOwner, fileName, offset, rangeLength));
+                }
+                for (int i = 0; i < count; i++) {
+                    awaitRange(fetched);
+                }
+            }
+            saved = true;
+        } finally {
+            for (MultiChatClientModelImpl connection : connections) {
+                try {
+                    connection.socket.close();
+                } catch (IOException ioe) {
+                    //the connection is done with either way
+                }
+            }
+            if (fetchers != null) {
+                fetchers.shutdown();
+            }
+            if (!saved) {
+                file.delete();
+            }
+        }
+    }
+
+    //returns the port of the room of a file owner named as name@room, or else the port of this client's room
+    private int roomOf(String fileOwner) {
+        int at = fileOwner.lastIndexOf('@');
+        if (at > 0 && at < fileOwner.length() - 1 && fileOwner.substring(at + 1).chars().allMatch(
+                c -> c >= '0' && c <= '9')) {
+            try {
+                return Integer.parseInt(fileOwner.substring(at + 1));
+            } catch (NumberFormatException nfe) {
+                //not a port, so the @ is part of the owner's name
+            }
+        }
+        return socket.getPort();
+    }
+
+    //opens another connection to the given port to fetch ranges of files over, once the server has offered version 2
+    private MultiChatClientModelImpl openRangeConnection(Queue<MultiChatClientModelImpl> connections, int portNumber)
+            throws IOException {
+        MultiChatClientModelImpl connection = new MultiChatClientModelImpl(ipAddress, portNumber);
+        connections.add(connection);
+        //ranges are DATA frames, which are never compressed
+        connection.compressionWanted = false;
+        //the offer comes before the server asks for a username, which this connection never submits
+        if (!connection.isConnectionRunning()
+                || connection.getServerMessage().getType() != ServerMessage.Type.SUBMITNAME) {
+            throw new EOFException("The connection to the server has ended.");
+        }
+        return connection;
+    }
+
+    /*
+    Asks for the given range of a file over this connection, which is only used to fetch ranges, and saves the
+    range's bytes at their position in the given channel as their DATA frames arrive. Returns the size of the whole
+    file as told by the range's FILERANGE [offset]:[length]:[filesize]:[owner]:[filename] message.
+     */
+    private long fetchRange(FileChannel channel, String fileOwner, String fileName, long offset, long length)
+            throws IOException {
+        sendCommand("/requestrange " + fileOwner + ":" + fileName + ":" + offset + ":" + length);
+        ServerMessage header;
+        do {
+            header = readMessage();
+            if (header == null) {
+                throw new EOFException("The connection to the server has ended.");
+            } else if (header.getType() == ServerMessage.Type.FAILEDFILETRANSFER) {
+                throw new IOException(header.getArgument());
+            }
+        } while (header.getType() != ServerMessage.Type.FILERANGE);
+        String[] range = header.getArgument().split(":", 4);
+        long position = Long.parseLong(range[0]);
+        long remaining = Long.parseLong(range[1]);
+        ByteBuffer buffer = ByteBuffer.wrap(dataBuffer);
+        while (remaining > 0) {
+            byte opcode = in.readByte();
+            int stream = in.readInt();
+            int frameLength = readLength(opcode);
+            if (opcode != WireFormat.DATA || stream != header.getStream()) {
+                //any other message on the range's stream means the server could not send the rest of it
+                if (readFrame(opcode, stream, frameLength) != null && stream == header.getStream()) {
+                    throw new IOException("The server could not send the rest of " + fileName + ".");
+                }
+                continue;
+            }
+            if (frameLength > remaining) {
+                throw new IOException("The server sent more of " + fileName + " than the range.");
+            }
+            while (frameLength > 0) {
+                int amountRead = Math.min(dataBuffer.length, frameLength);
+                in.readFully(dataBuffer, 0, amountRead);
+                buffer.clear().limit(amountRead);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                frameLength -= amountRead;
+                remaining -= amountRead;
+            }
+        }
+        return Long.parseLong(range[2]);
+    }
+
+    //waits for the next range fetched by another thread to end, failing with the range's failure
+    private static void awaitRange(CompletionService<Long> fetched) throws IOException {
+        try {
+            fetched.take().get();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException(ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /*
+    Saves the contents of the file announced by the last FILEDATA message, or skips them when the file is null. In
+    version 2 they are the DATA frames of that message's stream, so the file is only opened here and its contents are
+    saved by readMessage as they arrive between the other messages. A message other than DATA on the file's stream
+    means the server could not send the rest of the file, such as when the file is relayed from a sender whose upload
+    failed, and the partly saved file is deleted. In the text protocol they are the raw bytes following the message,
+    which are saved before returning.
+     */
     @Override
     public void saveFile(File file, long fileSize) throws IOException {
-        if (file != null) {
-            byte[] buf = new byte[4096];
-            FileOutputStream fos = new FileOutputStream(file);
-            //read file
-            while (fileSize > 0 && socket.getInputStream().read(
-                    buf, 0, (int) Math.min(buf.length, fileSize)) > -1) {
-                fos.write(buf, 0, buf.length);
-                fileSize -= buf.length;
+        if (binaryInput) {
+            //the contents of a stream without a download are skipped, including when the file cannot be opened
+            if (file != null) {
+                Download download = new Download(file, 0, fileSize);
+                if (fileSize == 0) {
+                    download.finish();
+                } else {
+                    downloads.put(fileStream, download);
+                }
+            }
+            return;
+        }
+        try (OutputStream fos = file == null ? null : new BufferedOutputStream(new FileOutputStream(file))) {
+            while (fileSize > 0) {
+                int amountRead = in.read(dataBuffer, 0, (int) Math.min(dataBuffer.length, fileSize));
+                if (amountRead < 0) {
+                    throw new EOFException();
+                }
+                if (fos != null) {
+                    fos.write(dataBuffer, 0, amountRead);
+                }
+                fileSize -= amountRead;
             }
-            fos.flush();
-            fos.close();
-        } else {
-            socket.getInputStream().skip(fileSize);
         }
     }
 
-}
+    //an upload's progress as answered by the server, guarded by the upload lock
+    private static final class Upload {
+        private long offset = -1; //the offset the contents are sent from, -1 until the server has told
+        private long acknowledged = 0; //the bytes of the file the server has stored
+        private String failure; //why the server failed the upload, null while it has not
+    }
+
+    //a file being saved from the DATA frames of its stream, only used by the thread reading from the server
+    private static final class Download {
+        private final File file;
+        private final OutputStream fos;
+        private long remaining; //the bytes of the file still to be received
+        private boolean failed = false; //whether writing the file failed, after which the contents are skipped
+
+        //opens the file to save the given bytes after its first offset bytes, which are kept from an earlier save
+        private Download(File file, long offset, long remaining) throws IOException {
+            this.file = file;
+            if (offset > 0) {
+                try (RandomAccessFile saved = new RandomAccessFile(file, "rw")) {
+                    saved.setLength(offset);
+                }
+            }
+            this.fos = new BufferedOutputStream(new FileOutputStream(file, offset > 0));
+            this.remaining = remaining;
+        }
 
+        //saves as many of the given bytes as are left of the file
+        private void write(byte[] bytes, int length) {
+            int amountSaved = (int) Math.min(length, remaining);
+            remaining -= amountSaved;
+            if (!failed) {
+                try {
+                    fos.write(bytes, 0, amountSaved);
+                } catch (IOException ioe) {
+                    failed = true;
+                }
+            }
+        }
+
+        //closes the completely received file, returning whether it was saved
+        private boolean finish() {
+            try {
+                fos.close();
+            } catch (IOException ioe) {
+                failed = true;
+            }
+            if (failed) {
+                file.delete();
+            }
+            return !failed;
+        }
+
+        //closes and deletes the partly received file
+        private void abort() {
+            failed = true;
+            finish();
+        }
+    }
+}
@@ -17,11 +17,11 @@ public interface MultiChatModel {
     boolean isConnectionRunning();
 
     /**
-     * Returns the next input from the server.
+     * Returns the next message from the server, decoded from whichever version of the wire format the connection uses.
      *
-     * @return the next line from the socket connected to the server
+     * @return the next message from the socket connected to the server
      */
-    String getSocketInput();
+    ServerMessage getServerMessage();
 
     /**
      * Sends the given String to the server by socket.
@@ -30,6 +30,16 @@ public interface MultiChatModel {
      */
     void sendText(String output);
 
+    /**
+     * Sends the given String to a room subscribed to with /subscribe. Chat messages and the commands about the room's
+     * users (/users, /whisper and /privatemsg) are sent in that room, every other command in the room the client
+     * joined. A null room, or a server that only speaks text, sends everything in the room the client joined.
+     *
+     * @param output the given String to be sent to the server
+     * @param room the number of the subscribed room, or null for the room the client joined
+     */
+    void sendText(String output, String room);
+
     /**
      * Connects to a different port of the MultiChatServer.
      *
@@ -54,7 +64,10 @@ public interface MultiChatModel {
     String getUsername();
 
     /**
-     * Sends a file to the server through the socket.
+     * Sends a file to the server through the socket. In version 2 of the wire format only the part of the file the
+     * server is missing is sent, which is all of it unless an upload of the same file was cut off by a dropped
+     * connection, and the method returns once the server has stored the whole file. The server's answers are read
+     * with its other messages, so the method must not be called by the thread reading them.
      *
      * @param fileName the name of the file
      * @param fileSize the size of the file
@@ -65,7 +78,7 @@ public interface MultiChatModel {
 
     /**
      * Sends a file to the server through the socket and signifies to the server that the file is to be private between
-     * specified users.
+     * specified users. It is sent the same way as by sendFile.
      *
      * @param fileName the name of the file
      * @param fileSize the size of the file
@@ -77,11 +90,50 @@ public interface MultiChatModel {
     void sendPrivateFile(String fileName, long fileSize, File file, String receiver, String sender) throws IOException;
 
     /**
-     * Saves the file locally.
+     * Saves the file announced by the last FILEDATA message locally. In version 2 of the wire format the file is only
+     * opened before returning and its contents are saved while the following messages are read, a FAILEDFILETRANSFER
+     * message on its stream being read when the file cannot be saved or the server cannot send the rest of it. When
+     * the connection ends first, the part of the file saved so far is kept so that it can be resumed. In the text
+     * protocol the whole file is saved before returning.
      *
-     * @param file     the file to be saved
+     * @param file     the file to be saved, or null to skip the file's contents
      * @param fileSize the size of the file to be saved
      * @throws IOException when there is an error saving the file
      */
     void saveFile(File file, long fileSize) throws IOException;
+
+    /**
+     * Asks the server for the rest of a file whose download was cut off, such as by a dropped connection, saving it
+     * after the part of the file already saved. The rest is saved while the following messages are read, once the
+     * server's FILERESUME message announcing it has been read. Only possible in version 2 of the wire format.
+     *
+     * @param file      the partly saved file
+     * @param fileOwner the user who uploaded the file
+     * @param fileName  the name the file was uploaded under
+     * @throws IOException when the server does not speak version 2 of the wire format
+     */
+    void resumeFile(File file, String fileOwner, String fileName) throws IOException;
+
+    /**
+     * Returns whether files can be downloaded in ranges with saveFileInRanges, which takes version 2 of the wire
+     * format.
+     *
+     * @return whether files can be downloaded in ranges
+     */
+    boolean canSaveInRanges();
+
+    /**
+     * Downloads the file the given owner uploaded under the given name by fetching byte ranges of it at the same time
+     * over up to the given amount of connections of their own, saving every range at its place in the file. Small
+     * files take fewer connections. The method returns once the whole file has been saved, and the partly saved file
+     * is deleted when a range cannot be fetched. The messages of this client's own connection are not involved, but
+     * the method blocks for the whole download, so it is best not called by the thread reading them.
+     *
+     * @param file      the file to be saved
+     * @param fileOwner the user who uploaded the file, as name@room when uploaded in another room
+     * @param fileName  the name the file was uploaded under
+     * @param ranges    the most ranges fetched at once
+     * @throws IOException when the file cannot be fetched or saved
+     */
+    void saveFileInRanges(File file, String fileOwner, String fileName, int ranges) throws IOException;
 }
@@ -0,0 +1,179 @@
+package client.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single message received from a MultiChat server, decoded into its type and argument. In the text protocol the
+ * type is the keyword starting the line and the argument the rest of the line, in version 2 of the wire format the
+ * type is the opcode of the frame and the argument its payload, so both decode into the same messages.
+ */
+public final class ServerMessage {
+
+    /**
+     * The types of the messages a MultiChat server sends.
+     */
+    public enum Type {
+        SUBMITNAME(0x01),
+        SUBMITANOTHERNAME(0x02),
+        NAMEACCEPTED(0x03),
+        MESSAGE(0x04),
+        MESSAGEUSERJOINED(0x05),
+        MESSAGEUSERLEFT(0x06),
+        MESSAGEWELCOME(0x07),
+        ACTIVEUSERLIST(0x08),
+        MESSAGEHELP(0x09),
+        VOTEKICK(0x0A),
+        FAILEDVOTEKICK(0x0B),
+        SUCCESSFULVOTEKICK(0x0C),
+        ACTIVESERVERLIST(0x0D),
+        WHISPER(0x0E),
+        PRIVATEMESSAGE(0x0F),
+        FILE(0x10),
+        FAILEDFILETRANSFER(0x11),
+        FILEDATA(0x12),
+        PRIVATEFILE(0x13),
+        SERVERCLOSE(0x14),
+        DISCONNECTED(0x15),
+        REQUESTEDNEWROOM(0x16),
+        //a line without a keyword, such as "Successfully left.", whose argument is the whole line
+        NOTICE(0x17),
+        //the versioned changes and snapshots of the room's users, [sequence] [users]
+        USERJOINED(0x18),
+        USERLEFT(0x19),
+        USERLIST(0x1A),
+        //the progress of transfers on their streams: the offset an upload continues from, the bytes of an upload
+        //stored so far, and [offset]:[filesize]:[owner]:[filename] announcing the rest of a resumed download
+        FILEOFFSET(0x1B),
+        FILEACK(0x1C),
+        FILERESUME(0x1D),
+        //[offset]:[length]:[filesize]:[owner]:[filename] announcing a range of a file, followed by its bytes
+        FILERANGE(0x1E),
+        //[room] and [room] [reason], the answers to subscribing to another room and the end of a subscription
+        SUBSCRIBED(0x1F),
+        UNSUBSCRIBED(0x20);
+
+        private static final Map<String, Type> BY_KEYWORD = new HashMap<>();
+        private static final Type[] BY_CODE = new Type[128];
+
+        static {
+            for (Type type : values()) {
+                if (type != NOTICE) {
+                    BY_KEYWORD.put(type.name(), type);
+                }
+                BY_CODE[type.code] = type;
+            }
+        }
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        //returns the opcode of the type in version 2 of the wire format
+        byte code() {
+            return code;
+        }
+
+        //returns the type starting with the given keyword, or NOTICE when the keyword is not one of a type
+        static Type forKeyword(String keyword) {
+            return BY_KEYWORD.getOrDefault(keyword, NOTICE);
+        }
+
+        //returns the type with the given opcode, or null when no type has it
+        static Type forCode(byte code) {
+            return code < 0 ? null : BY_CODE[code];
+        }
+    }
+
+    private final Type type;
+    private final int stream;
+    private final String argument;
+    private volatile List<String> list; //the argument split at its commas, made on first use
+
+    //creates a message of the given type received on the given stream
+    ServerMessage(Type type, int stream, String argument) {
+        this.type = type;
+        this.stream = stream;
+        this.argument = argument;
+    }
+
+    //decodes a line of the text protocol in one pass, its first token being looked up as the type
+    static ServerMessage fromLine(String line) {
+        int space = line.indexOf(' ');
+        Type type = Type.forKeyword(space < 0 ? line : line.substring(0, space));
+        String argument = type == Type.NOTICE ? line : space < 0 ? "" : line.substring(space + 1);
+        return new ServerMessage(type, 0, argument);
+    }
+
+    /**
+     * Returns the type of the message.
+     *
+     * @return the type of the message
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the stream the message was received on, the id of the file transfer it belongs to or 0.
+     *
+     * @return the stream of the message
+     */
+    public int getStream() {
+        return stream;
+    }
+
+    /**
+     * Returns the number of the subscribed room the message was sent in, or null when it was sent in the room the
+     * client joined or belongs to no room, such as the frames of a file transfer.
+     *
+     * @return the subscribed room of the message, or null
+     */
+    public String getRoom() {
+        return (stream & WireFormat.CHANNEL) == 0 ? null : Integer.toString(stream & ~WireFormat.CHANNEL);
+    }
+
+    /**
+     * Returns the argument of the message, the text following its keyword.
+     *
+     * @return the argument of the message
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    /**
+     * Returns the argument of a message listing names split at its commas, such as the users of ACTIVEUSERLIST or the
+     * rooms of ACTIVESERVERLIST. For the changes and snapshots of the room's users (USERJOINED, USERLEFT and
+     * USERLIST) the list follows the sequence number. The argument is only split once, however many handlers ask.
+     *
+     * @return the unmodifiable list of names in the argument
+     */
+    public List<String> getList() {
+        List<String> split = list;
+        if (split == null) {
+            boolean sequenced = type == Type.USERJOINED || type == Type.USERLEFT || type == Type.USERLIST;
+            String names = sequenced ? argument.substring(argument.indexOf(' ') + 1) : argument;
+            split = Collections.unmodifiableList(Arrays.asList(names.split(",")));
+            list = split;
+        }
+        return split;
+    }
+
+    /**
+     * Returns the sequence number of a change or snapshot of the room's users (USERJOINED, USERLEFT or USERLIST).
+     * Changes are numbered one after the other, and a snapshot has the number of the last change it includes.
+     *
+     * @return the sequence number of the message
+     * @throws NumberFormatException when the message has no sequence number
+     */
+    public long getSequence() {
+        int space = argument.indexOf(' ');
+        return Long.parseLong(space < 0 ? argument : argument.substring(0, space));
+    }
+}
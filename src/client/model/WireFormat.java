@@ -0,0 +1,118 @@
+package client.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The layout of version 2 of the MultiChat wire format as used by the client. Every message is a frame of an opcode
+ * (1 byte), a stream id (4 bytes) and a payload length (4 bytes) followed by the payload. The server offers version 2
+ * with the line "PROTOCOL 2", the client answers with the same line and sends frames from then on, and the server
+ * repeats the line as the last line of text before it sends frames as well. The streams the client opens for its
+ * uploads have odd ids and those the server opens for downloads even ids, so the server answers an upload on the
+ * upload's own stream. A connection opened only to download a range of a file sends its REQUESTRANGE command in
+ * place of a username and never joins the room.
+ *
+ * <p>The client asks for compression with a COMPRESS command right after it accepts version 2. A server that
+ * compresses then sends every frame but the DATA frames of files inside a DEFLATED frame, all of them carrying one
+ * DEFLATE stream primed with DICTIONARY.
+ *
+ * <p>A client can subscribe to other rooms the server hosts with SUBSCRIBE, and the frames of a subscribed room
+ * travel in both directions on the stream of its channel, CHANNEL with the room's number in the lower bits, while
+ * its own room stays on stream 0. Only chat messages and the commands about a room's users are sent on a channel.
+ */
+final class WireFormat {
+
+    //the line that offers, accepts and acknowledges version 2
+    static final String PROTOCOL_LINE = "PROTOCOL 2";
+
+    static final int HEADER_LENGTH = 9;
+    //longest payload of a frame other than DATA
+    static final int MAX_PAYLOAD = 1 << 16;
+    //longest payload of a DATA frame
+    static final int MAX_DATA_PAYLOAD = 1 << 20;
+    //payload of the DATA frames the client splits a file into
+    static final int DATA_CHUNK = 16384;
+    //most bytes of an upload sent ahead of the server's acknowledgements, which come every megabyte
+    static final long MAX_UNACKNOWLEDGED = 4 << 20;
+    //longest payload of a DEFLATED frame, a frame of the longest payload after the worst expansion by DEFLATE
+    static final int MAX_DEFLATED_PAYLOAD = HEADER_LENGTH + MAX_PAYLOAD + 1024;
+    //fewest bytes of a file downloaded over a connection of their own when a file is downloaded in ranges
+    static final long MIN_RANGE_BYTES = 1 << 20;
+
+    //the opcode of the frames that carry the raw bytes of a file transfer in both directions
+    static final byte DATA = 0x7F;
+    //the opcode of the frames that carry a compressed frame once the server has been asked for compression
+    static final byte DEFLATED = 0x7E;
+    //the opcode of the command asking for compression, and the compression asked for
+    static final byte COMPRESS = 0x4F;
+    static final String COMPRESSION = "deflate";
+    //the bit marking the stream of a subscribed room's channel, the rest of the stream being the room's number
+    static final int CHANNEL = 0x80000000;
+    /*
+    The bytes the DEFLATE stream of every connection starts out knowing: the recurring text of the frames the server
+    sends and the headers of the most common frames, with the most frequent last. In version 2 the keywords of the
+    text protocol are opcodes, so only the text that follows them is worth priming the stream with. Only what never
+    changes goes into it, as the client and the server must build the same bytes: the opcodes, and the brackets around
+    the date of a chat message but not the date's year or time zone.
+     */
+    static final byte[] DICTIONARY = dictionary(ServerMessage.Type.USERJOINED.code(),
+            ServerMessage.Type.USERLEFT.code(), ServerMessage.Type.MESSAGE.code());
+    //the opcode of a chat message, and of the username before it has been accepted
+    static final byte MESSAGE = 0x40;
+    static final byte FILE = 0x49;
+    static final byte PRIVATEFILE = 0x4A;
+
+    //the prefixes of the commands the client sends, their opcodes and whether their prefixes ignore case
+    private static final String[] PREFIXES = {"/quit", "/help", "/emotes", "/join ", "UNSUCCESSFULROOMCHANGE ",
+            "/votekick ", "/whisper ", "/privatemsg ", "/file ", "/privatefile ", "/requestfile ", "/users",
+            "/resumefile ", "/requestrange ", "/subscribe ", "/unsubscribe "};
+    private static final byte[] CODES = {0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, FILE, PRIVATEFILE, 0x4B,
+            0x4C, 0x4D, 0x4E, 0x50, 0x51};
+    private static final boolean[] IGNORE_CASE = {true, true, true, true, false, false, true, true, true, true, true,
+            true, true, true, true, true};
+
+    private WireFormat() {
+    }
+
+    //returns the dictionary: the recurring text, then the headers of the given opcodes with the brackets of a date
+    private static byte[] dictionary(byte joined, byte left, byte message) {
+        byte[] text = ("Type /quit to quit MultiChat. Type /help to access this help menu. "
+                + "Error communicating to server.Error fetching file.Successfully left."
+                + "Welcome to Multi-Chat, room . Use /help for help!"
+                + "Jan Feb Mar Apr May Jun Jul Aug Sep Oct Nov Dec Mon Tue Wed Thu Fri Sat Sun"
+                + " have joined. have left has left has joined.").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer dictionary = ByteBuffer.allocate(text.length + 3 * HEADER_LENGTH + 3);
+        dictionary.put(text);
+        dictionary.put(joined).putInt(0).putInt(0);
+        dictionary.put(left).putInt(0).putInt(0);
+        dictionary.put("] ".getBytes(StandardCharsets.ISO_8859_1));
+        dictionary.put(message).putInt(0).putInt(0);
+        return dictionary.put((byte) '[').array();
+    }
+
+    //returns the index of the command the given text line starts with, or -1 for a chat message
+    static int commandOf(String line) {
+        for (int i = 0; i < PREFIXES.length; i++) {
+            if (line.regionMatches(IGNORE_CASE[i], 0, PREFIXES[i], 0, PREFIXES[i].length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //returns the opcode of the command with the given index, a chat message for -1
+    static byte codeOf(int command) {
+        return command < 0 ? MESSAGE : CODES[command];
+    }
+
+    //returns whether the command with the given index may be sent on a subscribed room's channel
+    static boolean isChannelCommand(int command) {
+        byte code = codeOf(command);
+        return code == MESSAGE || code == 0x47 || code == 0x48 || code == 0x4C;
+    }
+
+    //returns the argument of the command with the given index in the given text line
+    static String argumentOf(int command, String line) {
+        return command < 0 ? line : line.substring(PREFIXES[command].length());
+    }
+}
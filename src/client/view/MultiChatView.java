@@ -118,6 +118,20 @@ public interface MultiChatView {
      */
     void setActiveUsers(List<String> names);
 
+    /**
+     * Adds the given usernames to the displayed active users, except those displayed already.
+     *
+     * @param names the usernames of the users that joined the room
+     */
+    void addActiveUsers(List<String> names);
+
+    /**
+     * Removes the given usernames from the displayed active users.
+     *
+     * @param names the usernames of the users that left the room
+     */
+    void removeActiveUsers(List<String> names);
+
 
     /**
      * Sets and displays the given list of active server names.
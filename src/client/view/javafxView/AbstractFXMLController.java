@@ -32,7 +32,6 @@ import javafx.stage.Window;
 import javafx.util.Duration;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -218,12 +217,7 @@ public abstract class AbstractFXMLController {
         File selected = dialog.showOpenDialog(window);
         if (!(selected == null)) {
             if (selected.length() < 25000000) {
-                try {
-                    features.sendFile(selected.getName(), selected.length(), selected, isPrivate, receiver, sender);
-                } catch (IOException ioe) {
-                    displayError(true, "Something went wrong with sending the file!");
-                }
-
+                features.sendFile(selected.getName(), selected.length(), selected, isPrivate, receiver, sender);
             } else {
                 updateChatLog("The file size cannot exceed 25mb", "orange", false, "MESSAGEHELP");
             }
@@ -410,7 +404,7 @@ public abstract class AbstractFXMLController {
             name.setFill(Color.WHITE);
             link.setTextFill(Color.WHITE);
         }
-        link.setOnAction(e -> features.sendTextOut("/requestfile " + extractName(msg) + ":" + filename));
+        link.setOnAction(e -> features.requestFile(extractName(msg), filename));
         surface.getChildren().addAll(name, link);
         surface.setPrefWidth(new Text(extractName(msg) + ": " + filename).prefWidth(-1) + 20);
         return surface;
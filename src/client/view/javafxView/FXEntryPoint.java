@@ -110,6 +110,16 @@ public class FXEntryPoint extends Application implements MultiChatView {
         controller.setActiveUsers(activeUsers);
     }
 
+    @Override
+    public void addActiveUsers(List<String> names) {
+        controller.addActiveUsers(names);
+    }
+
+    @Override
+    public void removeActiveUsers(List<String> names) {
+        controller.removeActiveUsers(names);
+    }
+
     @Override
     public void setActiveServers(List<String> activeServers) {
         controller.setActiveServers(activeServers);
@@ -148,6 +148,31 @@ public class FXMLController extends AbstractFXMLController {
         setActiveList(activeUsers, this.userList, this.userListView, true);
     }
 
+    /**
+     * Adds the given users to the list of active users, except those listed already, and updates the display.
+     *
+     * @param names the users that joined the room
+     */
+    public void addActiveUsers(List<String> names) {
+        Platform.runLater(() -> {
+            for (String name : names) {
+                if (!userList.contains(name)) {
+                    userList.add(name);
+                }
+            }
+            mapNameToColor(names);
+        });
+    }
+
+    /**
+     * Removes the given users from the list of active users and updates the display.
+     *
+     * @param names the users that left the room
+     */
+    public void removeActiveUsers(List<String> names) {
+        Platform.runLater(() -> userList.removeAll(names));
+    }
+
     /**
      * Sets the list of active servers and updates the display.
      *
@@ -177,8 +202,7 @@ public class FXMLController extends AbstractFXMLController {
     private void setActiveList(List<String> listOfNames, ObservableList<String> observableList,
                                ListView<String> listView, boolean isUserList) {
         Platform.runLater(() -> {
-            observableList.clear();
-            observableList.addAll(listOfNames);
+            observableList.setAll(listOfNames);
             this.mapNameToColor(listOfNames);
             listView.setCellFactory(lv -> new Cell(isUserList));
         });
@@ -26,6 +26,8 @@ public class HelpDialog extends JDialog {
         + "Type /emotes to access a menu of emoticons.<br>"
         + "Type /join to join another chat room, "
         + "enter the room number such like: \"/join 59090\".<br>"
+        + "Type /subscribe to follow another room of the same server as well, such like: "
+        + "\"/subscribe 60000\", and /switch 60000 to chat in it, /switch to return.<br>"
         + "Type /help to access this help menu.");
 
     this.pack();
@@ -17,6 +17,7 @@ import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import javax.swing.BoxLayout;
@@ -44,6 +45,7 @@ public class MultiChatViewImpl extends JFrame implements MultiChatView {
   private Features feature;
   private JTextPane chatLog;
   private JTextPane activeUsers;
+  private final List<String> userList = new ArrayList<>(); //the displayed active users
   private JTextPane activeServers;
   private JTextArea chatField;
   private StringBuilder log;
@@ -148,9 +150,32 @@ public class MultiChatViewImpl extends JFrame implements MultiChatView {
 
   @Override
   public void setActiveUsers(List<String> activeUsersList) {
+    userList.clear();
+    userList.addAll(activeUsersList);
+    showActiveUsers();
+  }
+
+  @Override
+  public void addActiveUsers(List<String> names) {
+    for (String name : names) {
+      if (!userList.contains(name)) {
+        userList.add(name);
+      }
+    }
+    showActiveUsers();
+  }
+
+  @Override
+  public void removeActiveUsers(List<String> names) {
+    userList.removeAll(names);
+    showActiveUsers();
+  }
+
+  //displays the list of active users
+  private void showActiveUsers() {
     StringBuilder buildUserList = new StringBuilder();
     buildUserList.append("<h3> Active Users:</h3>");
-    for (String user : activeUsersList) {
+    for (String user : userList) {
       buildUserList.append(removeHTML(user) + "<br>");
     }
     activeUsers.setText(buildUserList.toString());
@@ -0,0 +1,58 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct ByteBuffers shared by every connection of a server. Connections only hold a buffer
+ * while it contains data, so idle connections cost no buffer memory and busy ones reuse the same native memory
+ * instead of allocating it anew.
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * Creates an empty pool of direct buffers of the given size.
+     *
+     * @param bufferSize the capacity of every buffer in the pool
+     * @param maxPooled  the most buffers kept by the pool when they are not in use
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    //returns the capacity of the buffers of this pool
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    //returns a cleared buffer, allocating a new one when the pool is empty
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    //returns the buffer to the pool, buffers not of this pool's size are left to the garbage collector
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The connection of a MultiChat server node to the MultiChatBusServer, serviced by the bus server's EventLoop. The
+ * lines the node publishes to a room are passed on to every other node subscribed to it, and the lines passed on to
+ * this node are queued and written as the connection accepts them, so a node that stops reading never holds up the
+ * others. A node that falls more than MAX_QUEUED_BYTES behind is dropped, and the nodes sharing its rooms are told it
+ * has left.
+ */
+class BusLink implements EventLoop.Handler {
+
+    //most bytes queued for a node before it is dropped for not reading the lines passed on to it
+    private static final int MAX_QUEUED_BYTES = 64 << 20;
+    //longest line a node may publish, the longest a client may send with the room's addressing
+    private static final int MAX_LINE_LENGTH = WireFormat.MAX_PAYLOAD + 1024;
+    //most queued lines written with a single gathering write
+    private static final int MAX_GATHERED = 64;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Map<String, Set<BusLink>> subscribers; //the nodes subscribed to every room, shared by every link
+    private final String node;
+    private SelectionKey key;
+    private final Set<String> rooms = new LinkedHashSet<>(); //the rooms this node subscribed to
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(); //the line being read, until its newline
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED];
+    private long queuedBytes = 0;
+    private boolean closed = false;
+    private boolean dropping = false; //whether the node fell too far behind and is about to be closed
+    private boolean flushScheduled = false; //whether the queued lines are about to be written
+
+    /**
+     * Creates the link of the given connection, which must be in non-blocking mode.
+     *
+     * @param channel     the connection of the node
+     * @param loop        the bus server's event loop
+     * @param subscribers the nodes subscribed to every room
+     * @param node        the number the node is known by to the other nodes
+     */
+    BusLink(SocketChannel channel, EventLoop loop, Map<String, Set<BusLink>> subscribers, int node) {
+        this.channel = channel;
+        this.loop = loop;
+        this.subscribers = subscribers;
+        this.node = String.valueOf(node);
+    }
+
+    //starts reading the node's lines, must be called on the loop's thread
+    void open() throws IOException {
+        key = loop.register(channel, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void handleReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (!closed && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException ioe) {
+            close(null);
+        }
+    }
+
+    //reads what the node sent, handling every complete line
+    private void read() throws IOException {
+        ByteBuffer buffer = loop.readBuffer();
+        buffer.clear();
+        int amountRead = channel.read(buffer);
+        if (amountRead < 0) {
+            close(null);
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining() && !closed) {
+            byte c = buffer.get();
+            if (c == '\n') {
+                handleLine(line.toString(StandardCharsets.UTF_8));
+                line.reset();
+            } else if (line.size() == MAX_LINE_LENGTH) {
+                close("sent a line longer than " + MAX_LINE_LENGTH + " bytes");
+            } else {
+                line.write(c);
+            }
+        }
+    }
+
+    /*
+    Handles a line sent by the node: a room it subscribes to, or a line published to a room, which is encoded once
+    and passed on to every other node of the room. A published line is kept as it is, down to its spaces.
+     */
+    private void handleLine(String input) {
+        if (input.startsWith("PUBLISH ")) {
+            int space = input.indexOf(' ', 8);
+            if (space < 0) {
+                System.out.println("Malformed line from node " + node + ": " + input);
+                return;
+            }
+            String room = input.substring(8, space);
+            Set<BusLink> nodes = subscribers.get(room);
+            if (nodes == null || nodes.size() < 2) {
+                return;
+            }
+            byte[] message = ("MESSAGE " + room + " " + node + input.substring(space) + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            for (BusLink other : nodes) {
+                if (other != this) {
+                    other.queue(message);
+                }
+            }
+        } else if (input.startsWith("SUBSCRIBE ")) {
+            String room = input.substring(10).trim();
+            rooms.add(room);
+            subscribers.computeIfAbsent(room, id -> new LinkedHashSet<>()).add(this);
+        } else if (!input.isEmpty()) {
+            System.out.println("Unknown line from node " + node + ": " + input);
+        }
+    }
+
+    /*
+    Queues the line for the node, dropping the node once it falls too far behind. The queue is written once the loop
+    has handled what it is handling, so the lines passed on from one read are written together. A node is dropped once
+    the loop is done with the line being passed on, as dropping it changes the nodes of the rooms being iterated.
+     */
+    private void queue(byte[] message) {
+        if (closed || dropping) {
+            return;
+        }
+        if (queuedBytes + message.length > MAX_QUEUED_BYTES) {
+            dropping = true;
+            loop.execute(() -> close("fell more than " + MAX_QUEUED_BYTES + " bytes behind"));
+            return;
+        }
+        outbound.add(ByteBuffer.wrap(message));
+        queuedBytes += message.length;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            loop.execute(() -> {
+                flushScheduled = false;
+                try {
+                    if (!closed) {
+                        flush();
+                    }
+                } catch (IOException ioe) {
+                    close(null);
+                }
+            });
+        }
+    }
+
+    //writes the queued lines until the connection accepts no more, then waits for it to become writable again
+    private void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer next : outbound) {
+                gathered[count++] = next;
+                if (count == MAX_GATHERED) {
+                    break;
+                }
+            }
+            queuedBytes -= channel.write(gathered, 0, count);
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+            if (gathered[count - 1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    //closes the connection and tells the nodes sharing its rooms that it has left, printing the reason if there is one
+    void close(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (reason != null) {
+            System.out.println("Dropping node " + node + ": " + reason);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            //the node is removed regardless
+        }
+        outbound.clear();
+        Set<BusLink> told = new LinkedHashSet<>();
+        byte[] left = ("NODELEFT " + node + "\n").getBytes(StandardCharsets.UTF_8);
+        for (String room : rooms) {
+            Set<BusLink> nodes = subscribers.get(room);
+            nodes.remove(this);
+            if (nodes.isEmpty()) {
+                subscribers.remove(room);
+            }
+            for (BusLink other : nodes) {
+                if (told.add(other)) {
+                    other.queue(left);
+                }
+            }
+        }
+    }
+}
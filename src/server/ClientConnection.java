@@ -0,0 +1,128 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An interface representing the transport of a single client connected to a MultiChatServer. A MultiChatServer Task
+ * writes its protocol lines and raw file data through a ClientConnection, which allows the same chat logic to be
+ * served over a blocking socket per thread or over a non-blocking channel shared by an event loop.
+ */
+interface ClientConnection {
+
+    /**
+     * Sends the given protocol line to the client, terminated by a line separator.
+     *
+     * @param line the line to be sent to the client
+     */
+    default void println(String line) {
+        send(Frame.of(line));
+    }
+
+    /**
+     * Sends the given encoded frame to the client. The same frame may be sent to many clients at once.
+     *
+     * @param frame the frame to be sent to the client
+     */
+    void send(Frame frame);
+
+    /**
+     * Hands the next given amount of raw bytes sent by the client (such as the contents of an uploaded file) to the
+     * given receiver instead of decoding them as protocol lines. For a client using version 2 of the wire format,
+     * the bytes are those of the DATA frames sent on the stream of the command being handled.
+     *
+     * @param size     the amount of raw bytes to be received
+     * @param receiver the receiver of the raw bytes
+     */
+    void receiveRaw(long size, RawReceiver receiver);
+
+    /**
+     * Sends the given header line to the client followed by the raw contents of the given range of the given file.
+     * For a client using version 2 of the wire format, the header opens a new stream and the contents follow as DATA
+     * frames of it.
+     *
+     * @param header the protocol line announcing the file data
+     * @param file   the file to be sent
+     * @param offset the position in the file the contents start at, 0 for the whole file
+     * @param length the amount of bytes of the file sent, cut off at the end of the file
+     * @throws IOException when the file cannot be opened or sent
+     */
+    void sendFile(String header, File file, long offset, long length) throws IOException;
+
+    /**
+     * Sends the given frame of a relayed file's stream to the client, which must use version 2 of the wire format.
+     * The first frame sent of a relay opens a new stream of the client. The chunk is released from its relay's bound
+     * once it has been written or discarded.
+     *
+     * @param chunk the frame of the relayed file's stream
+     */
+    void sendRelayed(FileRelay.Chunk chunk);
+
+    /**
+     * Stops reading the client's input once the input already read has been handled, until the input is resumed.
+     * While suspended, input the client sends waits in the socket, slowing the client down.
+     */
+    void suspendInput();
+
+    /**
+     * Resumes reading the client's input after it was suspended.
+     */
+    void resumeInput();
+
+    /**
+     * Compresses the frames sent to the client from now on into DEFLATED frames, once the client using version 2 of
+     * the wire format has asked for it. The DATA frames of files are sent as they are.
+     */
+    void compressOutput();
+
+    /**
+     * Returns whether the client has switched to version 2 of the wire format, and with it to receiving changes of
+     * the room's users as versioned deltas instead of full lists.
+     *
+     * @return whether the client uses version 2 of the wire format
+     */
+    boolean isUpgraded();
+
+    /**
+     * Returns the amount of output waiting to be written to the client.
+     *
+     * @return the amount of output waiting to be written to the client
+     */
+    int queuedOutput();
+
+    /**
+     * Returns the amount of frames dropped because the client could not keep up.
+     *
+     * @return the amount of frames dropped because the client could not keep up
+     */
+    long droppedFrames();
+
+    /**
+     * Closes the connection to the client. The Task of the connection is notified once the connection is closed.
+     */
+    void close();
+
+    /**
+     * A receiver of raw bytes that the client sends outside of the line protocol.
+     */
+    interface RawReceiver {
+
+        /**
+         * Accepts the next chunk of raw bytes. The chunk is only valid for the duration of this call.
+         *
+         * @param chunk the bytes received
+         */
+        void accept(ByteBuffer chunk);
+
+        /**
+         * Signifies that every requested byte has been received.
+         */
+        void complete();
+
+        /**
+         * Signifies that the connection failed before every requested byte was received.
+         */
+        void abort();
+    }
+}
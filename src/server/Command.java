@@ -0,0 +1,108 @@
+package server;
+
+/**
+ * The commands a client sends to a MultiChatServer. In the text protocol a command is recognized by the prefix of
+ * the line and its argument is the rest of the line, in version 2 of the wire format it is the opcode of the frame and
+ * its argument is the payload. A line or frame that is no other command is a chat message.
+ */
+enum Command {
+    QUIT(0x41, "/quit", true),
+    HELP(0x42, "/help", true),
+    EMOTES(0x43, "/emotes", true),
+    JOIN(0x44, "/join ", true),
+    ROOMCHANGEFAILED(0x45, "UNSUCCESSFULROOMCHANGE ", false),
+    VOTEKICK(0x46, "/votekick ", false),
+    WHISPER(0x47, "/whisper ", true),
+    PRIVATEMSG(0x48, "/privatemsg ", true),
+    FILE(0x49, "/file ", true),
+    PRIVATEFILE(0x4A, "/privatefile ", true),
+    REQUESTFILE(0x4B, "/requestfile ", true),
+    USERS(0x4C, "/users", true),
+    RESUMEFILE(0x4D, "/resumefile ", true),
+    REQUESTRANGE(0x4E, "/requestrange ", true),
+    COMPRESS(0x4F, "COMPRESS ", false),
+    SUBSCRIBE(0x50, "/subscribe ", true),
+    UNSUBSCRIBE(0x51, "/unsubscribe ", true),
+    MESSAGE(0x40, "", false);
+
+    //the trie of the commands' prefixes and the commands by opcode, both looked up without allocating
+    private static final Node PREFIXES = new Node();
+    private static final Command[] BY_CODE = new Command[128];
+
+    static {
+        for (Command command : values()) {
+            if (command != MESSAGE) {
+                PREFIXES.insert(command);
+            }
+            BY_CODE[command.code] = command;
+        }
+    }
+
+    private final byte code;
+    private final String prefix;
+    private final boolean ignoreCase;
+
+    Command(int code, String prefix, boolean ignoreCase) {
+        this.code = (byte) code;
+        this.prefix = prefix;
+        this.ignoreCase = ignoreCase;
+    }
+
+    //returns the opcode of the command in version 2 of the wire format
+    byte code() {
+        return code;
+    }
+
+    //returns the argument of the command in the given text line, the rest of the line after its prefix
+    String argumentOf(String line) {
+        return line.substring(prefix.length());
+    }
+
+    /*
+    Returns the command of the given text line. The line is matched against the prefixes one character at a time, so
+    a chat message is usually told apart after its first character and the line is never copied or case-converted.
+     */
+    static Command parse(String line) {
+        Node node = PREFIXES;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            node = c < node.next.length ? node.next[c] : null;
+            if (node == null) {
+                return MESSAGE;
+            }
+            if (node.command != null) {
+                return node.command;
+            }
+        }
+        return MESSAGE;
+    }
+
+    //returns the command with the given opcode, or null when no command has it
+    static Command forCode(byte code) {
+        return code < 0 ? null : BY_CODE[code];
+    }
+
+    //a node of the trie of prefixes, reached by the characters of the prefix so far
+    private static final class Node {
+        private final Node[] next = new Node[128]; //the prefixes are ASCII
+        private Command command; //the command whose whole prefix leads here, null for inner nodes
+
+        //adds the prefix of the command, whose characters lead to the same nodes in either case if it ignores case
+        private void insert(Command command) {
+            Node node = this;
+            for (char c : command.prefix.toCharArray()) {
+                Node child = node.next[c];
+                if (child == null) {
+                    child = new Node();
+                    node.next[c] = child;
+                }
+                if (command.ignoreCase) {
+                    node.next[Character.toLowerCase(c)] = child;
+                    node.next[Character.toUpperCase(c)] = child;
+                }
+                node = child;
+            }
+            node.command = command;
+        }
+    }
+}
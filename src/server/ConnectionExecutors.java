@@ -0,0 +1,60 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors that run the blocking handler of every connection to a server. By default connections are
+ * run by a fixed pool of platform threads. When started with the system property "multichat.io=virtual" on Java 21 or
+ * newer, every connection is instead run by its own virtual thread, so the amount of connections is not limited by
+ * the size of a pool.
+ */
+final class ConnectionExecutors {
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * Returns the executor to run connection handlers on, as chosen by the "multichat.io" system property.
+     *
+     * @param poolSize the amount of threads of the fixed pool, unused for virtual threads
+     * @return the executor to run connection handlers on
+     */
+    static ExecutorService newConnectionExecutor(int poolSize) {
+        if (System.getProperty("multichat.io", "pool").equals("virtual")) {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                return virtualThreads;
+            }
+            System.out.println("Virtual threads require Java 21 or newer, using a pool of " + poolSize
+                    + " threads instead.");
+        }
+        return Executors.newFixedThreadPool(poolSize);
+    }
+
+    /**
+     * Returns the executor to run the writer tasks of blocking connections on. A writer task only runs while its
+     * connection has output queued, so threads are only taken by the clients currently being written to.
+     *
+     * @return the executor to run writer tasks on
+     */
+    static ExecutorService newWriterExecutor() {
+        if (System.getProperty("multichat.io", "pool").equals("virtual")) {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                return virtualThreads;
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    //returns an executor running every task on a new virtual thread, or null when the JVM has no virtual threads
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread that owns a Selector and services every channel registered to it. Work that touches a registered
+ * channel from another thread is handed to the loop through execute, so that channels are only ever read, written and
+ * re-registered by the loop's own thread.
+ */
+class EventLoop implements Executor, Runnable {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //tasks waiting for their deadline, only touched by the loop's own thread
+    private final Queue<ScheduledTask> scheduledTasks =
+            new PriorityQueue<>(Comparator.comparingLong(scheduled -> scheduled.deadline));
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16384);
+
+    /**
+     * Creates an event loop with its own Selector, run by a thread of the given name once started.
+     *
+     * @param name the name of the event loop's thread
+     * @throws IOException when the Selector cannot be opened
+     */
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    //starts the thread of this event loop
+    void start() {
+        thread.start();
+    }
+
+    //returns whether the calling thread is the thread of this event loop
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    //returns the buffer every connection of this loop reads into, its contents are only valid until the next read
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    //registers the channel to this loop's Selector, must be called on the loop's thread
+    SelectionKey register(SelectableChannel channel, int interestOps, Handler handler)
+            throws ClosedChannelException {
+        return channel.register(selector, interestOps, handler);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    //runs the task on this loop once the given amount of milliseconds has passed
+    void schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        execute(() -> scheduledTasks.add(new ScheduledTask(deadline, task)));
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                select();
+                runTasks();
+                runScheduledTasks();
+                Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
+                while (readyKeys.hasNext()) {
+                    SelectionKey key = readyKeys.next();
+                    readyKeys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    if (key.isValid()) {
+                        try {
+                            handler.handleReady(key);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    //waits for ready channels, but no longer than until the next task is due
+    private void select() throws IOException {
+        //tasks handed over by the loop itself do not wake the selector, so they must not wait on a select
+        if (!tasks.isEmpty()) {
+            selector.selectNow();
+            return;
+        }
+        ScheduledTask next = scheduledTasks.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long waitNanos = next.deadline - System.nanoTime();
+        if (waitNanos <= 0) {
+            selector.selectNow();
+        } else {
+            selector.select(TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+        }
+    }
+
+    //runs the scheduled tasks whose deadline has passed
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        ScheduledTask next;
+        while ((next = scheduledTasks.peek()) != null && next.deadline - now <= 0) {
+            scheduledTasks.poll();
+            try {
+                next.task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //runs the tasks handed to this loop by other threads (and by itself) since the last select
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //a task to be run once the loop's clock passes its deadline
+    private static class ScheduledTask {
+        private final long deadline;
+        private final Runnable task;
+
+        private ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A handler of the readiness events of a channel registered to an EventLoop.
+     */
+    interface Handler {
+
+        /**
+         * Handles the ready operations of the given key.
+         *
+         * @param key the selected key of the handler's channel
+         */
+        void handleReady(SelectionKey key);
+    }
+}
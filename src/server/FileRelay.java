@@ -0,0 +1,130 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pipe streaming a file from the connection of the client uploading it straight to the connection of the client
+ * receiving it, without the file ever being stored. Every chunk of the upload is sent on a stream of the receiver's
+ * connection as soon as it arrives, so the receiver gets the first bytes while the rest are still being uploaded.
+ *
+ * <p>The bytes waiting to be written to the receiver are bounded by the system property
+ * "multichat.relay.bufferBytes" (1MB by default). Once the receiver falls that far behind, the sender's input is
+ * suspended until the receiver has taken half of them, so a slow receiver slows the upload down instead of filling
+ * the server's memory.
+ *
+ * <p>Only clients using version 2 of the wire format can receive a relayed file, since its streams let the file's
+ * frames be interleaved with the rest of the receiver's output and let the receiver be told when an upload fails
+ * partway.
+ */
+class FileRelay {
+
+    private static final long BUFFER_BYTES = Long.getLong("multichat.relay.bufferBytes", 1 << 20);
+
+    private final ClientConnection sender;
+    private final ClientConnection receiver;
+    private int stream = 0; //the receiver's stream of the file, only used by the receiver's writer
+
+    //guards the amount of bytes waiting for the receiver and whether the sender's input is suspended
+    private final ReentrantLock lock = new ReentrantLock();
+    private long buffered = 0;
+    private boolean suspended = false;
+
+    /**
+     * Creates a pipe from the given sender's connection to the given receiver's connection.
+     *
+     * @param sender   the connection the file is uploaded over
+     * @param receiver the connection of the file's receiver, which must use version 2 of the wire format
+     */
+    FileRelay(ClientConnection sender, ClientConnection receiver) {
+        this.sender = sender;
+        this.receiver = receiver;
+    }
+
+    //opens a new stream of the receiver with the given line announcing the file
+    void open(String header) {
+        receiver.sendRelayed(new Chunk(this, header, null));
+    }
+
+    //sends the next bytes of the upload to the receiver, suspending the sender's input when the receiver lags behind
+    void write(ByteBuffer bytes) {
+        byte[] data = new byte[WireFormat.HEADER_LENGTH + bytes.remaining()];
+        bytes.get(data, WireFormat.HEADER_LENGTH, bytes.remaining());
+        lock.lock();
+        try {
+            buffered += data.length - WireFormat.HEADER_LENGTH;
+            if (!suspended && buffered >= BUFFER_BYTES) {
+                suspended = true;
+                sender.suspendInput();
+            }
+        } finally {
+            lock.unlock();
+        }
+        receiver.sendRelayed(new Chunk(this, null, data));
+    }
+
+    //tells the receiver with the given line on the file's stream that the upload failed
+    void fail(String line) {
+        receiver.sendRelayed(new Chunk(this, line, null));
+    }
+
+    //takes the chunk's bytes as written to (or discarded for) the receiver, resuming the sender's input
+    private void taken(Chunk chunk) {
+        lock.lock();
+        try {
+            if (chunk.taken) {
+                return;
+            }
+            chunk.taken = true;
+            buffered -= chunk.data.length - WireFormat.HEADER_LENGTH;
+            if (suspended && buffered <= BUFFER_BYTES / 2) {
+                suspended = false;
+                sender.resumeInput();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A frame of a relayed file's stream, queued for the receiver like any other output. Its encoding is only made
+     * by the receiver's writer, which assigns the stream its id once it writes the first frame of the stream.
+     */
+    static final class Chunk {
+        private final FileRelay relay;
+        private final String line; //the line of the frame, or null for a DATA frame
+        private final byte[] data; //the DATA frame, with room for its header before the payload
+        private boolean taken = false; //whether the bytes have been released from the bound, guarded by the lock
+
+        private Chunk(FileRelay relay, String line, byte[] data) {
+            this.relay = relay;
+            this.line = line;
+            this.data = data;
+        }
+
+        //returns whether the chunk is the first of its stream, which is then encoded with a new stream id
+        boolean opensStream() {
+            return relay.stream == 0;
+        }
+
+        //encodes the chunk as a frame of its stream, with the given id when it is the first of the stream
+        byte[] encode(int newStream) {
+            if (relay.stream == 0) {
+                relay.stream = newStream;
+            }
+            if (line != null) {
+                return Frame.encode(line, true, relay.stream);
+            }
+            WireFormat.putHeader(ByteBuffer.wrap(data), WireFormat.DATA, relay.stream,
+                    data.length - WireFormat.HEADER_LENGTH);
+            return data;
+        }
+
+        //releases the chunk's bytes from the bound of the relay once they have been written or discarded
+        void release() {
+            if (data != null) {
+                relay.taken(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The files uploaded to a chat room, stored once per distinct content. Every upload is hashed with SHA-256 while it
+ * is written to a staging file, and once complete its content is kept as a blob named by its hash. An upload whose
+ * content is already stored only adds a reference to the existing blob and its staging file is deleted, which
+ * usually happens before any of it has been written back to the disk. Every user's file names refer to blobs, and a
+ * blob is deleted once no user refers to it anymore.
+ *
+ * <p>An upload that is cut off partway, such as by a dropped connection, can be kept with its staging file and hash
+ * so far, and the same owner uploading the same file again continues it where it stopped. A kept upload is discarded
+ * once it has waited longer than the system property "multichat.files.partialMillis" (10 minutes by default).
+ *
+ * <p>References only last as long as the server runs, so the blobs and staging files of an earlier run are
+ * deleted when the store is created.
+ */
+class FileStore {
+
+    private static final long PARTIAL_MILLIS = Long.getLong("multichat.files.partialMillis", 600000);
+
+    private final File blobs;
+    private final File staging;
+    private final AtomicLong nextStaging = new AtomicLong(0);
+
+    //guards the references of every user and the reference counts of the blobs
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Map<String, Blob>> references = new HashMap<>();
+    private final Map<String, Blob> blobsByHash = new HashMap<>();
+    private final Map<String, Upload> partials = new HashMap<>(); //the uploads cut off partway, by owner and name
+    private long deduplicatedBytes = 0; //the bytes of uploads that were not stored again, guarded by the lock
+
+    /**
+     * Creates an empty store keeping its blobs and staging files in the given directory.
+     *
+     * @param directory the directory of the store
+     */
+    FileStore(File directory) {
+        this.blobs = new File(directory, "blobs");
+        this.staging = new File(directory, "staging");
+        for (File dir : new File[]{blobs, staging}) {
+            deleteContents(dir);
+            dir.mkdirs();
+        }
+    }
+
+    //starts storing a file of the given size uploaded by the given owner under the given name
+    Upload begin(String owner, String fileName, long fileSize) throws IOException {
+        File file = new File(staging, Long.toString(nextStaging.incrementAndGet()));
+        return new Upload(owner, fileName, fileSize, file);
+    }
+
+    /*
+    Continues storing the file of the given size the given owner was uploading under the given name when the upload
+    was cut off, or starts storing it when no such upload has been kept. The upload's received bytes tell where the
+    rest of the file starts.
+     */
+    Upload resume(String owner, String fileName, long fileSize) throws IOException {
+        lock.lock();
+        try {
+            expirePartials();
+            Upload partial = partials.remove(owner + ":" + fileName);
+            if (partial != null) {
+                if (partial.fileSize == fileSize) {
+                    return partial;
+                }
+                partial.abort();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return begin(owner, fileName, fileSize);
+    }
+
+    //returns the stored file the given owner uploaded under the given name, or null when there is none
+    File lookup(String owner, String fileName) {
+        lock.lock();
+        try {
+            Map<String, Blob> files = references.get(owner);
+            Blob blob = files == null ? null : files.get(fileName);
+            return blob == null ? null : blob.file;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //drops every reference of the given owner, deleting the blobs nobody else refers to
+    void release(String owner) {
+        lock.lock();
+        try {
+            Map<String, Blob> files = references.remove(owner);
+            if (files != null) {
+                for (Blob blob : files.values()) {
+                    dereference(blob);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //returns the amount of blobs and the bytes stored, and the bytes of uploads that were not stored again
+    String usage() {
+        lock.lock();
+        try {
+            long stored = 0;
+            for (Blob blob : blobsByHash.values()) {
+                stored += blob.size;
+            }
+            return blobsByHash.size() + " blobs, " + stored + " bytes stored, " + deduplicatedBytes
+                    + " bytes deduplicated, " + partials.size() + " partial uploads kept";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //removes a reference from the blob, deleting it with its last reference, must hold the lock
+    private void dereference(Blob blob) {
+        if (--blob.references == 0) {
+            blobsByHash.remove(blob.hash);
+            if (!blob.file.delete()) {
+                System.out.println("Failure to delete stored file: " + blob.file);
+            }
+        }
+    }
+
+    //discards the kept uploads that have waited too long to be continued, must hold the lock
+    private void expirePartials() {
+        long now = System.currentTimeMillis();
+        partials.values().removeIf(partial -> {
+            if (now - partial.keptAt < PARTIAL_MILLIS) {
+                return false;
+            }
+            partial.abort();
+            return true;
+        });
+    }
+
+    //deletes every file in the given directory, leaving the directory itself
+    private static void deleteContents(File directory) {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+    }
+
+    //returns the lowercase hexadecimal digits of the given bytes
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    //content stored once, with the amount of user file names referring to it
+    private static final class Blob {
+        private final String hash;
+        private final File file;
+        private final long size;
+        private int references = 0;
+
+        private Blob(String hash, File file, long size) {
+            this.hash = hash;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A file being uploaded to the store, written to a staging file and hashed as its chunks arrive. It is only
+     * referred to by its name once it is committed.
+     */
+    final class Upload {
+        private final String owner;
+        private final String fileName;
+        private final long fileSize; //the size the file was announced with
+        private final File file;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long size = 0;
+        private long keptAt; //when the upload was kept to be continued, guarded by the lock
+
+        private Upload(String owner, String fileName, long fileSize, File file) throws IOException {
+            this.owner = owner;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                channel.close();
+                file.delete();
+                throw new IOException("SHA-256 is not available", nsae);
+            }
+        }
+
+        //returns the bytes of the file received so far
+        long received() {
+            return size;
+        }
+
+        //writes the next chunk of the file and adds it to the hash
+        void write(ByteBuffer chunk) throws IOException {
+            digest.update(chunk.duplicate());
+            size += chunk.remaining();
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+
+        /*
+        Stores the completely uploaded file under its name. When its content is stored already, the staging file is
+        deleted and the name refers to the existing blob instead.
+         */
+        void commit() throws IOException {
+            channel.close();
+            String hash = toHex(digest.digest());
+            lock.lock();
+            try {
+                Blob blob = blobsByHash.get(hash);
+                if (blob == null) {
+                    File stored = new File(blobs, hash);
+                    Files.move(file.toPath(), stored.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    blob = new Blob(hash, stored, size);
+                    blobsByHash.put(hash, blob);
+                } else {
+                    file.delete();
+                    deduplicatedBytes += size;
+                }
+                blob.references++;
+                Blob replaced = references.computeIfAbsent(owner, name -> new HashMap<>()).put(fileName, blob);
+                if (replaced != null) {
+                    dereference(replaced);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //keeps the partly uploaded file to be continued by a later upload of the same file, replacing any kept before
+        void keep() {
+            lock.lock();
+            try {
+                expirePartials();
+                keptAt = System.currentTimeMillis();
+                Upload replaced = partials.put(owner + ":" + fileName, this);
+                if (replaced != null) {
+                    replaced.abort();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //discards the partly uploaded file
+        void abort() {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                //the file is deleted regardless
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable line of the MultiChat protocol, encoded once into its UTF-8 bytes (including the line separator). A
+ * broadcast creates a single Frame and hands that same Frame to every recipient, so formatting and encoding a message
+ * costs the same no matter how many clients are in the room. Its encoding as a frame of version 2 of the wire format
+ * is only made once the first client using that version is sent the frame, and is then shared as well.
+ *
+ * <p>A frame is either critical, such as a reply to the client's own request, or droppable, such as room chatter
+ * that a client too slow to keep up with the room may miss.
+ */
+final class Frame {
+
+    private final String line;
+    private final int stream; //the stream of the frame in version 2 of the wire format
+    private final byte[] bytes;
+    private final boolean droppable;
+    private volatile byte[] binary; //the encoding in version 2 of the wire format, made on first use
+
+    private Frame(String line, int stream, boolean droppable) {
+        this.line = line;
+        this.stream = stream;
+        this.bytes = encode(line, false, 0);
+        this.droppable = droppable;
+    }
+
+    /**
+     * Encodes the given protocol line into a critical frame.
+     *
+     * @param line the line, without a line separator
+     * @return the encoded frame of the line
+     */
+    static Frame of(String line) {
+        return new Frame(line, 0, false);
+    }
+
+    /**
+     * Encodes the given protocol line into a critical frame on the given stream, such as the answer to an upload on
+     * the upload's stream. In the text protocol the line is sent like any other.
+     *
+     * @param line   the line, without a line separator
+     * @param stream the stream of the frame in version 2 of the wire format
+     * @return the encoded frame of the line
+     */
+    static Frame of(String line, int stream) {
+        return new Frame(line, stream, false);
+    }
+
+    /**
+     * Encodes the given protocol line into a frame that may be dropped for clients that cannot keep up.
+     *
+     * @param line the line, without a line separator
+     * @return the encoded frame of the line
+     */
+    static Frame droppable(String line) {
+        return new Frame(line, 0, true);
+    }
+
+    //returns the same line as a frame on the given stream, such as the channel of a room for its subscribers
+    Frame onStream(int stream) {
+        return stream == this.stream ? this : new Frame(line, stream, droppable);
+    }
+
+    //returns whether the frame may be dropped for clients that cannot keep up
+    boolean isDroppable() {
+        return droppable;
+    }
+
+    //returns a new read-only view of the encoded bytes, so every recipient can track its own position
+    ByteBuffer buffer(boolean binary) {
+        return ByteBuffer.wrap(binary ? binary() : bytes).asReadOnlyBuffer();
+    }
+
+    //writes the encoded bytes to the given stream
+    void writeTo(OutputStream out, boolean binary) throws IOException {
+        out.write(binary ? binary() : bytes);
+    }
+
+    //returns the encoding in version 2 of the wire format, encoding it when no one has yet
+    private byte[] binary() {
+        byte[] encoded = binary;
+        if (encoded == null) {
+            //racing threads encode the same bytes, so whichever encoding is kept does not matter
+            encoded = encode(line, true, stream);
+            binary = encoded;
+        }
+        return encoded;
+    }
+
+    /*
+    Encodes the line on its own, either followed by a line separator or as a frame of version 2 of the wire format on
+    the given stream, where the line's keyword becomes the opcode and the rest of the line the payload.
+     */
+    static byte[] encode(String line, boolean binary, int stream) {
+        if (!binary) {
+            return (line + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        int space = line.indexOf(' ');
+        Opcode opcode = Opcode.forKeyword(space < 0 ? line : line.substring(0, space));
+        String argument = opcode == Opcode.NOTICE ? line : space < 0 ? "" : line.substring(space + 1);
+        byte[] payload = argument.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocate(WireFormat.HEADER_LENGTH + payload.length);
+        WireFormat.putHeader(encoded, opcode.code(), stream, payload.length);
+        encoded.put(payload);
+        return encoded.array();
+    }
+}
@@ -0,0 +1,260 @@
+package server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the bytes a client sends into calls to its MultiChatServer Task, whichever way the bytes arrive. A
+ * connection starts out in the newline-delimited text protocol, where the contents of an uploaded file are a run of
+ * raw bytes following its command. Once the client accepts the offer of version 2 of the wire format, the rest of
+ * its bytes are decoded as length-prefixed frames, where the contents of a file arrive as DATA frames of the stream
+ * its command was sent on, so a file that is shorter or longer than announced can never be mistaken for commands.
+ *
+ * <p>A decoder is only used by the thread that reads the connection.
+ */
+class InboundDecoder {
+
+    private final MultiChatServer.Task task;
+    private final Runnable onUpgrade;
+    private boolean binary = false;
+    private boolean firstLine = true;
+    private boolean stopped = false;
+
+    //the line (or frame payload) being decoded
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength = 0;
+
+    //the raw bytes still expected from a text client and who receives them
+    private long rawRemaining = 0;
+    private ClientConnection.RawReceiver rawReceiver;
+
+    //the frame being decoded from a version 2 client
+    private final ByteBuffer header = ByteBuffer.allocate(WireFormat.HEADER_LENGTH);
+    private boolean inPayload = false; //whether the header has been received and the payload is being received
+    private Command command; //null for DATA frames and frames of unknown commands
+    private int stream;
+    private int payloadRemaining;
+    private RawStream dataStream; //the receiver of the DATA frame being decoded, null when no one expects it
+    //the stream of the command being handled, which the uploads it starts are received on
+    private int currentStream = 0;
+    private final Map<Integer, RawStream> rawStreams = new HashMap<>();
+
+    /**
+     * Creates a decoder in the text protocol that hands the client's lines and commands to the given task.
+     *
+     * @param task      the task of the client
+     * @param onUpgrade run when the client accepts version 2, before any of its frames are decoded
+     */
+    InboundDecoder(MultiChatServer.Task task, Runnable onUpgrade) {
+        this.task = task;
+        this.onUpgrade = onUpgrade;
+    }
+
+    /**
+     * Decodes the given bytes, handing every complete line or frame to the task. Incomplete lines and frames are
+     * kept until the rest of their bytes are decoded.
+     *
+     * @param bytes the bytes received from the client
+     * @throws ProtocolException when the client sent a line or frame that is too long or malformed
+     */
+    void decode(ByteBuffer bytes) throws ProtocolException {
+        while (bytes.hasRemaining() && !stopped) {
+            if (binary) {
+                decodeFrame(bytes);
+            } else if (rawRemaining > 0) {
+                decodeRaw(bytes);
+            } else {
+                decodeLine(bytes);
+            }
+        }
+    }
+
+    //hands the raw bytes of a text client's upload to its receiver
+    private void decodeRaw(ByteBuffer bytes) {
+        int chunkSize = (int) Math.min(rawRemaining, bytes.remaining());
+        ByteBuffer chunk = bytes.slice();
+        chunk.limit(chunkSize);
+        bytes.position(bytes.position() + chunkSize);
+        rawRemaining -= chunkSize;
+        ClientConnection.RawReceiver receiver = rawReceiver;
+        receiver.accept(chunk);
+        if (rawRemaining == 0) {
+            rawReceiver = null;
+            receiver.complete();
+        }
+    }
+
+    //decodes the bytes of a line until its end or until the raw bytes of an upload start
+    private void decodeLine(ByteBuffer bytes) throws ProtocolException {
+        while (bytes.hasRemaining() && !binary && rawRemaining == 0 && !stopped) {
+            byte b = bytes.get();
+            if (b == '\n') {
+                int length = lineLength > 0 && lineBuffer[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                //a carriage return inside the line would end it early for the clients it is passed on to
+                for (int i = 0; i < length; i++) {
+                    if (lineBuffer[i] == '\r') {
+                        throw new ProtocolException("Line break inside a line.");
+                    }
+                }
+                String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+                lineLength = 0;
+                if (firstLine && line.equals(WireFormat.PROTOCOL_LINE)) {
+                    binary = true;
+                    onUpgrade.run();
+                } else {
+                    task.handleLine(line);
+                }
+                firstLine = false;
+            } else {
+                append(b);
+            }
+        }
+    }
+
+    //decodes the header or payload of a frame
+    private void decodeFrame(ByteBuffer bytes) throws ProtocolException {
+        if (!inPayload) {
+            while (header.hasRemaining() && bytes.hasRemaining()) {
+                header.put(bytes.get());
+            }
+            if (!header.hasRemaining()) {
+                startFrame();
+            }
+            return;
+        }
+        int chunkSize = Math.min(payloadRemaining, bytes.remaining());
+        if (dataStream != null) {
+            ByteBuffer chunk = bytes.slice();
+            chunk.limit((int) Math.min(chunkSize, dataStream.remaining));
+            dataStream.accept(chunk);
+        } else if (command != null) {
+            for (int i = 0; i < chunkSize; i++) {
+                append(bytes.get(bytes.position() + i));
+            }
+        }
+        bytes.position(bytes.position() + chunkSize);
+        payloadRemaining -= chunkSize;
+        if (payloadRemaining == 0) {
+            endFrame();
+        }
+    }
+
+    //reads the header of the frame once it has been received whole
+    private void startFrame() throws ProtocolException {
+        header.flip();
+        byte opcode = header.get();
+        stream = header.getInt();
+        payloadRemaining = header.getInt();
+        header.clear();
+        inPayload = true;
+        boolean data = opcode == WireFormat.DATA;
+        int maxPayload = data ? WireFormat.MAX_DATA_PAYLOAD : WireFormat.MAX_PAYLOAD;
+        if (payloadRemaining < 0 || payloadRemaining > maxPayload) {
+            throw new ProtocolException("Frame of " + payloadRemaining + " bytes.");
+        }
+        //the payload of a frame no one expects is skipped, so newer clients do not have to know what it understands
+        command = data ? null : Command.forCode(opcode);
+        dataStream = data ? rawStreams.get(stream) : null;
+        if (payloadRemaining == 0) {
+            endFrame();
+        }
+    }
+
+    //hands the frame to its command or completes its stream once every byte of the frame has been received
+    private void endFrame() {
+        inPayload = false;
+        if (dataStream != null) {
+            if (dataStream.remaining == 0) {
+                rawStreams.remove(stream);
+                dataStream.receiver.complete();
+            }
+            dataStream = null;
+        } else if (command != null) {
+            String argument = new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8);
+            lineLength = 0;
+            currentStream = stream;
+            try {
+                task.handleCommand(command, argument, stream);
+            } finally {
+                currentStream = 0;
+            }
+        }
+    }
+
+    /*
+    Appends a byte to the line or payload being decoded. The payload of a frame may not break into lines, as every
+    command is passed on to other clients, servers and the master server as one line of its own.
+     */
+    private void append(byte b) throws ProtocolException {
+        if (binary && (b == '\n' || b == '\r')) {
+            throw new ProtocolException("Line break in the payload of a frame.");
+        }
+        if (lineLength == WireFormat.MAX_PAYLOAD) {
+            throw new ProtocolException("Line of more than " + WireFormat.MAX_PAYLOAD + " bytes.");
+        }
+        if (lineLength == lineBuffer.length) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, WireFormat.MAX_PAYLOAD));
+        }
+        lineBuffer[lineLength++] = b;
+    }
+
+    /**
+     * Hands the next given amount of raw bytes sent by the client to the receiver. For a text client they are the
+     * bytes following the current line, for a version 2 client the DATA frames of the stream of the current command.
+     *
+     * @param size     the amount of raw bytes to be received
+     * @param receiver the receiver of the raw bytes
+     */
+    void receiveRaw(long size, ClientConnection.RawReceiver receiver) {
+        if (size <= 0) {
+            receiver.complete();
+        } else if (binary) {
+            RawStream replaced = rawStreams.put(currentStream, new RawStream(size, receiver));
+            if (replaced != null) {
+                replaced.receiver.abort();
+            }
+        } else {
+            rawRemaining = size;
+            rawReceiver = receiver;
+        }
+    }
+
+    //stops decoding, the rest of the bytes given to decode are ignored
+    void stop() {
+        stopped = true;
+    }
+
+    //aborts every upload that has not been received whole
+    void abort() {
+        stopped = true;
+        if (rawReceiver != null) {
+            rawReceiver.abort();
+            rawReceiver = null;
+        }
+        for (RawStream rawStream : rawStreams.values()) {
+            rawStream.receiver.abort();
+        }
+        rawStreams.clear();
+    }
+
+    //an upload of a version 2 client and the amount of its bytes still expected
+    private static class RawStream {
+        private long remaining;
+        private final ClientConnection.RawReceiver receiver;
+
+        private RawStream(long remaining, ClientConnection.RawReceiver receiver) {
+            this.remaining = remaining;
+            this.receiver = receiver;
+        }
+
+        //hands the chunk to the receiver
+        private void accept(ByteBuffer chunk) {
+            remaining -= chunk.remaining();
+            receiver.accept(chunk);
+        }
+    }
+}
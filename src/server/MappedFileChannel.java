@@ -0,0 +1,79 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file sent to a client, read through memory-mapped windows of its FileChannel. Every connection is secured by TLS,
+ * so a file's bytes have to pass through the connection's encryption and cannot be handed to the socket with
+ * FileChannel.transferTo. Mapping the file instead copies its bytes straight from the page cache into the buffer
+ * about to be encrypted, without a read system call or a bounce through a temporary buffer for every chunk.
+ *
+ * <p>Only the bytes the file had when it was opened are read, and only those of the range it was opened for.
+ */
+class MappedFileChannel implements ReadableByteChannel {
+
+    //most of a file mapped at once, so sending large files does not reserve their whole size of address space
+    private static final long WINDOW_SIZE = 1 << 24;
+
+    private final FileChannel file;
+    private final long end; //the position in the file reading stops at
+    private long position; //the position in the file the next read starts at
+    private MappedByteBuffer window; //the mapped part of the file the next read is copied from
+    private boolean closed = false;
+
+    /**
+     * Opens the given file to read the given amount of bytes from the given position, such as where a download that
+     * was cut off stopped or where a range of the file starts. Reading stops early at the end of the file.
+     *
+     * @param file     the file to be read
+     * @param position the position in the file the first read starts at
+     * @param length   the amount of bytes to be read
+     * @throws IOException when the file cannot be opened
+     */
+    MappedFileChannel(File file, long position, long length) throws IOException {
+        this.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long size = this.file.size();
+        this.position = Math.min(position, size);
+        this.end = this.position + Math.min(length, size - this.position);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (position == end) {
+            return -1;
+        }
+        if (window == null || !window.hasRemaining()) {
+            window = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, end - position));
+        }
+        int amount = Math.min(window.remaining(), dst.remaining());
+        ByteBuffer part = window.slice();
+        part.limit(amount);
+        dst.put(part);
+        window.position(window.position() + amount);
+        position += amount;
+        return amount;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        //the mapped window is unmapped once it is garbage collected, closing the channel does not wait for that
+        closed = true;
+        window = null;
+        file.close();
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A server that connects the MultiChat server nodes sharing the same rooms, passing the lines every node publishes to
+ * a room on to the other nodes subscribed to it (see TcpRoomBus).
+ */
+public class MultiChatBusServer {
+
+    /**
+     * Runs this server, serving the connections of every node from a single event loop thread. A published line is
+     * encoded once for all the nodes it is passed on to, and the lines passed on to a node are written together once
+     * the loop has handled what it read, so however many nodes and rooms connect, the bus server needs no more threads.
+     *
+     * @param args command line arguments, first argument optionally describes the port of the bus server, 52000 if
+     *             there is none
+     * @throws IOException throws when the bus server's port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 52000;
+        System.out.println("MultiChat Bus Server is running on port " + port + "...");
+        EventLoop loop = new EventLoop("MultiChat-bus");
+        Map<String, Set<BusLink>> subscribers = new HashMap<>();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        loop.execute(() -> {
+            try {
+                loop.register(server, SelectionKey.OP_ACCEPT, new NodeAcceptor(server, loop, subscribers));
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                System.exit(-1);
+            }
+        });
+        loop.start();
+    }
+
+    //accepts the connections of the nodes, numbering them in the order they connected
+    private static class NodeAcceptor implements EventLoop.Handler {
+
+        private final ServerSocketChannel server;
+        private final EventLoop loop;
+        private final Map<String, Set<BusLink>> subscribers;
+        private int lastNode = 0;
+
+        private NodeAcceptor(ServerSocketChannel server, EventLoop loop, Map<String, Set<BusLink>> subscribers) {
+            this.server = server;
+            this.loop = loop;
+            this.subscribers = subscribers;
+        }
+
+        @Override
+        public void handleReady(SelectionKey key) {
+            SocketChannel channel;
+            try {
+                while ((channel = server.accept()) != null) {
+                    channel.configureBlocking(false);
+                    //the lines of one read are written together already, and must not wait for earlier ones
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    new BusLink(channel, loop, subscribers, ++lastNode).open();
+                }
+            } catch (IOException ioe) {
+                System.out.println("Node input/output failed to connect: " + ioe);
+            }
+        }
+    }
+}
@@ -1,14 +1,11 @@
 package server;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashSet;
-import java.util.Scanner;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * A server that keeps track of active MultiChat servers and updates the MultiChat servers on the
@@ -16,97 +13,81 @@ import java.util.concurrent.Executors;
  */
 public class MultiChatMasterServer {
 
-  //list of active MultiChat servers running and connected to this server
-  private static Set<String> activeServers = new HashSet<>();
-  //the set of writers of the output streams to every MultiChat server
-  private static Set<PrintWriter> outputWriters = new HashSet<>();
-
   /**
-   * Runs this server and runs a function object for every server connection to this server. Every
-   * server connected to this master server is updated on the list of servers connected to it.
+   * Runs this server, serving the connections of every MultiChat server from a single event loop
+   * thread. Every server connected to this master server is updated on the list of servers
+   * connected to it, with a versioned change per room added or removed once it subscribes, and a
+   * subscribed server that stops sending heartbeats is dropped (see ServerRegistry). However many
+   * servers and rooms connect, the master server needs no more threads. It also keeps the room of
+   * every user of a subscribed server, and routes private messages between the servers by it.
    *
    * @param args command line arguments, first argument describes the amount of active MultiChat
    *             servers in one time possible
-   * @throws IOException throws when a connection to a MultiChatServer's socket fails
+   * @throws IOException throws when the master server's port cannot be bound
    */
   public static void main(String[] args) throws IOException {
     System.out.println("MultiChat Master Server is running...");
-    ExecutorService pool = Executors.newFixedThreadPool(Integer.parseInt(args[0]));
-    try (ServerSocket server = new ServerSocket(51000)) {
-      while (true) {
-        pool.execute(new ServerCommunicationHandler(server.accept()));
+    int possibleAmountOfServers = Integer.parseInt(args[0]);
+    EventLoop loop = new EventLoop("MultiChat-master");
+    ServerRegistry registry = new ServerRegistry();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(51000));
+    server.configureBlocking(false);
+    loop.execute(() -> {
+      try {
+        loop.register(server, SelectionKey.OP_ACCEPT,
+            new ServerAcceptor(server, loop, registry, possibleAmountOfServers));
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+        System.exit(-1);
       }
-    }
+      checkAlive(loop, registry);
+    });
+    loop.start();
+  }
+
+  //checks the heartbeats of the servers every heartbeat interval for as long as the master server runs
+  private static void checkAlive(EventLoop loop, ServerRegistry registry) {
+    registry.checkAlive();
+    loop.schedule(() -> checkAlive(loop, registry), ServerRegistry.HEARTBEAT_MILLIS);
   }
 
-  //a function object that stores the task that every thread runs for each new server connection
-  private static class ServerCommunicationHandler implements Runnable {
+  //accepts the connections of the MultiChat servers, refusing those beyond the amount possible
+  private static class ServerAcceptor implements EventLoop.Handler {
 
-    private final Socket multiChatServerClientSocket;
-    private Scanner in; //the input of the server
-    private PrintWriter out; //the output to the server
-    private String serverPortName;
+    private final ServerSocketChannel server;
+    private final EventLoop loop;
+    private final ServerRegistry registry;
+    private final int possibleAmountOfServers;
 
-    private ServerCommunicationHandler(Socket multiChatServerClientSocket) {
-      this.multiChatServerClientSocket = multiChatServerClientSocket;
+    private ServerAcceptor(ServerSocketChannel server, EventLoop loop, ServerRegistry registry,
+        int possibleAmountOfServers) {
+      this.server = server;
+      this.loop = loop;
+      this.registry = registry;
+      this.possibleAmountOfServers = possibleAmountOfServers;
     }
 
     @Override
-    public void run() {
+    public void handleReady(SelectionKey key) {
+      SocketChannel channel;
       try {
-        wrapClientIO();
-        addServer();
-        checkServerRunning();
-      } catch (IOException ioe) {
-        System.out.println("Server input/output failed to connect: " +
-            multiChatServerClientSocket.toString());
-      }
-    }
-
-    //checks whether the server is running, if it is not removes it from the list of active servers
-    private void checkServerRunning() throws IOException {
-      while (true) {
-        try {
-          multiChatServerClientSocket.getInputStream().read();
-        } catch (IOException ioe) {
-          outputWriters.remove(out);
-          activeServers.remove(serverPortName);
-          multiChatServerClientSocket.close();
-          updateServerList();
-          return;
+        while ((channel = server.accept()) != null) {
+          if (registry.connections() >= possibleAmountOfServers) {
+            System.out.println("Refusing a server beyond the " + possibleAmountOfServers
+                + " possible: " + channel.getRemoteAddress());
+            channel.close();
+            continue;
+          }
+          channel.configureBlocking(false);
+          //a routed message is a single small line, which must not wait for earlier ones to be acknowledged
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          new RegistryLink(channel, loop, registry).open();
         }
-      }
-    }
-
-    //Wraps the clients input and outputs streams into a Scanner and PrintWriter respectively.
-    private void wrapClientIO() throws IOException {
-      in = new Scanner(multiChatServerClientSocket.getInputStream());
-      out = new PrintWriter(multiChatServerClientSocket.getOutputStream(), true);
-    }
-
-    //adds a server to the active server list
-    private void addServer() {
-      synchronized (activeServers) {
-        String input = in.nextLine();
-        activeServers.add(input);
-        serverPortName = input;
-      }
-      outputWriters.add(out);
-      updateServerList();
-    }
-
-    //writes to all the active servers an updated version of the list
-    private void updateServerList() {
-      for (PrintWriter output : outputWriters) {
-        StringBuilder serverListBuilder = new StringBuilder();
-        serverListBuilder.append("ACTIVESERVERLIST ");
-        for (String server : activeServers) {
-          serverListBuilder.append(server + ", ");
-        }
-        output.println(serverListBuilder.toString());
-        System.out.println(serverListBuilder.toString());
+      } catch (IOException ioe) {
+        System.out.println("Server input/output failed to connect: " + ioe);
       }
     }
   }
 
-}
\ No newline at end of file
+}
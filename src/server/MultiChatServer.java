@@ -2,6 +2,9 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -9,13 +12,16 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Represents a texting server with image and file support handling the input and output to several clients
@@ -24,26 +30,59 @@ import javax.net.ssl.SSLSocket;
  */
 public class MultiChatServer {
 
-    //holds the names of active clients and their respective client
-    private static final Map<String, Task> users = new HashMap<>();
+    //the rooms hosted by this server by their number, replaced once before the first client connects
+    private static volatile Map<String, Room> rooms = Collections.emptyMap();
 
-    //a set of writers that write to the output of a client's socket
-    private static final HashSet<PrintWriter> outputWriters = new HashSet<>();
+    //whether private files are streamed straight to their receiver instead of being stored until it requests them
+    private static final boolean RELAY_PRIVATE_FILES =
+            System.getProperty("multichat.privateFiles", "store").equals("relay");
 
-    //a set of the current active servers
-    private static final HashSet<String> serverNames = new HashSet<>();
+    //whether the frames sent to clients that ask for compression are compressed
+    private static final boolean COMPRESS_OUTPUT =
+            System.getProperty("multichat.compression", WireFormat.COMPRESSION).equals(WireFormat.COMPRESSION);
 
-    private static String curVictim = null;
-    private static int numVotes = 0;
-    private static Timer kickTimer = new Timer();
-    private static final Set<String> alreadyVoted = new HashSet<>();
+    //the names of the current active servers, replaced as a whole whenever the master server sends a new list
+    private static volatile List<String> serverNames = Collections.emptyList();
+
+    //the connection to the master server, which also routes private messages to the users of other servers
+    private static volatile RunServerCommunication masterServer;
+
+    //the bus the rooms are shared over with the other nodes serving them, opened before the first client connects
+    private static RoomBus bus;
+
+    //ends the votekicks of every room that run out of time
+    private static final Timer voteKickTimer = new Timer("votekick", true);
 
     /**
      * Main method to start the MultiChat server and listens for 1<=x<=args connections on a specified local port
      * and the desired number of possible clients (default 30). Creates a thread for
      * each connection and creating and running a Task for each connection.
      *
-     * @param args command line arguments describing the port number[0] and desired number of clients[1]
+     * <p>The port number may also list several ports separated by commas, or ranges of them such as "59090-59139",
+     * each of which is a room of its own with its own users, votekicks and files. All the rooms are served by the
+     * same threads, accept their connections on one thread, share one SSLContext and register with the master server
+     * over one connection, so a room costs a fraction of what a server of its own does. The pool of a blocking server
+     * then has the desired number of threads for every room.
+     *
+     * <p>When started with the system property "multichat.io=nio", the server instead serves every TLS connection
+     * from a small set of non-blocking event loop threads (system property "multichat.eventLoops", default the amount
+     * of available processors) and the number of clients is not limited. With "multichat.io=virtual" on Java 21 or
+     * newer, every connection is run by its own virtual thread and the number of clients is not limited either.
+     *
+     * <p>The clients of any room can follow and chat in the server's other rooms with /subscribe over their one
+     * connection. The system property "multichat.rooms" lists more rooms without a port of their own, separated by
+     * commas, which can only be reached that way.
+     *
+     * <p>Whispers, private messages and private files reach their receiver in any room of any server: in the room
+     * they were sent in, in another room of this server, or through the master server, which knows the room of every
+     * user (see ServerRegistry). A receiver named as name@room is looked up in that room only.
+     *
+     * <p>A busy room can be served by several servers, its nodes, each with its own share of the room's connections.
+     * Started with the system property "multichat.bus" set to the host:port of a MultiChatBusServer, the server
+     * shares the chat and the members of its rooms with every other node connected to it, and binds its ports so
+     * that the nodes of one machine can listen on the same ones (see RoomBus and PortListener).
+     *
+     * @param args command line arguments describing the port numbers[0] and desired number of clients[1]
      * @throws IllegalArgumentException when supplied 0 or >2 arguments
      * @throws NumberFormatException    when given a non-integer arguments
      */
@@ -60,30 +99,57 @@ public class MultiChatServer {
             throw new IllegalArgumentException("Supplied incorrect number of arguments. Please enter zero or one "
                     + "integer only for number of desired clients.");
         }
+        List<String> portNumbers = parsePortNumbers(args[0]);
+        rooms = hostRooms(portNumbers);
+        try {
+            bus = RoomBus.open();
+            for (Room hosted : rooms.values()) {
+                hosted.share();
+            }
+        } catch (IOException ioe) {
+            System.out.println("Could not connect to the room bus: " + ioe);
+            System.exit(-1);
+        }
 
         new Thread(() -> {
-            System.out.println("MultiChat Server " + args[0] + " is running...");
-            System.out.println("Commands: \"exit\", \"users\", \"servers\"");
+            System.out.println("MultiChat Server " + String.join(",", portNumbers) + " is running...");
+            System.out.println("Commands: \"exit\", \"users\", \"servers\", \"queues\", \"files\", "
+                    + "\"compression\"");
             Scanner input = new Scanner(System.in);
             while (input.hasNextLine()) {
                 String command = input.nextLine();
                 switch (command) {
                     case "exit":
                         //send to all users the server is closing (protocol: SERVERCLOSE)
-                        for (PrintWriter writer : outputWriters) {
-                            writer.println("SERVERCLOSE");
-                        }
+                        sendToEveryClient(Frame.of("SERVERCLOSE"));
+                        awaitQueuedOutput(2000);
                         deleteDirContents(new File("resources/tempFiles"));
                         System.exit(0);
                         break;
                     case "users":
-                        //gets list of all users
-                        System.out.println(users.keySet());
+                        //gets list of all users of every room
+                        for (Room hosted : rooms.values()) {
+                            System.out.println(hosted.id + ": " + hosted.users.names());
+                        }
                         break;
                     case "servers":
                         //get list of all servers
                         System.out.println(serverNames);
                         break;
+                    case "queues":
+                        //get the output waiting for every user, slowest first, to see who cannot keep up
+                        printQueuedOutput();
+                        break;
+                    case "files":
+                        //get the space taken by the uploaded files and saved by storing duplicates once, by room
+                        for (Room hosted : rooms.values()) {
+                            System.out.println(hosted.id + ": " + hosted.files.usage());
+                        }
+                        break;
+                    case "compression":
+                        //get the bytes saved by compressing the frames sent to the clients that asked for it
+                        System.out.println(FrameDeflater.usage());
+                        break;
                     default:
                         System.out.println("Invalid command.");
                 }
@@ -93,34 +159,71 @@ public class MultiChatServer {
 
         //starts the background process of communicating to a master server that keeps track of active
         //servers and updates the active servers on the existence of other servers
-        Thread masterServerCommunication = new Thread(new RunServerCommunication(args[0]));
+        masterServer = new RunServerCommunication(portNumbers);
+        Thread masterServerCommunication = new Thread(masterServer);
         masterServerCommunication.start();
 
-        //creates a thread to handle each socket connection to this server,
-        ExecutorService pool = Executors.newFixedThreadPool(possibleAmountOfClients);
         try {
-            SSLServerSocket server = initSSLDetailsAndGetSocket(args[0]);
-            while (true) {
-                pool.execute(new Task((SSLSocket) server.accept(), args[0]));
+            if (System.getProperty("multichat.io", "pool").equals("nio")) {
+                //serves every socket connection to this server from a fixed set of event loops
+                int eventLoops = Integer.getInteger("multichat.eventLoops",
+                        Runtime.getRuntime().availableProcessors());
+                new NioChatServer(portNumbers, eventLoops, initSSLContext()).run();
+            } else {
+                //creates a thread to handle each socket connection to this server,
+                ExecutorService pool = ConnectionExecutors.newConnectionExecutor(
+                        possibleAmountOfClients * portNumbers.size());
+                ExecutorService writers = ConnectionExecutors.newWriterExecutor();
+                SSLSocketFactory factory = initSSLContext().getSocketFactory();
+                new PortListener(portNumbers).run((channel, portNumber) -> {
+                    Socket socket = channel.socket();
+                    //the TLS socket is layered over the accepted one, which it closes with itself
+                    SSLSocket clientSocket = (SSLSocket) factory.createSocket(socket,
+                            socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+                    clientSocket.setUseClientMode(false);
+                    pool.execute(new SocketConnection(clientSocket, writers, portNumber));
+                });
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    //returns the SSLServerSocket initialized with the keys and algorithm to use for encryption
-    private static SSLServerSocket initSSLDetailsAndGetSocket(String portNumber)
+    /*
+    Returns the port numbers listed by the given argument, separated by commas, in which a range such as
+    "59090-59139" stands for every port from the first to the last.
+     */
+    private static List<String> parsePortNumbers(String argument) throws NumberFormatException {
+        Set<String> portNumbers = new LinkedHashSet<>();
+        for (String listed : argument.split(",")) {
+            int dash = listed.indexOf('-');
+            if (dash < 0) {
+                portNumbers.add(Integer.toString(Integer.parseInt(listed.trim())));
+                continue;
+            }
+            int first = Integer.parseInt(listed.substring(0, dash).trim());
+            int last = Integer.parseInt(listed.substring(dash + 1).trim());
+            for (int port = first; port <= last; port++) {
+                portNumbers.add(Integer.toString(port));
+            }
+        }
+        return new ArrayList<>(portNumbers);
+    }
+
+    //returns the SSLContext of the server initialized with the keys and algorithm to use for encryption
+    static SSLContext initSSLContext()
             throws NoSuchAlgorithmException, KeyStoreException, IOException, CertificateException,
             UnrecoverableKeyException, KeyManagementException {
 
-        SSLServerSocketFactory ssf;
-
         // set up key manager to do server authentication
         SSLContext ctx;
         KeyManagerFactory kmf;
         KeyStore ks;
         char[] passphrase = "socketpractice".toCharArray();
 
+        //lets clients resume their sessions from stateless tickets as well as its cache, as newer JDKs do by default
+        System.getProperties().putIfAbsent("jdk.tls.server.enableSessionTicketExtension", "true");
+
         //specifies TLS protocol, SunX509 key manager algorithm, and .jks keystore file types to be used
         ctx = SSLContext.getInstance("TLS");
         kmf = KeyManagerFactory.getInstance("SunX509");
@@ -133,110 +236,522 @@ public class MultiChatServer {
 
         //initializes the SSL context to the key stores with a default security provider and trust store
         ctx.init(kmf.getKeyManagers(), null, null);
-
-        //return a SSL socket with all the specific SSL context
-        ssf = ctx.getServerSocketFactory();
-        return (SSLServerSocket) ssf.createServerSocket(Integer.parseInt(portNumber));
+        return ctx;
     }
 
-    //A function object that communicates to the "master" server
+    /*
+    A function object that communicates to the "master" server on behalf of every room port of this server. It
+    registers every room, subscribes to the versioned changes of the list of active servers and applies them in
+    order, and sends a heartbeat every heartbeat interval (see ServerRegistry). The server exits once the master
+    server closes the connection, or once a master server that sends heartbeats has sent nothing for too long.
+
+    Once subscribed, it also tells the master server every user joining or leaving its own room, and routes the
+    private lines for users it cannot find on this server through the master server, which delivers them to the
+    server of the user or sends them back as undeliverable.
+
+    The master server is read by this thread and written by another, which writes every line queued since it last
+    wrote together. The threads of the clients and event loops telling it about users and routing lines through it
+    only queue them, so they never wait on the connection to the master server.
+     */
     private static class RunServerCommunication implements Runnable {
-        private final String portNumber;
+        private final List<String> portNumbers;
+        private final Set<String> activeServers = new LinkedHashSet<>(); //the list of servers as of the version
+        private long version = -1; //the version of the list applied, -1 until a whole list has been received
+        private boolean heartbeats = false; //whether the master server sends heartbeats, as all subscribing do
+        private final BlockingQueue<String> outbound = new LinkedBlockingQueue<>(); //the lines to be written
+        //guards queueing the users for the master server, so a user's leaving is never told before its joining
+        private final ReentrantLock directoryLock = new ReentrantLock();
+        private volatile boolean routing = false; //whether the master server knows this server's users
 
-        private RunServerCommunication(String portNumber) {
-            this.portNumber = portNumber;
+        private RunServerCommunication(List<String> portNumbers) {
+            this.portNumbers = portNumbers;
         }
 
         @Override
         public void run() {
-            try {
-                Socket socketToMasterServer = new Socket("localhost", 51000);
-                Scanner serverIn = new Scanner(socketToMasterServer.getInputStream());
-                PrintWriter serverOut = new PrintWriter(socketToMasterServer.getOutputStream(), true);
-
-                //tells the master server the name of this server
-                serverOut.println("Server " + portNumber);
-
-                //continually listens for the master server's updates on the active server list, then
-                //formatting to be an array of server names
-                while (serverIn.hasNextLine()) {
-                    String serverList = serverIn.nextLine();
-                    serverList = serverList.substring(17);
-                    String[] activeServers = serverList.split(", ");
-                    serverNames.clear();
-                    serverNames.addAll(Arrays.asList(activeServers));
-                    updateServerList();
-                }
-                socketToMasterServer.close();
-                System.exit(2);
+            long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(ServerRegistry.HEARTBEAT_MILLIS);
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(ServerRegistry.TIMEOUT_MILLIS);
+            try (Socket socketToMasterServer = new Socket("localhost", 51000)) {
+                //wakes up every heartbeat interval even when the master server sends nothing
+                socketToMasterServer.setSoTimeout((int) ServerRegistry.HEARTBEAT_MILLIS);
+                //routed messages are single small lines, which must not wait for earlier ones to be acknowledged
+                socketToMasterServer.setTcpNoDelay(true);
+                InputStream serverIn = socketToMasterServer.getInputStream();
+                Thread writer = new Thread(() -> write(socketToMasterServer), "MultiChat-master-writer");
+                writer.setDaemon(true);
+                writer.start();
+
+                //subscribes first, so the rooms of this server arrive as changes following the whole list
+                queue("SUBSCRIBE");
+                //tells the master server the name of every room port of this server, one per line
+                for (String portNumber : portNumbers) {
+                    queue("Server " + portNumber);
+                }
+
+                //continually listens for the master server's changes to the active server list
+                byte[] buffer = new byte[8192];
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long lastReceived = System.nanoTime();
+                long lastSent = lastReceived;
+                while (true) {
+                    int amountRead;
+                    try {
+                        amountRead = serverIn.read(buffer);
+                    } catch (SocketTimeoutException ste) {
+                        amountRead = 0;
+                    }
+                    if (amountRead < 0) {
+                        break;
+                    }
+                    long now = System.nanoTime();
+                    if (amountRead > 0) {
+                        lastReceived = now;
+                    } else if (heartbeats && now - lastReceived > timeoutNanos) {
+                        System.out.println("The master server sent nothing for "
+                                + ServerRegistry.TIMEOUT_MILLIS + " ms.");
+                        break;
+                    }
+                    //the changes read together reach the clients as one list, such as a server's many rooms
+                    boolean changed = false;
+                    for (int i = 0; i < amountRead; i++) {
+                        if (buffer[i] == '\n') {
+                            changed |= handleMasterLine(line.toString(StandardCharsets.UTF_8));
+                            line.reset();
+                        } else {
+                            line.write(buffer[i]);
+                        }
+                    }
+                    if (changed) {
+                        serverNames = List.copyOf(activeServers);
+                        updateServerList();
+                    }
+                    //only a master server that sent the versioned list expects heartbeats
+                    if (heartbeats && now - lastSent >= heartbeatNanos) {
+                        queue("HEARTBEAT");
+                        lastSent = now;
+                    }
+                }
             } catch (IOException e) {
                 e.printStackTrace();
                 System.exit(-1);
             }
+            System.exit(2);
+        }
+
+        //writes the queued lines for as long as the connection lasts, flushing once the queue has been emptied
+        private void write(Socket socketToMasterServer) {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(socketToMasterServer.getOutputStream(),
+                    StandardCharsets.UTF_8), 65536)) {
+                while (true) {
+                    String line = outbound.take();
+                    do {
+                        out.write(line);
+                        out.write('\n');
+                    } while ((line = outbound.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException ioe) {
+                //closing the connection ends the thread reading it, which exits the server
+                try {
+                    socketToMasterServer.close();
+                } catch (IOException e) {
+                    //closed either way
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /*
+        Applies a line of the master server: the whole list of servers, or a change to it, which is only applied
+        when it follows the version applied last. A change that skips a version subscribes again for the whole
+        list. A master server that does not know subscriptions sends the whole list on every change instead.
+        Returns whether the list changed.
+         */
+        private boolean handleMasterLine(String input) {
+            if (input.startsWith("SERVERLIST ")) {
+                int space = input.indexOf(' ', 11);
+                version = Long.parseLong(input.substring(11, space));
+                heartbeats = true;
+                if (!routing) {
+                    publishUsers();
+                }
+                activeServers.clear();
+                for (String server : input.substring(space + 1).split(",")) {
+                    if (!server.isEmpty()) {
+                        activeServers.add(server);
+                    }
+                }
+            } else if (input.startsWith("SERVERADDED ") || input.startsWith("SERVERREMOVED ")) {
+                int versionAt = input.indexOf(' ') + 1;
+                int space = input.indexOf(' ', versionAt);
+                long changeVersion = Long.parseLong(input.substring(versionAt, space));
+                if (version < 0 || changeVersion <= version) {
+                    //awaiting the whole list, or included in it already
+                    return false;
+                }
+                if (changeVersion != version + 1) {
+                    version = -1;
+                    queue("SUBSCRIBE");
+                    return false;
+                }
+                version = changeVersion;
+                String server = input.substring(space + 1);
+                if (input.startsWith("SERVERADDED ")) {
+                    activeServers.add(server);
+                } else {
+                    activeServers.remove(server);
+                }
+            } else if (input.startsWith("ACTIVESERVERLIST ")) {
+                activeServers.clear();
+                activeServers.addAll(Arrays.asList(input.substring(17).split(", ")));
+            } else if (input.startsWith("DELIVER ")) {
+                deliver(input.substring(8));
+                return false;
+            } else if (input.startsWith("UNDELIVERABLE ")) {
+                undeliverable(input.substring(14));
+                return false;
+            } else {
+                //a HEARTBEAT, which only shows that the master server is alive
+                return false;
+            }
+            return true;
+        }
+
+        //tells the master server every user of this server's rooms, after which it is told of every change
+        private void publishUsers() {
+            directoryLock.lock();
+            try {
+                routing = true;
+                for (Room hosted : rooms.values()) {
+                    //a subscriber is a user of its own room only
+                    hosted.users.snapshot().forEach((name, task) -> {
+                        if (task.home == hosted) {
+                            queue("USERJOINED " + hosted.id + ":" + name);
+                        }
+                    });
+                }
+            } finally {
+                directoryLock.unlock();
+            }
+        }
+
+        //tells the master server that the user has joined or left its own room, once it knows the other users
+        private void userChanged(Room room, String name, boolean joined) {
+            directoryLock.lock();
+            try {
+                if (routing) {
+                    queue((joined ? "USERJOINED " : "USERLEFT ") + room.id + ":" + name);
+                }
+            } finally {
+                directoryLock.unlock();
+            }
         }
+
+        /*
+        Asks the master server to deliver the line to the receiver, a name or name@room, on behalf of the sender in
+        the given room. Returns false when the master server does not route messages, or when the line holds a line
+        break, which is refused rather than passed on as lines of this server's own.
+         */
+        private boolean route(Room from, String sender, String receiver, String line) {
+            if (!routing) {
+                return false;
+            }
+            int at = roomSeparator(receiver);
+            String toRoom = at < 0 ? "" : receiver.substring(at + 1);
+            String toName = at < 0 ? receiver : receiver.substring(0, at);
+            return queue("ROUTE " + from.id + ":" + sender + ":" + toRoom + ":" + toName + ":" + line);
+        }
+
+        //queues the line for the master server, unless a line break in it would let it pass as several, returns which
+        private boolean queue(String line) {
+            if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+                return false;
+            }
+            outbound.add(line);
+            return true;
+        }
+
+        /*
+        Delivers a line routed by the master server,
+        DELIVER [origin]:[from room]:[sender]:[room]:[receiver]:[line], to the receiver in the given room, or sends it
+        back as undeliverable when the receiver has left the room since.
+         */
+        private void deliver(String routed) {
+            String[] fields = routed.split(":", 6);
+            Room room = rooms.get(fields[3]);
+            Task receiver = room == null ? null : room.users.get(fields[4]);
+            if (receiver != null) {
+                receiver.sendIn(room, Frame.of(fields[5]));
+            } else {
+                queue("UNDELIVERABLE " + fields[0] + ":" + fields[1] + ":" + fields[2] + ":"
+                        + fields[4] + "@" + fields[3]);
+            }
+        }
+
+        //tells the sender of a routed line, UNDELIVERABLE [origin]:[from room]:[sender]:[receiver], it was undelivered
+        private void undeliverable(String bounced) {
+            String[] fields = bounced.split(":", 4);
+            Room room = rooms.get(fields[1]);
+            Task sender = room == null ? null : room.users.get(fields[2]);
+            if (sender != null) {
+                sender.sendIn(room, Frame.of("MESSAGEHELP " + fields[3] + " is not online."));
+            }
+        }
+    }
+
+    /*
+    Returns the index of the @ of a receiver named as name@room, or -1 when the receiver is named by a name alone. A
+    name may contain an @ itself, so only one followed by a room number names a room.
+     */
+    private static int roomSeparator(String receiver) {
+        int at = receiver.lastIndexOf('@');
+        if (at <= 0 || at == receiver.length() - 1) {
+            return -1;
+        }
+        for (int i = at + 1; i < receiver.length(); i++) {
+            if (receiver.charAt(i) < '0' || receiver.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return at;
+    }
+
+    /*
+    Returns the user of the given name in its own room of this server: in the room named by a receiver such as
+    name@room, or else in the first room that has the user. Returns null when no room of this server has the user.
+     */
+    private static Task findMember(String receiver) {
+        int at = roomSeparator(receiver);
+        if (at >= 0) {
+            Room room = rooms.get(receiver.substring(at + 1));
+            Task member = room == null ? null : room.users.get(receiver.substring(0, at));
+            if (member != null && member.home == room) {
+                return member;
+            }
+        }
+        for (Room hosted : rooms.values()) {
+            Task member = hosted.users.get(receiver);
+            if (member != null && member.home == hosted) {
+                return member;
+            }
+        }
+        return null;
     }
 
     /*
-    Represents a "Task" that is run for every client connected to the server per thread.
-    Implements Runnable, captures the Socket that is connected and wraps the input and output
+    Represents a "Task" that is run for every client connected to the server.
+    Captures the ClientConnection of the client, is handed every line the client sends
     and handles the text input/output of the client.
      */
-    private static class Task implements Runnable {
+    static class Task {
+
+        //handles a command on behalf of the task of the client that sent it
+        private interface Handler {
+            void handle(Task task, String argument);
+        }
+
+        //the handler of every command a client may send once its username has been accepted
+        private static final Map<Command, Handler> HANDLERS = new EnumMap<>(Command.class);
+
+        static {
+            HANDLERS.put(Command.QUIT, (task, argument) -> task.userLeave());
+            HANDLERS.put(Command.HELP, (task, argument) -> task.printHelpMessage());
+            HANDLERS.put(Command.EMOTES, (task, argument) -> task.printEmoteHelpMessage());
+            HANDLERS.put(Command.JOIN, (task, argument) -> task.out.println("REQUESTEDNEWROOM " + argument));
+            HANDLERS.put(Command.ROOMCHANGEFAILED, (task, argument) -> task.out.println("MESSAGEHELP " + argument));
+            HANDLERS.put(Command.VOTEKICK, Task::printVoteKickMessage);
+            HANDLERS.put(Command.WHISPER, (task, argument) -> {
+                // /whisper [receiver]: [message]
+                String receiver = argument.substring(0, argument.indexOf(":"));
+                String msg = argument.substring(argument.indexOf(": ") + 1);
+                task.printWhisper(receiver, msg);
+            });
+            HANDLERS.put(Command.PRIVATEMSG, (task, argument) -> {
+                // /privatemsg [sender]: [receiver]: [message]
+                String[] components = argument.split(": ");
+                String sender = components[0];
+                String receiver = components[1];
+                String messageAndReceiver = argument.substring(argument.indexOf(": ") + 2);
+                String message = messageAndReceiver.substring(messageAndReceiver.indexOf(": ") + 2);
+                task.printPrivMsg(sender, receiver, message);
+            });
+            HANDLERS.put(Command.FILE, (task, argument) -> {
+                // /file [filename]:[filesize]
+                String fileName = argument.substring(0, argument.lastIndexOf(":"));
+                long fileSize = Long.parseLong(argument.substring(argument.lastIndexOf(":") + 1));
+                task.readFileThenOutputToRoom(fileName, fileSize);
+            });
+            HANDLERS.put(Command.PRIVATEFILE, (task, argument) -> {
+                // /privatefile [receiver]:[filename]:[filesize]
+                String fileReceiver = argument.substring(0, argument.indexOf(":"));
+                String fileName = argument.substring(argument.indexOf(":") + 1, argument.lastIndexOf(":"));
+                long fileSize = Long.parseLong(argument.substring(argument.lastIndexOf(":") + 1));
+                task.readFileThenOutputPrivately(fileName, fileSize, fileReceiver);
+            });
+            HANDLERS.put(Command.REQUESTFILE, (task, argument) -> {
+                // /requestfile [owner]:[filename]
+                try {
+                    String fileOwner = argument.substring(0, argument.indexOf(":"));
+                    String fileName = argument.substring(argument.indexOf(":") + 1);
+                    task.fetchFile(fileOwner, fileName);
+                } catch (IOException | NullPointerException ioe) {
+                    task.out.println("FAILEDFILETRANSFER Error fetching file.");
+                }
+            });
+            HANDLERS.put(Command.RESUMEFILE, (task, argument) -> {
+                // /resumefile [owner]:[filename]:[offset]
+                try {
+                    String fileOwner = argument.substring(0, argument.indexOf(":"));
+                    String fileName = argument.substring(argument.indexOf(":") + 1, argument.lastIndexOf(":"));
+                    long offset = Long.parseLong(argument.substring(argument.lastIndexOf(":") + 1));
+                    task.resumeFile(fileOwner, fileName, offset);
+                } catch (IOException | NullPointerException ioe) {
+                    task.out.println("FAILEDFILETRANSFER Error fetching file.");
+                }
+            });
+            HANDLERS.put(Command.REQUESTRANGE, (task, argument) -> {
+                // /requestrange [owner]:[filename]:[offset]:[length]
+                try {
+                    String fileOwner = argument.substring(0, argument.indexOf(":"));
+                    int lengthAt = argument.lastIndexOf(":");
+                    int offsetAt = argument.lastIndexOf(":", lengthAt - 1);
+                    String fileName = argument.substring(argument.indexOf(":") + 1, offsetAt);
+                    long offset = Long.parseLong(argument.substring(offsetAt + 1, lengthAt));
+                    long length = Long.parseLong(argument.substring(lengthAt + 1));
+                    task.fetchRange(fileOwner, fileName, offset, length);
+                } catch (IOException | RuntimeException e) {
+                    //a connection opened only to fetch the range waits for an answer, even to a malformed request
+                    task.out.println("FAILEDFILETRANSFER Error fetching file.");
+                }
+            });
+            HANDLERS.put(Command.SUBSCRIBE, (task, argument) -> task.subscribe(argument.trim()));
+            HANDLERS.put(Command.UNSUBSCRIBE, (task, argument) -> task.unsubscribe(argument.trim()));
+            HANDLERS.put(Command.COMPRESS, (task, argument) -> {
+                //only frames can be compressed, so a client still on the text protocol is never compressed
+                if (COMPRESS_OUTPUT && task.out.isUpgraded() && argument.equals(WireFormat.COMPRESSION)) {
+                    task.out.compressOutput();
+                }
+            });
+            HANDLERS.put(Command.USERS, (task, argument) -> task.sendActiveUsers(task.commandRoom));
+            //if there is no valid command specified, assume the input is a message
+            HANDLERS.put(Command.MESSAGE, (task, argument) -> task.commandRoom.chat("MESSAGE " + "["
+                    + new Date().toString() + "] " + task.name + ": " + argument));
+        }
+
+        //the commands a client may send on the channel of a subscribed room, every other one is for its own room
+        private static final Set<Command> CHANNEL_COMMANDS =
+                EnumSet.of(Command.MESSAGE, Command.USERS, Command.WHISPER, Command.PRIVATEMSG);
 
-        private String name; //name of client
-        private final SSLSocket clientSocket; //the socket of the client connection
-        private Scanner in; //the input of the client
-        private PrintWriter out; //the output to the client
+        private String name; //name of client, null until a valid username has been submitted
+        private final ClientConnection out; //the connection to the client
         private final String portNumber;
+        private final Room home; //the room of the port the client connected to
+        private boolean hasLeft = false; //whether the client has already left the chatroom
+        private int commandStream = 0; //the stream of the command being handled, 0 in the text protocol
+        private Room commandRoom; //the room of the command being handled, the home room unless sent on a channel
+        //the other rooms the client subscribed to by their channel, which a votekick may also end
+        private final Map<Integer, Room> subscriptions = new ConcurrentHashMap<>();
 
-        //Captures the client's socket as a field.
-        private Task(SSLSocket clientSocket, String portNumber) {
-            this.clientSocket = clientSocket;
+        //Captures the client's connection as a field.
+        Task(ClientConnection out, String portNumber) {
+            this.out = out;
             this.portNumber = portNumber;
+            this.home = rooms.get(portNumber);
+            this.commandRoom = home;
         }
 
-        @Override
-        public void run() {
-            try {
-                wrapClientIO();
-                requestUsername();
-                acceptAndProcessUsername();
-                handleUserInput();
-            } catch (IOException ioe) {
-                System.out.println("Client input/output failed to connect: " + clientSocket.toString());
-            } catch (IllegalArgumentException | NoSuchElementException iae) {
-                System.out.println(iae.getMessage());
-            }
+        //offers version 2 of the wire format and requests the username from the client once it has connected
+        void start() {
+            out.println(WireFormat.PROTOCOL_LINE);
+            out.println("SUBMITNAME");
         }
 
-        //Wraps the clients input and outputs streams into a Scanner and PrintWriter respectively.
-        private void wrapClientIO() throws IOException {
-            in = new Scanner(clientSocket.getInputStream());
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+        //handles a line sent by the client, which is a username submission until a valid one has been accepted
+        void handleLine(String input) {
+            if (hasLeft) {
+                return;
+            }
+            if (name == null) {
+                requestUsername(input);
+            } else {
+                Command command = Command.parse(input);
+                handleUserInput(command, command.argumentOf(input));
+            }
         }
 
         /*
-        Requests the username from the client, sending SUBMITNAME. If given a taken or invalid
-        username, will send SUBMITANOTHERNAME repeatedly until a valid one has been submit. When a valid
-        username has been submitted, it will update the names of the active clients list of the server.
+        Handles a command sent in a frame on the given stream by a version 2 client, whose first chat message is its
+        username. A connection that has not joined the room may only ask for compression and fetch ranges of files,
+        which is all a connection opened to download a range of a file alongside the client's own connection does.
          */
-        private void requestUsername() throws IllegalArgumentException, NoSuchElementException {
-            String submitNameProtocol = "SUBMITNAME";
-            while (true) {
-                out.println(submitNameProtocol);
-                name = in.nextLine();
-                if (name == null) {
-                    userLeave();
-                    throw new IllegalArgumentException("Supplied a null name.");
-                }
-                synchronized (users) {
-                    if (!name.isBlank() && !users.containsKey(name) && !name.contains(",") &&
-                            !name.contains(":")) {
-                        users.put(name, this);
-                        break;
+        void handleCommand(Command command, String argument, int stream) {
+            if (hasLeft) {
+                return;
+            }
+            if ((stream & WireFormat.CHANNEL) != 0) {
+                handleChannelCommand(command, argument, stream);
+            } else if (name == null) {
+                if (command == Command.MESSAGE) {
+                    requestUsername(argument);
+                } else if (command == Command.REQUESTRANGE || command == Command.COMPRESS) {
+                    commandStream = stream;
+                    try {
+                        handleUserInput(command, argument);
+                    } finally {
+                        commandStream = 0;
                     }
                 }
-                submitNameProtocol = "SUBMITANOTHERNAME";
+            } else {
+                commandStream = stream;
+                try {
+                    handleUserInput(command, argument);
+                } finally {
+                    commandStream = 0;
+                }
+            }
+        }
+
+        /*
+        Handles a command sent on the channel of a subscribed room, which is for that room. Only chatting and the
+        commands about the room's users can be sent on a channel, and a channel the client has not subscribed to is
+        ignored, such as one it unsubscribed from just before.
+         */
+        private void handleChannelCommand(Command command, String argument, int channel) {
+            Room subscribed = subscriptions.get(channel);
+            if (subscribed == null) {
+                return;
+            }
+            if (!CHANNEL_COMMANDS.contains(command)) {
+                sendIn(subscribed, Frame.of("MESSAGEHELP Only messages, /users, /whisper and /privatemsg can be "
+                        + "sent to room " + subscribed.id + " while subscribed to it."));
+                return;
+            }
+            commandRoom = subscribed;
+            try {
+                handleUserInput(command, argument);
+            } finally {
+                commandRoom = home;
+            }
+        }
+
+        //handles the connection to the client closing, whether or not the client quit properly
+        void disconnected() {
+            userLeave();
+        }
+
+        /*
+        Handles a username submitted by the client. If given a taken or invalid username, will send
+        SUBMITANOTHERNAME. When a valid username has been submitted, it will update the names of the
+        active clients list of the server.
+         */
+        private void requestUsername(String submittedName) {
+            if (!submittedName.isBlank() && !submittedName.contains(",") && !submittedName.contains(":") &&
+                    home.users.reserve(submittedName, this)) {
+                name = submittedName;
+                acceptAndProcessUsername();
+            } else {
+                out.println("SUBMITANOTHERNAME");
             }
         }
 
@@ -248,108 +763,122 @@ public class MultiChatServer {
             out.println("NAMEACCEPTED " + name);
             out.println("MESSAGEWELCOME Welcome to Multi-Chat, room " + portNumber + ", "
                     + name + ". Use /help for help!");
-            for (PrintWriter writer : outputWriters) {
-                writer.println("MESSAGEUSERJOINED " + "[" + new Date().toString() + "] " +
-                        name + " has joined.");
-            }
-            outputWriters.add(out);
-            updateActiveUsers();
-            updateServerList();
-            new File("resources/tempFiles/" + name).mkdirs();
+            home.users.update(() -> {
+                home.joined(name);
+                home.users.addRecipient(out);
+                sendActiveUsers(home);
+            });
+            //the list of servers only changes when the master server says so, so only the new client needs it
+            out.println(serverList());
+            masterServer.userChanged(home, name, true);
             System.out.println("[" + new Date().toString() + "] " + name + " has joined.");
         }
 
         //transmits user messages to other clients, handles user command requests as a well
-        private void handleUserInput() {
-            while (in.hasNextLine()) {
-                try {
-                    String input = in.nextLine();
-                    if (input.toLowerCase().startsWith("/quit")) {
-                        userLeave();
-                        return;
-                    } else if (input.toLowerCase().startsWith("/help")) {
-                        printHelpMessage();
-                    } else if (input.toLowerCase().startsWith("/emotes")) {
-                        printEmoteHelpMessage();
-                    } else if (input.toLowerCase().startsWith("/join ")) {
-                        out.println("REQUESTEDNEWROOM " + input.substring(6));
-                    } else if (input.startsWith("UNSUCCESSFULROOMCHANGE ")) {
-                        out.println("MESSAGEHELP " + input.substring(23));
-                    } else if (input.startsWith("/votekick ")) {
-                        printVoteKickMessage(input.substring(10));
-                    } else if (input.toLowerCase().startsWith("/whisper ")) {
-                        String receiver = input.substring(9, input.indexOf(":"));
-                        String msg = input.substring(input.indexOf(": ") + 1);
-                        printWhisper(receiver, msg);
-                    } else if (input.toLowerCase().startsWith("/privatemsg ")) {
-                        String[] components = input.split(": ");
-                        String sender = components[0].substring(12);
-                        String receiver = components[1];
-                        String inputWithoutDate = input.substring(12);
-                        String messageAndReceiver = inputWithoutDate.substring(inputWithoutDate.indexOf(": ") + 2);
-                        String message = messageAndReceiver.substring(messageAndReceiver.indexOf(": ") + 2);
-                        printPrivMsg(sender, receiver, message);
-                    } else if (input.toLowerCase().startsWith("/file ")) {
-                        String fileName = input.substring(6, input.lastIndexOf(":"));
-                        int fileSize = Integer.parseInt(input.substring(input.lastIndexOf(":") + 1));
-                        readFileThenOutputToRoom(fileName, fileSize);
-                    } else if (input.toLowerCase().startsWith("/privatefile ")) {
-                        // /privatefile [receiver]:[filename]:[filesize]
-                        String fileReceiver = input.substring(13, input.indexOf(":"));
-                        String fileName = input.substring(input.indexOf(":") + 1, input.lastIndexOf(":"));
-                        int fileSize = Integer.parseInt(input.substring(input.lastIndexOf(":") + 1));
-                        readFileThenOutputPrivately(fileName, fileSize, fileReceiver);
-                    } else if (input.toLowerCase().startsWith("/requestfile ")) {
-                        try {
-                            String fileOwner = input.substring(13, input.indexOf(":"));
-                            String fileName = input.substring(input.indexOf(":") + 1);
-                            fetchFile(fileOwner, fileName);
-                        } catch (IOException | NullPointerException ioe) {
-                            out.println("FAILEDFILETRANSFER Error fetching file.");
-                        }
-                    } else { //if there is no valid command specified, assume the input is a message
-                        for (PrintWriter writer : outputWriters) {
-                            writer.println("MESSAGE " + "[" + new Date().toString() + "] " + name + ": " + input);
-                        }
-                    }
-                } catch (RuntimeException e) {
-                    //empty catch block
-                    //most exceptions are handled properly but this ensures that server never stops serving the
-                    //client the until connection is terminated, and prevents erroneous user commands such as
-                    //"/privatemessage [non-existing user]"
-                }
+        private void handleUserInput(Command command, String argument) {
+            try {
+                HANDLERS.get(command).handle(this, argument);
+            } catch (RuntimeException e) {
+                //empty catch block
+                //most exceptions are handled properly but this ensures that server never stops serving the
+                //client the until connection is terminated, and prevents erroneous user commands such as
+                //"/privatemessage [non-existing user]"
             }
         }
 
-        //handles when a client leaves the chatroom
+        //handles when a client leaves the chatroom, a kicked client has already been removed from the users
         private void userLeave() {
-            deleteRecursive(new File("resources/tempFiles/" + name));
-            if (out != null) {
-                outputWriters.remove(out);
+            if (hasLeft) {
+                return;
             }
+            hasLeft = true;
             if (name != null) {
-                System.out.println("[" + new Date().toString() + "] " + name + " has left.");
-                users.remove(name);
-                for (PrintWriter writer : outputWriters) {
-                    writer.println("MESSAGEUSERLEFT " + "[" + new Date().toString() + "] " + name
-                            + " has left");
+                home.files.release(name);
+            }
+            for (Room subscribed : subscriptions.values()) {
+                leaveSubscribed(subscribed);
+            }
+            home.users.update(() -> {
+                home.users.removeRecipient(out);
+                if (name != null && home.users.release(name, this)) {
+                    masterServer.userChanged(home, name, false);
+                    System.out.println("[" + new Date().toString() + "] " + name + " has left.");
+                    out.println("Successfully left.");
+                    home.left(name, true);
                 }
-                out.println("Successfully left.");
-                updateActiveUsers();
+            });
+            out.close();
+        }
+
+        /*
+        Subscribes the client to another room hosted by this server under its own name, after which the room's chat
+        and users are sent on the room's channel. A subscription fails when the room is not hosted here or the name
+        is taken in it, and only clients using version 2 of the wire format can tell the rooms' frames apart.
+         */
+        private void subscribe(String roomId) {
+            if (!out.isUpgraded()) {
+                out.println("MESSAGEHELP Subscribing to other rooms takes a newer client.");
+                return;
             }
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                System.out.println("Failure to close client socket: " + clientSocket.toString());
+            Room subscribed = rooms.get(roomId);
+            if (subscribed == null || subscribed == home) {
+                out.println("UNSUBSCRIBED " + roomId + " Room " + roomId + " cannot be subscribed to here.");
+                return;
+            }
+            if (subscriptions.containsKey(subscribed.channel)) {
+                return;
+            }
+            if (!subscribed.users.reserve(name, this)) {
+                out.println("UNSUBSCRIBED " + roomId + " The name " + name + " is taken in room " + roomId + ".");
+                return;
+            }
+            subscriptions.put(subscribed.channel, subscribed);
+            out.println("SUBSCRIBED " + roomId);
+            sendIn(subscribed, Frame.of("MESSAGEWELCOME Subscribed to room " + roomId + ", " + name + "."));
+            subscribed.users.update(() -> {
+                subscribed.joined(name);
+                subscribed.users.addSubscriber(out);
+                sendActiveUsers(subscribed);
+            });
+        }
+
+        //ends the client's subscription to the given room, if it has one
+        private void unsubscribe(String roomId) {
+            Room subscribed = rooms.get(roomId);
+            if (subscribed != null && subscriptions.containsKey(subscribed.channel)) {
+                leaveSubscribed(subscribed);
+                out.println("UNSUBSCRIBED " + roomId);
             }
         }
 
+        //leaves a subscribed room, unless a votekick has removed the client from it already
+        private void leaveSubscribed(Room subscribed) {
+            if (subscriptions.remove(subscribed.channel) == null) {
+                return;
+            }
+            subscribed.users.update(() -> {
+                subscribed.users.removeSubscriber(out);
+                if (subscribed.users.release(name, this)) {
+                    subscribed.left(name, true);
+                }
+            });
+        }
+
+        //sends the frame of the given room to the client, on the room's channel unless it is the client's own room
+        private void sendIn(Room room, Frame frame) {
+            out.send(room == home ? frame : frame.onStream(room.channel));
+        }
+
         //prints a help menu with commands to use in MultiChat.
         private void printHelpMessage() {
             out.println("MESSAGEHELP Type /quit to quit MultiChat.");
             out.println("MESSAGEHELP Type /emotes to access a menu of emoticons.");
             out.println("MESSAGEHELP Type /join to join another chat room, "
                     + "enter the room number such like: \"/join 59090\".");
+            if (out.isUpgraded() && rooms.size() > 1) {
+                out.println("MESSAGEHELP Type /subscribe to follow another room of this server as well, "
+                        + "and /switch to chat in it, such like: \"/subscribe 60000\" and \"/switch 60000\".");
+            }
             out.println("MESSAGEHELP Type /help to access this help menu.");
         }
 
@@ -369,200 +898,500 @@ public class MultiChatServer {
         //prints the proper vote kick message based on who initiated on whom, and if there is a current victim to be
         //kicked
         private void printVoteKickMessage(String victim) {
+            home.voteKickLock.lock();
+            try {
+                voteKick(victim);
+            } finally {
+                home.voteKickLock.unlock();
+            }
+        }
+
+        //votes to kick the victim, must hold the votekick lock
+        private void voteKick(String victim) {
             if (victim.equals(name)) {
                 out.println("FAILEDVOTEKICK  You cannot kick yourself!");
                 return;
             }
 
-            if (!users.containsKey(victim)) {
+            //a votekick is held by the members of this node, so only they can be kicked
+            if (home.users.get(victim) == null) {
                 out.println("FAILEDVOTEKICK There is no one here named " + victim);
                 return;
             }
 
-            if (curVictim != null & !victim.equals(curVictim)) {
+            if (home.curVictim != null & !victim.equals(home.curVictim)) {
                 out.println("FAILEDVOTEKICK You cannot kick " + victim +
                         " because someone else is currently being voted on");
                 return;
             }
 
-            if (alreadyVoted.contains(name)) {
+            if (home.alreadyVoted.contains(name)) {
                 out.println("FAILEDVOTEKICK You cannot kick " + victim +
                         " again.");
                 return;
             }
 
             // if this is the first vote for someone, then start the votekick
-            if (curVictim == null) {
-                for (PrintWriter writer : outputWriters) {
+            if (home.curVictim == null) {
+                Frame startedVoteKick = Frame.of("VOTEKICK Someone has started a votekick for " + victim + "!");
+                home.users.forEachRecipient(writer -> {
                     if (writer.equals(out)) {
                         writer.println("VOTEKICK You've started a votekick for " + victim + "!");
                     } else {
-                        writer.println("VOTEKICK Someone has started a votekick for " + victim + "!");
+                        writer.send(startedVoteKick);
                     }
-                }
-                numVotes = 1;
-                curVictim = victim;
-
-                // after ten seconds, the votekick ends
-                kickTimer = new Timer();
-                kickTimer.schedule(
-                        new java.util.TimerTask() {
-                            @Override
-                            public void run() {
-                                for (PrintWriter writer : outputWriters) {
-                                    writer.println("FAILEDVOTEKICK The votekick for "
-                                            + victim + " has run out of time!");
-                                }
-                                curVictim = null;
-                                numVotes = 0;
-                                alreadyVoted.clear();
-                                cancel();
-                            }
-                        },
-                        20000
-                );
+                });
+                home.users.sendToSubscribers(startedVoteKick);
+                home.numVotes = 1;
+                home.curVictim = victim;
+
+                // after twenty seconds, the votekick ends
+                home.kickTimeout = new java.util.TimerTask() {
+                    @Override
+                    public void run() {
+                        home.voteKickLock.lock();
+                        try {
+                            home.broadcast("FAILEDVOTEKICK The votekick for " + victim + " has run out of time!");
+                            home.curVictim = null;
+                            home.numVotes = 0;
+                            home.alreadyVoted.clear();
+                        } finally {
+                            home.voteKickLock.unlock();
+                        }
+                    }
+                };
+                voteKickTimer.schedule(home.kickTimeout, 20000);
             } else {
-                numVotes++;
+                home.numVotes++;
                 out.println("VOTEKICK You have voted to kick " + victim + "!");
 
                 // if the majority voted to kick
-                if (numVotes > users.size() / 2) {
+                if (home.numVotes > home.users.size() / 2) {
                     kickUser();
                 }
             }
-            alreadyVoted.add(name);
+            home.alreadyVoted.add(name);
 
         }
 
-        //kicks the user and reset the votekick timer
+        //kicks the user and reset the votekick timer, must hold the votekick lock
         private void kickUser() {
-            for (PrintWriter writer : outputWriters) {
-                writer.println("SUCCESSFULVOTEKICK " + curVictim + " was kicked!");
-            }
-
+            String kicked = home.curVictim;
             try {
-                users.get(curVictim).clientSocket.close();
-                users.remove(curVictim);
-                System.out.println("[" + new Date() + "] " + curVictim + " was kicked");
-                updateActiveUsers();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
+                home.users.update(() -> {
+                    Task victim = home.users.remove(kicked);
+                    if (victim == null) {
+                        //the victim left during the vote and has been announced as leaving already
+                        return;
+                    }
+                    home.broadcast("SUCCESSFULVOTEKICK " + kicked + " was kicked!");
+                    System.out.println("[" + new Date() + "] " + kicked + " was kicked");
+                    home.left(kicked, false);
+                    if (victim.home == home) {
+                        masterServer.userChanged(home, kicked, false);
+                        victim.out.close();
+                    } else if (victim.subscriptions.remove(home.channel) != null) {
+                        //a subscriber only loses its subscription to the room
+                        home.users.removeSubscriber(victim.out);
+                        victim.out.println("UNSUBSCRIBED " + home.id + " You were kicked from room " + home.id + ".");
+                    }
+                });
             } finally {
                 // reset values
-                numVotes = 0;
-                curVictim = null;
+                home.numVotes = 0;
+                home.curVictim = null;
 
                 // cancel the timer
-                kickTimer.cancel();
-                alreadyVoted.clear();
+                home.kickTimeout.cancel();
+                home.alreadyVoted.clear();
             }
         }
 
 
-        //sends the client an updated list of active users
-        private void updateActiveUsers() {
-            for (PrintWriter writer : outputWriters) {
-                StringBuilder activeUserList = new StringBuilder();
-                activeUserList.append("ACTIVEUSERLIST ");
-                for (String name : users.keySet()) {
-                    activeUserList.append(name).append(",");
-                }
-                writer.println(activeUserList.toString());
-            }
+        //sends the list of the given room's users to the client, versioned for a client receiving deltas of it
+        private void sendActiveUsers(Room room) {
+            room.users.update(() -> sendIn(room, Frame.of(out.isUpgraded()
+                    ? "USERLIST " + room.users.presenceVersion() + " " + room.presence.activeUserList()
+                    : "ACTIVEUSERLIST " + room.presence.activeUserList())));
         }
 
         //prints the whispered message to the receiver and the sender
         private void printWhisper(String receiver, String msg) {
-            users.get(receiver).out.println("WHISPER " + "[" + new Date().toString() + "] " + name + ": " + msg);
-            out.println("WHISPER " + "[" + new Date().toString() + "] " + name + ": " + msg);
+            String date = "[" + new Date().toString() + "] ";
+            sendIn(commandRoom, Frame.of("WHISPER " + date + name + ": " + msg));
+            sendPrivately(commandRoom, receiver, "WHISPER " + date + name + ": " + msg,
+                    "WHISPER " + date + name + "@" + commandRoom.id + ": " + msg);
         }
 
         //prints the private message to the sender and receiver
         private void printPrivMsg(String sender, String receiver, String message) {
-            out.println("PRIVATEMESSAGE " + "[" + new Date().toString() + "] " +
-                    sender + ": " + receiver + ": " + message);
-            users.get(receiver).out.println("PRIVATEMESSAGE " + "[" + new Date().toString() + "] " +
-                    sender + ": " + receiver + ": " + message);
+            String date = "[" + new Date().toString() + "] ";
+            sendIn(commandRoom, Frame.of("PRIVATEMESSAGE " + date + sender + ": " + receiver + ": " + message));
+            sendPrivately(commandRoom, receiver, "PRIVATEMESSAGE " + date + sender + ": " + receiver + ": " + message,
+                    "PRIVATEMESSAGE " + date + sender + "@" + commandRoom.id + ": " + receiver + ": " + message);
+        }
+
+        /*
+        Sends a private line to the receiver: to the user of that name in the given room, else to the user in the
+        room of this server named by name@room or the first room of this server that has the user, else through the
+        master server to the server of the user. The line of a receiver outside the given room names the sender as
+        sender@room, which it can answer. The sender is told when the receiver is nowhere to be found.
+         */
+        private void sendPrivately(Room from, String receiver, String line, String qualifiedLine) {
+            Task receiverTask = from.users.get(receiver);
+            if (receiverTask != null) {
+                receiverTask.sendIn(from, Frame.of(line));
+                return;
+            }
+            receiverTask = findMember(receiver);
+            if (receiverTask != null) {
+                receiverTask.sendIn(receiverTask.home, Frame.of(qualifiedLine));
+            } else if (!masterServer.route(from, name, receiver, qualifiedLine)) {
+                sendIn(from, Frame.of("MESSAGEHELP " + receiver + " is not online."));
+            }
         }
 
         //gets the requested file the outputs to all users in the room
-        private void readFileThenOutputToRoom(String fileName, int fileSize) {
+        private void readFileThenOutputToRoom(String fileName, long fileSize) {
             readFileThenOutput(fileName, fileSize, null, false);
         }
 
-        //gets the requested file the outputs to the sender and receiver
-        private void readFileThenOutputPrivately(String fileName, int fileSize, String receiver) {
-            readFileThenOutput(fileName, fileSize, receiver, true);
+        /*
+        Gets the requested file then outputs it to the sender and receiver. When relaying private files, a receiver
+        using version 2 of the wire format is sent the file as it is uploaded instead.
+         */
+        private void readFileThenOutputPrivately(String fileName, long fileSize, String receiver) {
+            Task receiverTask = null;
+            if (RELAY_PRIVATE_FILES) {
+                receiverTask = home.users.get(receiver);
+                receiverTask = receiverTask != null ? receiverTask : findMember(receiver);
+            }
+            if (receiverTask != null && receiverTask.out.isUpgraded()) {
+                relayFile(fileName, fileSize, receiverTask);
+            } else {
+                readFileThenOutput(fileName, fileSize, receiver, true);
+            }
+        }
+
+        /*
+        Streams the file uploaded by the client straight to the receiver. A relayed file is never kept, so a version
+        2 client is always told to upload it from its start.
+         */
+        private void relayFile(String fileName, long fileSize, Task receiverTask) {
+            String date = "[" + new Date() + "] ";
+            String sender = receiverTask.home == home ? name : name + "@" + home.id;
+            receiverTask.out.send(Frame.of("PRIVATEFILE " + date + sender + ": " + receiverTask.name + ": "
+                    + fileName));
+            out.send(Frame.of("PRIVATEFILE " + date + name + ": " + receiverTask.name + ": " + fileName));
+            FileRelay relay = new FileRelay(out, receiverTask.out);
+            relay.open("FILEDATA " + fileSize + ":" + fileName);
+            int stream = commandStream;
+            if (stream != 0) {
+                out.send(Frame.of("FILEOFFSET 0", stream));
+            }
+            out.receiveRaw(fileSize, new RelayedUpload(relay, fileName, fileSize, receiverTask, stream));
         }
 
-        //reads the requested file then outputs it either privately or to the room based on the parameter
-        private void readFileThenOutput(String fileName, int fileSize, String receiver, boolean isPrivate) {
-            //create a new fileoutputstream for the file
-            int initFileSize = fileSize;
+        /*
+        Reads the requested file into the file store then outputs it either privately or to the room based on the
+        parameter. A file uploaded again under the same name replaces the earlier one. A version 2 client uploads on
+        a stream of its own, and is first told how much of the file the store already holds from an upload of it that
+        was cut off, after which it only sends the rest.
+         */
+        private void readFileThenOutput(String fileName, long fileSize, String receiver, boolean isPrivate) {
+            int stream = commandStream;
+            FileStore.Upload upload;
             try {
-                byte[] buf = new byte[4096];
-                File file = new File("resources/tempFiles/" + name + "/" + fileName);
-                if(!file.createNewFile()) {
-                    out.println("FAILEDFILETRANSFER Duplicate file name.");
-                    clientSocket.getInputStream().skip(fileSize);
-                } else {
-                    FileOutputStream fos = new FileOutputStream(file, false);
-                    //read file
-                    while (fileSize > 0 && clientSocket.getInputStream().read(
-                            buf, 0, Math.min(buf.length, fileSize)) > -1) {
-                        fos.write(buf, 0, Math.min(buf.length, fileSize));
-                        fos.flush();
-                        fileSize -= buf.length;
-                    }
-                    fos.close();
-                    if (isPrivate) {
-                        System.out.println("Receiving private file from: " + name + " " + fileName + " size: "
-                                + initFileSize);
-                        users.get(receiver).out.println("PRIVATEFILE " + "[" + new Date() + "] "
-                                + name + ": " + receiver + ": " + fileName);
-                        users.get(name).out.println("PRIVATEFILE " + "[" + new Date() + "] "
-                                + name + ": " + receiver + ": " + fileName);
-                    } else {
-                        System.out.println("Receiving file from: " + name + " " + fileName + " size: " + initFileSize);
-                        for (PrintWriter writer : outputWriters) {
-                            writer.println("FILE " + "[" + new Date() + "] " + name + ": " + fileName);
-                        }
-                    }
-                }
-            } catch (FileNotFoundException fnfe) {
-                out.println("FAILEDFILETRANSFER Improper file name.");
+                upload = stream != 0 ? home.files.resume(name, fileName, fileSize)
+                        : home.files.begin(name, fileName, fileSize);
             } catch (IOException ioe) {
-                out.println("FAILEDFILETRANSFER Error communicating to server.");
+                out.send(Frame.of("FAILEDFILETRANSFER Error communicating to server.", stream));
+                if (stream == 0) {
+                    //the file's bytes still follow and must not be taken for commands
+                    out.receiveRaw(fileSize, new FileUpload(null, fileName, fileSize, receiver, isPrivate, 0));
+                }
+                return;
             }
+            if (stream != 0) {
+                out.send(Frame.of("FILEOFFSET " + upload.received(), stream));
+            }
+            out.receiveRaw(fileSize - upload.received(),
+                    new FileUpload(upload, fileName, fileSize, receiver, isPrivate, stream));
+        }
+
+        /*
+        Returns the file the owner uploaded to the client's room under the given name, or to another room of this
+        server for an owner named as name@room, such as the sender of a private file from another room. Returns null
+        when there is no such file.
+         */
+        private File lookupFile(String fileOwner, String fileName) {
+            File requested = home.files.lookup(fileOwner, fileName);
+            int at = roomSeparator(fileOwner);
+            if (requested != null || at < 0) {
+                return requested;
+            }
+            Room room = rooms.get(fileOwner.substring(at + 1));
+            return room == null ? null : room.files.lookup(fileOwner.substring(0, at), fileName);
         }
 
         private void fetchFile(String fileOwner, String fileName) throws IOException {
-            File requested = new File("resources/tempFiles/" + fileOwner + "/" + fileName);
+            File requested = lookupFile(fileOwner, fileName);
+            if (requested == null) {
+                throw new FileNotFoundException(fileOwner + ":" + fileName);
+            }
+            long fileSize = requested.length();
+            out.sendFile("FILEDATA " + fileSize + ":" + fileName, requested, 0, fileSize);
+        }
+
+        //sends the rest of a file the client has saved up to the given offset, such as before its connection dropped
+        private void resumeFile(String fileOwner, String fileName, long offset) throws IOException {
+            File requested = lookupFile(fileOwner, fileName);
+            if (requested == null) {
+                throw new FileNotFoundException(fileOwner + ":" + fileName);
+            }
             long fileSize = requested.length();
-            byte[] buffer = new byte[4096];
-            FileInputStream fis = new FileInputStream(requested);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            int amountRead;
-            out.println("FILEDATA " + fileSize + ":" + fileName);
-            while ((amountRead = bis.read(buffer, 0, buffer.length)) > -1) {
-                clientSocket.getOutputStream().write(buffer, 0, amountRead);
-            }
-            clientSocket.getOutputStream().flush();
-            fis.close();
-            bis.close();
+            if (offset < 0 || offset > fileSize) {
+                throw new IOException("Offset " + offset + " past the end of " + fileOwner + ":" + fileName);
+            }
+            out.sendFile("FILERESUME " + offset + ":" + fileSize + ":" + fileOwner + ":" + fileName, requested,
+                    offset, fileSize - offset);
+        }
+
+        /*
+        Sends the given range of a file, cut off at the end of the file, so that a client can download several ranges
+        of a large file at once. The FILERANGE header tells the range actually sent and the size of the whole file,
+        so a range of length 0 only asks for the size.
+         */
+        private void fetchRange(String fileOwner, String fileName, long offset, long length) throws IOException {
+            File requested = lookupFile(fileOwner, fileName);
+            if (requested == null) {
+                throw new FileNotFoundException(fileOwner + ":" + fileName);
+            }
+            long fileSize = requested.length();
+            if (offset < 0 || offset > fileSize || length < 0) {
+                throw new IOException("Range " + offset + ":" + length + " outside of " + fileOwner + ":" + fileName);
+            }
+            length = Math.min(length, fileSize - offset);
+            out.sendFile("FILERANGE " + offset + ":" + length + ":" + fileSize + ":" + fileOwner + ":" + fileName,
+                    requested, offset, length);
+        }
+
+        /*
+        Tells a version 2 client how much of its upload on the given stream has been received, once another chunk
+        has been received since the last acknowledgement or once the whole upload has. Returns the bytes
+        acknowledged by now.
+         */
+        private long acknowledge(int stream, long received, long acknowledged, boolean whole) {
+            if (stream == 0 || (!whole && received - acknowledged < WireFormat.ACK_BYTES)) {
+                return acknowledged;
+            }
+            out.send(Frame.of("FILEACK " + received, stream));
+            return received;
+        }
+
+        /*
+        Receives the raw bytes of a file uploaded by the client and writes them to the file store (or discards them
+        when there is no upload to the store), then outputs the file either privately or to the room once every byte
+        has been received and stored. The upload of a version 2 client is acknowledged as it is stored, and is kept
+        to be continued when the connection drops before it is complete.
+         */
+        private class FileUpload implements ClientConnection.RawReceiver {
+            private final FileStore.Upload upload;
+            private final String fileName;
+            private final long fileSize;
+            private final String receiver;
+            private final boolean isPrivate;
+            private final int stream;
+            private long acknowledged;
+            private boolean failed = false;
+
+            private FileUpload(FileStore.Upload upload, String fileName, long fileSize, String receiver,
+                               boolean isPrivate, int stream) {
+                this.upload = upload;
+                this.fileName = fileName;
+                this.fileSize = fileSize;
+                this.receiver = receiver;
+                this.isPrivate = isPrivate;
+                this.stream = stream;
+                this.acknowledged = upload == null ? 0 : upload.received();
+            }
+
+            @Override
+            public void accept(ByteBuffer chunk) {
+                if (upload == null || failed) {
+                    return;
+                }
+                try {
+                    upload.write(chunk);
+                } catch (IOException ioe) {
+                    failed = true;
+                    out.send(Frame.of("FAILEDFILETRANSFER Error communicating to server.", stream));
+                    return;
+                }
+                acknowledged = acknowledge(stream, upload.received(), acknowledged, false);
+            }
+
+            @Override
+            public void complete() {
+                if (upload == null) {
+                    return;
+                }
+                if (failed || hasLeft) {
+                    //the files of a client that has left are released already, so it may not store any more
+                    upload.abort();
+                    return;
+                }
+                try {
+                    upload.commit();
+                } catch (IOException ioe) {
+                    upload.abort();
+                    out.send(Frame.of("FAILEDFILETRANSFER Error communicating to server.", stream));
+                    return;
+                }
+                acknowledged = acknowledge(stream, fileSize, acknowledged, true);
+                if (isPrivate) {
+                    System.out.println("Receiving private file from: " + name + " " + fileName + " size: "
+                            + fileSize);
+                    String date = "[" + new Date() + "] ";
+                    out.send(Frame.of("PRIVATEFILE " + date + name + ": " + receiver + ": " + fileName));
+                    //a receiver elsewhere fetches the file from this room as name@room
+                    sendPrivately(home, receiver, "PRIVATEFILE " + date + name + ": " + receiver + ": " + fileName,
+                            "PRIVATEFILE " + date + name + "@" + home.id + ": " + receiver + ": " + fileName);
+                } else {
+                    System.out.println("Receiving file from: " + name + " " + fileName + " size: " + fileSize);
+                    home.broadcast("FILE " + "[" + new Date() + "] " + name + ": " + fileName);
+                }
+            }
+
+            @Override
+            public void abort() {
+                if (upload == null) {
+                    return;
+                }
+                if (stream != 0 && !failed) {
+                    upload.keep();
+                    System.out.println("Kept partial file from: " + name + " " + fileName + " "
+                            + upload.received() + " of " + fileSize + " bytes");
+                } else {
+                    upload.abort();
+                    out.println("FAILEDFILETRANSFER Error communicating to server.");
+                }
+            }
+        }
+
+        //receives the raw bytes of a file uploaded by the client and relays them to the file's receiver as they come
+        private class RelayedUpload implements ClientConnection.RawReceiver {
+            private final FileRelay relay;
+            private final String fileName;
+            private final long fileSize;
+            private final Task receiverTask;
+            private final int stream;
+            private long received = 0;
+            private long acknowledged = 0;
+
+            private RelayedUpload(FileRelay relay, String fileName, long fileSize, Task receiverTask, int stream) {
+                this.relay = relay;
+                this.fileName = fileName;
+                this.fileSize = fileSize;
+                this.receiverTask = receiverTask;
+                this.stream = stream;
+            }
+
+            @Override
+            public void accept(ByteBuffer chunk) {
+                received += chunk.remaining();
+                relay.write(chunk);
+                acknowledged = acknowledge(stream, received, acknowledged, false);
+            }
+
+            @Override
+            public void complete() {
+                acknowledged = acknowledge(stream, fileSize, acknowledged, true);
+                System.out.println("Relayed private file from: " + name + " to: " + receiverTask.name + " "
+                        + fileName + " size: " + fileSize);
+            }
+
+            @Override
+            public void abort() {
+                relay.fail("FAILEDFILETRANSFER The sender's upload of " + fileName + " failed.");
+                out.send(Frame.of("FAILEDFILETRANSFER Error communicating to server.", stream));
+            }
         }
     }
 
 
-    //sends the client an updated list of active servers
+    //sends the clients an updated list of active servers
     private static void updateServerList() {
-        for (PrintWriter out : outputWriters) {
-            StringBuilder serverList = new StringBuilder();
-            serverList.append("ACTIVESERVERLIST ");
-            for (String serverName : serverNames) {
-                serverList.append(serverName).append(",");
+        sendToEveryClient(Frame.droppable(serverList()));
+    }
+
+    //returns the ACTIVESERVERLIST line of the active servers
+    private static String serverList() {
+        StringBuilder serverList = new StringBuilder();
+        serverList.append("ACTIVESERVERLIST ");
+        for (String serverName : serverNames) {
+            serverList.append(serverName).append(",");
+        }
+        return serverList.toString();
+    }
+
+    //sends the same frame once to every client of every room, on the stream of the client's own room
+    private static void sendToEveryClient(Frame frame) {
+        for (Room hosted : rooms.values()) {
+            hosted.users.forEachRecipient(recipient -> recipient.send(frame));
+        }
+    }
+
+    /*
+    Returns the rooms hosted by this server by their number: the rooms of its ports, and the rooms listed in the
+    system property "multichat.rooms" (room numbers separated by commas), which clients can only reach by subscribing
+    to them over the connection to their own room.
+     */
+    private static Map<String, Room> hostRooms(List<String> portNumbers) {
+        Map<String, Room> hosted = new LinkedHashMap<>();
+        for (String portNumber : portNumbers) {
+            hosted.put(portNumber, new Room(portNumber));
+        }
+        for (String roomId : System.getProperty("multichat.rooms", "").split(",")) {
+            if (!roomId.isBlank()) {
+                hosted.putIfAbsent(roomId.trim(), new Room(roomId.trim()));
             }
-            out.println(serverList.toString());
+        }
+        return Collections.unmodifiableMap(hosted);
+    }
+
+    //prints the output waiting to be written to every user and the frames dropped for it, slowest first
+    private static void printQueuedOutput() {
+        List<Map.Entry<String, Task>> byQueuedOutput = new ArrayList<>();
+        for (Room hosted : rooms.values()) {
+            //a subscriber is listed in its own room only
+            hosted.users.snapshot().forEach((name, task) -> {
+                if (task.home == hosted) {
+                    byQueuedOutput.add(Map.entry(name, task));
+                }
+            });
+        }
+        byQueuedOutput.sort((a, b) -> b.getValue().out.queuedOutput() - a.getValue().out.queuedOutput());
+        for (Map.Entry<String, Task> user : byQueuedOutput) {
+            System.out.println(user.getKey() + ": " + user.getValue().out.queuedOutput() + " queued, "
+                    + user.getValue().out.droppedFrames() + " dropped");
+        }
+    }
+
+    //waits until every client's queued output is written, or until the given amount of milliseconds has passed
+    private static void awaitQueuedOutput(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Room hosted : rooms.values()) {
+            hosted.users.forEachRecipient(writer -> {
+                while (writer.queuedOutput() > 0 && System.currentTimeMillis() < deadline) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            });
         }
     }
 
@@ -579,6 +1408,103 @@ public class MultiChatServer {
                 deleteRecursive(child);
         fileOrDirectory.delete();
     }
-}
 
+    /*
+    A room hosted by this server, with its members, the announcements of their changes, the channel of the room, the
+    files uploaded by its members and its votekick.
+
+    The room is shared over the bus with the other nodes serving it: its chat and its members joining and leaving are
+    published as "CHAT [line]", "JOINED [name]", "LEFT [name]" and "KICKED [name]", and a node starting to serve it
+    publishes "HELLO", which the others answer with a JOINED line for each of their members. The files and the
+    votekick of a room are its node's own.
+     */
+    private static final class Room implements RoomBus.Listener {
+        private final String id; //the number of the room
+        private final int channel; //the stream subscribers of the room receive its frames on
+        private final RoomRegistry<Task> users;
+        private final PresenceAggregator presence;
+        //the files uploaded by the room's members, each distinct content stored once
+        private final FileStore files;
+
+        //guards the state of the room's votekick, which any of its members may vote in and the timer may end
+        private final ReentrantLock voteKickLock = new ReentrantLock();
+        private String curVictim = null;
+        private int numVotes = 0;
+        private TimerTask kickTimeout; //ends the current votekick once it runs out of time
+        private final Set<String> alreadyVoted = new HashSet<>();
+
+        private Room(String id) {
+            int number = Integer.parseInt(id);
+            if (number < 0) {
+                throw new NumberFormatException("Negative room number: " + id);
+            }
+            this.id = id;
+            this.channel = WireFormat.CHANNEL | number;
+            this.users = new RoomRegistry<>(channel);
+            this.presence = new PresenceAggregator(users);
+            this.files = new FileStore(new File("resources/tempFiles", id));
+        }
 
+        //formats and encodes the line once, then sends the same frame to every member of the room on this node
+        private void broadcast(String line) {
+            users.broadcast(Frame.droppable(line));
+        }
+
+        //sends the chat line to every member of the room, on this node and the others, unless the bus refuses it
+        private void chat(String line) {
+            bus.publish(id, "CHAT " + line);
+            broadcast(line);
+        }
+
+        //announces that the named member joined the room on this node, must be called inside the room's update
+        private void joined(String name) {
+            presence.joined(name);
+            bus.publish(id, "JOINED " + name);
+        }
+
+        //announces that the named member left the room on this node, must be called inside the room's update
+        private void left(String name, boolean notice) {
+            presence.left(name, notice);
+            bus.publish(id, (notice ? "LEFT " : "KICKED ") + name);
+        }
+
+        //starts sharing the room with the other nodes serving it, which are asked for their members
+        private void share() throws IOException {
+            bus.subscribe(id, this);
+            bus.publish(id, "HELLO");
+        }
+
+        @Override
+        public void received(String node, String line) {
+            if (line.startsWith("CHAT ")) {
+                users.broadcast(Frame.droppable(line.substring(5)));
+            } else if (line.startsWith("JOINED ")) {
+                String name = line.substring(7);
+                users.update(() -> {
+                    if (users.joinedElsewhere(name, node)) {
+                        presence.joined(name);
+                    }
+                });
+            } else if (line.startsWith("LEFT ") || line.startsWith("KICKED ")) {
+                String name = line.substring(line.indexOf(' ') + 1);
+                users.update(() -> {
+                    if (users.leftElsewhere(name, node)) {
+                        presence.left(name, line.startsWith("LEFT "));
+                    }
+                });
+            } else if (line.equals("HELLO")) {
+                //inside the update, so no member joining or leaving meanwhile is announced out of order
+                users.update(() -> users.snapshot().keySet().forEach(name -> bus.publish(id, "JOINED " + name)));
+            }
+        }
+
+        @Override
+        public void nodeLeft(String node) {
+            users.update(() -> {
+                for (String name : users.nodeLeft(node)) {
+                    presence.left(name, true);
+                }
+            });
+        }
+    }
+}
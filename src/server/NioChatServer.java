@@ -0,0 +1,74 @@
+package server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+/**
+ * The non-blocking front end of a MultiChatServer. Accepts client connections on the port of every room it hosts and
+ * spreads them over a small, fixed set of EventLoops shared by all the rooms, so the amount of connected clients is
+ * bound by memory rather than by threads. Every connection is secured by a TlsChannel and speaks the same line
+ * protocol as the blocking server.
+ */
+class NioChatServer {
+
+    private final List<String> portNumbers;
+    private final EventLoop[] loops;
+    private final SSLContext sslContext;
+    private final BufferPool bufferPool;
+    private final ExecutorService handshakeTasks;
+    private int next = 0; //the event loop of the next connection, used by the accepting thread only
+
+    /**
+     * Creates a non-blocking server for the given ports with the given amount of event loop threads.
+     *
+     * @param portNumbers    the port numbers (rooms) of the server
+     * @param eventLoopCount the amount of event loop threads serving the clients
+     * @param sslContext     the initialized SSLContext every connection's SSLEngine is created from
+     * @throws IOException when an event loop's Selector cannot be opened
+     */
+    NioChatServer(List<String> portNumbers, int eventLoopCount, SSLContext sslContext) throws IOException {
+        this.portNumbers = portNumbers;
+        this.sslContext = sslContext;
+        SSLSession session = sslContext.createSSLEngine().getSession();
+        this.bufferPool = new BufferPool(Math.max(session.getPacketBufferSize(),
+                session.getApplicationBufferSize()), 1024);
+        this.handshakeTasks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.loops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            loops[i] = new EventLoop("MultiChat-io-" + i);
+        }
+    }
+
+    /**
+     * Starts the event loops then accepts client connections on the calling thread for as long as the server runs,
+     * handing every accepted connection to the event loops in turn, whichever port it arrived on.
+     *
+     * @throws IOException when a port cannot be bound or waiting for connections fails
+     */
+    void run() throws IOException {
+        PortListener listener = new PortListener(portNumbers);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        listener.run(this::open);
+    }
+
+    //hands the connection accepted on the given port to the next event loop
+    private void open(SocketChannel channel, String portNumber) throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        EventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        NioConnection connection = new NioConnection(channel, engine, bufferPool, handshakeTasks, loop, portNumber);
+        loop.execute(connection::open);
+    }
+}
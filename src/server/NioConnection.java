@@ -0,0 +1,563 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking connection to a single client, serviced by the EventLoop it is registered to. Feeds the client's
+ * TLS channel through an InboundDecoder to the connection's MultiChatServer Task. Output from any thread is put in a
+ * bounded OutboundQueue and written by the event loop whenever the channel is writable.
+ */
+class NioConnection implements ClientConnection, EventLoop.Handler {
+
+    //most reads per readiness event, so a client that sends faster than it reads cannot starve its own output
+    private static final int MAX_READS_PER_PUMP = 16;
+
+    //most records written per flush while files are downloaded, so a download cannot starve the client's input
+    private static final int MAX_RECORDS_PER_FLUSH = 16;
+
+    //longest time output sent by other threads may wait for more output to be written together with it
+    private static final long MAX_FLUSH_DELAY_MILLIS = Long.getLong("multichat.flush.maxDelayMillis", 0);
+
+    private final SocketChannel channel;
+    private final TlsChannel tlsChannel;
+    private final BufferPool pool;
+    private final EventLoop loop;
+    private final MultiChatServer.Task task;
+    private final InboundDecoder decoder;
+    private SelectionKey key;
+    private volatile boolean upgraded = false; //whether the client has switched to version 2 of the wire format
+    private boolean binaryOutput = false; //whether output is encoded in version 2 of the wire format
+    private int nextStream = WireFormat.FIRST_SERVER_STREAM; //the id of the next file download's stream
+    private FrameDeflater deflater; //compresses the frames once the client has asked for it
+    private boolean inputSuspended = false; //whether reading the client's input is suspended
+
+    private final OutboundQueue<Outgoing> outbound = OutboundQueue.fromSystemProperties();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final ArrayDeque<FileOutgoing> transfers = new ArrayDeque<>(); //downloads whose contents are being sent
+    private ByteBuffer coalesced; //queued output gathered to be written as one TLS record, in write mode
+    private volatile boolean closeRequested = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a connection for the given accepted channel, which is serviced by the given event loop.
+     *
+     * @param channel      the accepted, non-blocking channel of the client
+     * @param engine       the server mode SSLEngine of the connection
+     * @param pool         the pool the connection's TLS buffers are taken from
+     * @param taskExecutor the executor that runs the SSLEngine's delegated tasks
+     * @param loop         the event loop that services the channel
+     * @param portNumber   the port number (room) of the server
+     * @throws SSLException when the TLS handshake cannot be started
+     */
+    NioConnection(SocketChannel channel, SSLEngine engine, BufferPool pool, Executor taskExecutor, EventLoop loop,
+                  String portNumber) throws SSLException {
+        this.channel = channel;
+        this.pool = pool;
+        this.loop = loop;
+        this.tlsChannel = new TlsChannel(channel, engine, pool, taskExecutor, () -> loop.execute(this::pump));
+        this.task = new MultiChatServer.Task(this, portNumber);
+        this.decoder = new InboundDecoder(task, this::upgrade);
+    }
+
+    //registers the channel to the event loop and starts the Task, must be called on the loop's thread
+    void open() {
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            task.start();
+        } catch (IOException ioe) {
+            System.out.println("Client input/output failed to connect: " + channel.toString());
+            closeNow();
+        }
+    }
+
+    @Override
+    public void handleReady(SelectionKey key) {
+        pump();
+    }
+
+    /*
+    Reads and decodes whatever the client has sent, then writes whatever output is queued. Both are attempted on any
+    readiness since a TLS handshake may need either direction to progress the other.
+     */
+    private void pump() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!closeRequested) {
+                read();
+            }
+            flush();
+        } catch (IOException ioe) {
+            closeNow();
+        }
+    }
+
+    //reads what is available from the channel and decodes it, continuing in a later pump when over the read budget
+    private void read() throws IOException {
+        ByteBuffer readBuffer = loop.readBuffer();
+        for (int reads = 0; !closeRequested && !inputSuspended; reads++) {
+            if (reads == MAX_READS_PER_PUMP) {
+                //the TLS channel may hold decrypted bytes the selector knows nothing about
+                loop.execute(this::pump);
+                return;
+            }
+            readBuffer.clear();
+            int amountRead = tlsChannel.read(readBuffer);
+            if (amountRead < 0) {
+                closeNow();
+                return;
+            }
+            if (amountRead == 0) {
+                return;
+            }
+            readBuffer.flip();
+            try {
+                decoder.decode(readBuffer);
+            } catch (ProtocolException pe) {
+                System.out.println("Client sent a malformed message (" + pe.getMessage() + "): "
+                        + channel.toString());
+                closeNow();
+                return;
+            }
+        }
+    }
+
+    /*
+    Acknowledges the client's switch to version 2 with the last line of text. Everything queued after the
+    acknowledgement is encoded in version 2 when it is gathered for writing, whichever thread queued it.
+     */
+    private void upgrade() {
+        upgraded = true;
+        send(new FrameOutgoing(Frame.of(WireFormat.PROTOCOL_LINE), true));
+    }
+
+    @Override
+    public void send(Frame frame) {
+        send(new FrameOutgoing(frame, false));
+    }
+
+    @Override
+    public void compressOutput() {
+        send(new CompressOutgoing());
+    }
+
+    @Override
+    public void receiveRaw(long size, RawReceiver receiver) {
+        decoder.receiveRaw(size, receiver);
+    }
+
+    @Override
+    public void sendFile(String header, File file, long offset, long length) throws IOException {
+        send(new FileOutgoing(header, new MappedFileChannel(file, offset, length)));
+    }
+
+    @Override
+    public void sendRelayed(FileRelay.Chunk chunk) {
+        send(new RelayOutgoing(chunk));
+    }
+
+    @Override
+    public void suspendInput() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::suspendInput);
+            return;
+        }
+        inputSuspended = true;
+        if (key != null && !closed) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void resumeInput() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::resumeInput);
+            return;
+        }
+        if (!inputSuspended || closed) {
+            return;
+        }
+        inputSuspended = false;
+        if (!closeRequested) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        //the TLS channel may hold decrypted bytes the selector knows nothing about
+        pump();
+    }
+
+    //returns the id of a new stream for a download, must be called on the loop's thread
+    private int openStream() {
+        int stream = nextStream;
+        nextStream += 2;
+        return stream;
+    }
+
+    @Override
+    public boolean isUpgraded() {
+        return upgraded;
+    }
+
+    @Override
+    public int queuedOutput() {
+        return outbound.size();
+    }
+
+    @Override
+    public long droppedFrames() {
+        return outbound.dropped();
+    }
+
+    //queues the given output and makes sure the event loop will write it, disconnecting a client that cannot keep up
+    private void send(Outgoing outgoing) {
+        if (closed) {
+            outgoing.discard();
+            return;
+        }
+        if (!outbound.offer(outgoing)) {
+            outgoing.discard();
+            loop.execute(this::disconnectSlowConsumer);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (MAX_FLUSH_DELAY_MILLIS > 0) {
+                loop.schedule(this::flush, MAX_FLUSH_DELAY_MILLIS);
+            } else {
+                loop.execute(this::flush);
+            }
+        }
+    }
+
+    //drops the queued output of a client that cannot keep up, tells it why if it can take it now, then closes it
+    private void disconnectSlowConsumer() {
+        if (closed) {
+            return;
+        }
+        System.out.println("[" + new Date() + "] Disconnecting " + channel.toString()
+                + ": too slow to receive the room's messages.");
+        outbound.clear();
+        outbound.offer(new FrameOutgoing(Frame.of("DISCONNECTED Too slow to receive the room's messages."), false));
+        flush();
+        closeNow();
+    }
+
+    /*
+    Writes as much of the queued output as the channel accepts, waiting for writability when it accepts no more. The
+    queued output is gathered into a single buffer first, so a burst of lines is encrypted into as few TLS records (and
+    written with as few system calls) as it fits in. The room left after the queued output is filled with DATA frames
+    of the downloads in progress, so the queued output never waits for more than a record behind a download.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            for (int records = 0; tlsChannel.flush(); records++) {
+                if (coalesced == null) {
+                    if (outbound.isEmpty() && transfers.isEmpty()) {
+                        break;
+                    }
+                    coalesced = pool.acquire();
+                }
+                if (records == MAX_RECORDS_PER_FLUSH && !transfers.isEmpty()) {
+                    //the client's input is read in between, so a download does not hold up its chat
+                    loop.execute(this::pump);
+                    return;
+                }
+                Outgoing head;
+                while (coalesced.hasRemaining() && (head = outbound.peek()) != null && head.copyTo(this, coalesced)) {
+                    outbound.poll();
+                }
+                copyTransfers();
+                coalesced.flip();
+                tlsChannel.write(coalesced);
+                boolean written = !coalesced.hasRemaining();
+                coalesced.compact();
+                if (!written) {
+                    break;
+                }
+                if (outbound.isEmpty() && transfers.isEmpty()) {
+                    pool.release(coalesced);
+                    coalesced = null;
+                }
+            }
+            if (tlsChannel.wantsWrite()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeRequested && coalesced == null && outbound.isEmpty()) {
+                    closeNow();
+                }
+            }
+        } catch (IOException ioe) {
+            closeNow();
+        }
+    }
+
+    //fills the room left in the gathered output with a DATA frame of each download in turn
+    private void copyTransfers() throws IOException {
+        FileOutgoing transfer;
+        while (coalesced.remaining() > WireFormat.HEADER_LENGTH && (transfer = transfers.poll()) != null) {
+            if (transfer.copyFrameTo(coalesced)) {
+                transfers.add(transfer);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!loop.inEventLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+        if (closeRequested) {
+            return;
+        }
+        //stops reading from the client and closes the channel once the queued output has been written
+        closeRequested = true;
+        decoder.stop();
+        if (key == null) {
+            closeNow();
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            flush();
+        }
+    }
+
+    //closes the channel, discarding any output that has not been written
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeRequested = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            tlsChannel.close();
+        } catch (IOException e) {
+            System.out.println("Failure to close client channel: " + channel.toString());
+        }
+        outbound.clear();
+        while (!transfers.isEmpty()) {
+            transfers.poll().discard();
+        }
+        if (coalesced != null) {
+            pool.release(coalesced);
+            coalesced = null;
+        }
+        if (deflater != null) {
+            deflater.end();
+        }
+        decoder.abort();
+        task.disconnected();
+    }
+
+    //an item of queued output that may take several copies to be fully gathered for writing
+    private interface Outgoing extends OutboundQueue.Item {
+
+        //copies as much of the item as fits into the buffer, returning whether the whole item has been copied
+        boolean copyTo(NioConnection connection, ByteBuffer buffer) throws IOException;
+    }
+
+    /*
+    Queued output of a frame shared with other connections, which may be the acknowledgement that switches the output
+    to version 2. The frame is viewed in the connection's encoding once it is first gathered for writing, and
+    compressed then once the client has asked for it.
+     */
+    private static class FrameOutgoing implements Outgoing {
+        private final Frame frame;
+        private final boolean upgrade;
+        private ByteBuffer bytes;
+
+        private FrameOutgoing(Frame frame, boolean upgrade) {
+            this.frame = frame;
+            this.upgrade = upgrade;
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return frame.isDroppable();
+        }
+
+        @Override
+        public boolean copyTo(NioConnection connection, ByteBuffer buffer) {
+            if (bytes == null) {
+                bytes = connection.deflater != null ? ByteBuffer.wrap(connection.deflater.deflate(frame.buffer(true)))
+                        : frame.buffer(connection.binaryOutput);
+                if (upgrade) {
+                    connection.binaryOutput = true;
+                }
+            }
+            if (bytes.remaining() <= buffer.remaining()) {
+                buffer.put(bytes);
+                return true;
+            }
+            ByteBuffer part = bytes.slice();
+            part.limit(buffer.remaining());
+            buffer.put(part);
+            bytes.position(bytes.position() + part.limit());
+            return false;
+        }
+
+        @Override
+        public void discard() {
+            //nothing to release
+        }
+    }
+
+    //marks where the client asked for compression, compressing every frame gathered after it
+    private static class CompressOutgoing implements Outgoing {
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+
+        @Override
+        public boolean copyTo(NioConnection connection, ByteBuffer buffer) {
+            if (connection.deflater == null) {
+                connection.deflater = new FrameDeflater();
+            }
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            //nothing to release
+        }
+    }
+
+    //queued output of a frame of a relayed file's stream, which opens a new stream when it is the first of the relay
+    private static class RelayOutgoing implements Outgoing {
+        private final FileRelay.Chunk chunk;
+        private ByteBuffer bytes;
+
+        private RelayOutgoing(FileRelay.Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+
+        @Override
+        public boolean copyTo(NioConnection connection, ByteBuffer buffer) {
+            if (bytes == null) {
+                bytes = ByteBuffer.wrap(chunk.encode(chunk.opensStream() ? connection.openStream() : 0));
+            }
+            int part = Math.min(bytes.remaining(), buffer.remaining());
+            buffer.put(bytes.array(), bytes.position(), part);
+            bytes.position(bytes.position() + part);
+            if (bytes.hasRemaining()) {
+                return false;
+            }
+            chunk.release();
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            chunk.release();
+        }
+    }
+
+    /*
+    Queued output of a header line followed by a file's contents, copied from the mapped file a buffer at a time as
+    the channel drains. In version 2 the header is sent on a stream of its own, after which the connection interleaves
+    the contents as DATA frames of that stream with the rest of its output. In the text protocol the contents follow
+    the header raw.
+     */
+    private static class FileOutgoing implements Outgoing {
+        private final String header;
+        private final MappedFileChannel file;
+        private ByteBuffer headerBytes;
+        private boolean binary;
+        private int stream;
+
+        private FileOutgoing(String header, MappedFileChannel file) {
+            this.header = header;
+            this.file = file;
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+
+        @Override
+        public boolean copyTo(NioConnection connection, ByteBuffer buffer) throws IOException {
+            if (headerBytes == null) {
+                binary = connection.binaryOutput;
+                stream = binary ? connection.openStream() : 0;
+                headerBytes = ByteBuffer.wrap(Frame.encode(header, binary, stream));
+            }
+            if (headerBytes.hasRemaining()) {
+                int headerPart = Math.min(headerBytes.remaining(), buffer.remaining());
+                buffer.put(headerBytes.array(), headerBytes.position(), headerPart);
+                headerBytes.position(headerBytes.position() + headerPart);
+                if (headerBytes.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (binary) {
+                connection.transfers.add(this);
+                return true;
+            }
+            return copyRawTo(buffer);
+        }
+
+        //copies the contents following the header as they are
+        private boolean copyRawTo(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer) < 0) {
+                    file.close();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        //copies the next DATA frame of the contents, read straight into the buffer after room for its header, returning
+        //false and closing the file once the contents have all been copied
+        private boolean copyFrameTo(ByteBuffer buffer) throws IOException {
+            int headerAt = buffer.position();
+            ByteBuffer payload = buffer.slice();
+            payload.position(WireFormat.HEADER_LENGTH);
+            payload.limit(Math.min(payload.limit(), WireFormat.HEADER_LENGTH + WireFormat.DATA_CHUNK));
+            int amountRead = file.read(payload);
+            if (amountRead < 0) {
+                file.close();
+                return false;
+            }
+            buffer.put(headerAt, WireFormat.DATA);
+            buffer.putInt(headerAt + 1, stream);
+            buffer.putInt(headerAt + 5, amountRead);
+            buffer.position(headerAt + WireFormat.HEADER_LENGTH + amountRead);
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                //the file was only being read
+            }
+        }
+    }
+}
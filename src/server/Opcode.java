@@ -0,0 +1,74 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The types of the messages a MultiChatServer sends to its clients. In the text protocol a type is the keyword that
+ * starts the line, in version 2 of the wire format it is the opcode of the frame.
+ */
+enum Opcode {
+    SUBMITNAME(0x01),
+    SUBMITANOTHERNAME(0x02),
+    NAMEACCEPTED(0x03),
+    MESSAGE(0x04),
+    MESSAGEUSERJOINED(0x05),
+    MESSAGEUSERLEFT(0x06),
+    MESSAGEWELCOME(0x07),
+    ACTIVEUSERLIST(0x08),
+    MESSAGEHELP(0x09),
+    VOTEKICK(0x0A),
+    FAILEDVOTEKICK(0x0B),
+    SUCCESSFULVOTEKICK(0x0C),
+    ACTIVESERVERLIST(0x0D),
+    WHISPER(0x0E),
+    PRIVATEMESSAGE(0x0F),
+    FILE(0x10),
+    FAILEDFILETRANSFER(0x11),
+    FILEDATA(0x12),
+    PRIVATEFILE(0x13),
+    SERVERCLOSE(0x14),
+    DISCONNECTED(0x15),
+    REQUESTEDNEWROOM(0x16),
+    //a line without a keyword, such as "Successfully left."
+    NOTICE(0x17),
+    //the versioned changes and snapshots of the room's users, only sent to clients using version 2
+    USERJOINED(0x18),
+    USERLEFT(0x19),
+    USERLIST(0x1A),
+    //the progress of transfers, only sent to clients using version 2 on the streams of their transfers
+    FILEOFFSET(0x1B),
+    FILEACK(0x1C),
+    FILERESUME(0x1D),
+    //the header of a range of a file, followed by the range's bytes
+    FILERANGE(0x1E),
+    //the start and end of a subscription to another room, whose frames travel on the room's channel in between
+    SUBSCRIBED(0x1F),
+    UNSUBSCRIBED(0x20);
+
+    private static final Map<String, Opcode> BY_KEYWORD = new HashMap<>();
+
+    static {
+        for (Opcode opcode : values()) {
+            if (opcode != NOTICE) {
+                BY_KEYWORD.put(opcode.name(), opcode);
+            }
+        }
+    }
+
+    private final byte code;
+
+    Opcode(int code) {
+        this.code = (byte) code;
+    }
+
+    //returns the opcode of the type in version 2 of the wire format
+    byte code() {
+        return code;
+    }
+
+    //returns the type starting with the given keyword, or NOTICE when the keyword is not one of a type
+    static Opcode forKeyword(String keyword) {
+        return BY_KEYWORD.getOrDefault(keyword, NOTICE);
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of the output waiting to be written to a single client. Any thread may offer output while the
+ * connection's writer side takes it from the head, so a slow client only ever fills its own queue instead of
+ * blocking the thread that broadcasts to it. Once the queue is full, its overflow policy either drops the oldest
+ * droppable output or has the client disconnected.
+ *
+ * <p>The capacity and policy are read from the system properties "multichat.outboundQueue.capacity" (default 1024)
+ * and "multichat.outboundQueue.policy" ("dropOldest" by default, or "disconnect").
+ *
+ * @param <T> the type of output held by the queue
+ */
+class OutboundQueue<T extends OutboundQueue.Item> {
+
+    private final Deque<T> items = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private long dropped = 0;
+
+    /**
+     * Creates an empty queue with the given capacity and overflow policy.
+     *
+     * @param capacity the most items the queue holds
+     * @param policy   what the queue does when offered an item while full
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    //creates an empty queue configured by the system properties
+    static <T extends Item> OutboundQueue<T> fromSystemProperties() {
+        String policy = System.getProperty("multichat.outboundQueue.policy", "dropOldest");
+        return new OutboundQueue<>(Integer.getInteger("multichat.outboundQueue.capacity", 1024),
+                policy.equals("disconnect") ? OverflowPolicy.DISCONNECT : OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Adds the item to the tail of the queue. When the queue is full and its policy is to drop the oldest output,
+     * the oldest droppable item that is not being written (or else the offered item itself, if droppable) is dropped.
+     *
+     * @param item the item to be added
+     * @return false when the client has to be disconnected because the item could not be queued
+     */
+    boolean offer(T item) {
+        lock.lock();
+        try {
+            if (items.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT || !dropOldest(item)) {
+                    return false;
+                }
+                if (item.isDroppable() && items.size() >= capacity) {
+                    return true;
+                }
+            }
+            items.addLast(item);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //drops the oldest droppable item after the head (or the offered one), returns whether anything was dropped
+    private boolean dropOldest(T offered) {
+        Iterator<T> iterator = items.iterator();
+        iterator.next(); //the head may already be partially written
+        while (iterator.hasNext()) {
+            T queued = iterator.next();
+            if (queued.isDroppable()) {
+                iterator.remove();
+                queued.discard();
+                dropped++;
+                return true;
+            }
+        }
+        if (offered.isDroppable()) {
+            offered.discard();
+            dropped++;
+            return true;
+        }
+        return false;
+    }
+
+    //returns the item at the head of the queue without removing it, or null when the queue is empty
+    T peek() {
+        lock.lock();
+        try {
+            return items.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //removes and returns the item at the head of the queue, or null when the queue is empty
+    T poll() {
+        lock.lock();
+        try {
+            return items.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //returns whether the queue is empty
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    //returns the amount of items in the queue
+    int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //returns the amount of items dropped since the queue was created
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //discards every item of the queue
+    void clear() {
+        lock.lock();
+        try {
+            T item;
+            while ((item = items.pollFirst()) != null) {
+                item.discard();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * What a queue does when it is offered an item while full.
+     */
+    enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT
+    }
+
+    /**
+     * An item of output held by an OutboundQueue.
+     */
+    interface Item {
+
+        /**
+         * Returns whether the item may be dropped when the client cannot keep up, rather than disconnecting it.
+         *
+         * @return whether the item may be dropped
+         */
+        boolean isDroppable();
+
+        /**
+         * Releases the resources of an item that will never be written.
+         */
+        void discard();
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Accepts the client connections of every room port of a MultiChatServer on a single thread. The ports are bound by
+ * non-blocking ServerSocketChannels registered with one Selector, so a server hosting many rooms needs no more
+ * accepting threads than a server hosting one, and every accepted connection is handed over together with the room
+ * of the port it arrived on. Accepted connections are in blocking mode, as ServerSocketChannel leaves them.
+ *
+ * <p>When the rooms are shared over a bus with other nodes (the system property "multichat.bus"), the ports are bound
+ * with SO_REUSEPORT where the platform supports it, so the nodes of one machine can listen on the same ports and the
+ * kernel spreads the connections of every room across them.
+ */
+class PortListener {
+
+    /**
+     * Takes over a connection accepted on one of the ports.
+     */
+    interface Handler {
+
+        /**
+         * Takes over the given accepted connection of the given port's room.
+         *
+         * @param channel    the accepted connection
+         * @param portNumber the port number (room) the connection was accepted on
+         * @throws IOException when the connection cannot be set up, which only closes the connection
+         */
+        void accept(SocketChannel channel, String portNumber) throws IOException;
+    }
+
+    //whether the ports are shared with the other nodes serving the same rooms on this machine
+    private static final boolean SHARE_PORTS = !System.getProperty("multichat.bus", "").isBlank();
+
+    private final Selector selector;
+
+    /**
+     * Binds every given port, failing when any of them cannot be bound.
+     *
+     * @param portNumbers the port numbers (rooms) to accept connections on
+     * @throws IOException when the Selector cannot be opened or a port cannot be bound
+     */
+    PortListener(List<String> portNumbers) throws IOException {
+        selector = Selector.open();
+        for (String portNumber : portNumbers) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            try {
+                if (SHARE_PORTS && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                server.bind(new InetSocketAddress(Integer.parseInt(portNumber)));
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT, portNumber);
+            } catch (IOException ioe) {
+                server.close();
+                throw new IOException("Cannot listen on port " + portNumber, ioe);
+            }
+        }
+    }
+
+    /**
+     * Accepts the connections of every port on the calling thread for as long as the server runs, handing each to
+     * the given handler. A connection the handler fails to set up is closed and the other ports are unaffected.
+     *
+     * @param handler the handler taking over every accepted connection
+     * @throws IOException when waiting for connections fails
+     */
+    void run(Handler handler) throws IOException {
+        while (true) {
+            selector.select();
+            for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                String portNumber = (String) key.attachment();
+                //accepts every connection waiting on the port, so a burst of clients costs one wakeup
+                SocketChannel channel;
+                while ((channel = acceptNext((ServerSocketChannel) key.channel(), portNumber)) != null) {
+                    try {
+                        handler.accept(channel, portNumber);
+                    } catch (IOException ioe) {
+                        System.out.println("Failure to set up a connection to port " + portNumber + ": " + ioe);
+                        channel.close();
+                    }
+                }
+            }
+        }
+    }
+
+    //returns the next connection waiting on the port, or null when there is none or accepting it failed
+    private static SocketChannel acceptNext(ServerSocketChannel server, String portNumber) {
+        try {
+            return server.accept();
+        } catch (IOException ioe) {
+            //such as running out of file descriptors, the connection stays queued until the next wakeup
+            System.out.println("Failure to accept a connection to port " + portNumber + ": " + ioe);
+            return null;
+        }
+    }
+}
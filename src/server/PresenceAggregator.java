@@ -0,0 +1,159 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Announces the users joining and leaving a chat room. Changes are collected over a short window (the system property
+ * "multichat.presence.windowMillis", 100 by default) and announced together once it ends, so a storm of users
+ * reconnecting at once costs every client one combined notice and one roster update per window instead of one of
+ * each per user. With a window of 0 every change is announced as soon as it is made.
+ *
+ * <p>Clients using version 2 of the wire format are sent the users that joined or left as numbered deltas, from which
+ * they notice any delta they missed, the subscribers of the room on its channel. Text clients are sent the whole list
+ * of users again.
+ *
+ * <p>Every method must be called inside the room's update, which also guards the changes collected so far.
+ */
+class PresenceAggregator {
+
+    private static final long WINDOW_MILLIS = Long.getLong("multichat.presence.windowMillis", 100);
+
+    //most users named in a combined notice before the rest are counted instead
+    private static final int MAX_NAMED_USERS = 5;
+
+    //ends the windows of every room, whose announcements are short enough to share a thread
+    private static final Timer timer = new Timer("presence", true);
+
+    private final RoomRegistry<?> room;
+    //the users that joined or left in the current window, whatever they are now
+    private final Set<String> changed = new LinkedHashSet<>();
+    //the users whose joining or leaving is noticed in the chat, a user joining and leaving in the window cancels out
+    private final Set<String> joinNotices = new LinkedHashSet<>();
+    private final Set<String> leaveNotices = new LinkedHashSet<>();
+    private boolean windowOpen = false;
+
+    /**
+     * Creates an aggregator announcing the changes of the members of the given room.
+     *
+     * @param room the room whose members are announced
+     */
+    PresenceAggregator(RoomRegistry<?> room) {
+        this.room = room;
+    }
+
+    //collects that the named user joined the room
+    void joined(String name) {
+        changed.add(name);
+        if (!leaveNotices.remove(name)) {
+            joinNotices.add(name);
+        }
+        openWindow();
+    }
+
+    //collects that the named user left the room, noticed in the chat unless the user was kicked
+    void left(String name, boolean notice) {
+        changed.add(name);
+        if (!joinNotices.remove(name) && notice) {
+            leaveNotices.add(name);
+        }
+        openWindow();
+    }
+
+    //announces the change at once without a window, otherwise opens a window unless one is open
+    private void openWindow() {
+        if (WINDOW_MILLIS <= 0) {
+            announce();
+        } else if (!windowOpen) {
+            windowOpen = true;
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    room.update(PresenceAggregator.this::announce);
+                }
+            }, WINDOW_MILLIS);
+        }
+    }
+
+    /*
+    Announces the changes collected in the window and starts collecting anew. The deltas name every user that changed
+    by whether it is in the room now, so they bring any list of users taken during the window up to date, even one
+    taken between a user joining and leaving again.
+     */
+    private void announce() {
+        windowOpen = false;
+        if (!joinNotices.isEmpty()) {
+            room.broadcast(Frame.droppable("MESSAGEUSERJOINED [" + new Date().toString() + "] "
+                    + describe(joinNotices) + (joinNotices.size() == 1 ? " has" : " have") + " joined."));
+        }
+        if (!leaveNotices.isEmpty()) {
+            room.broadcast(Frame.droppable("MESSAGEUSERLEFT [" + new Date().toString() + "] "
+                    + describe(leaveNotices) + (leaveNotices.size() == 1 ? " has" : " have") + " left"));
+        }
+        Set<String> joined = new LinkedHashSet<>();
+        Set<String> left = new LinkedHashSet<>();
+        for (String name : changed) {
+            (room.contains(name) ? joined : left).add(name);
+        }
+        Frame fullList = null;
+        Frame joinedDelta = joined.isEmpty() ? null : delta("USERJOINED", joined);
+        Frame leftDelta = left.isEmpty() ? null : delta("USERLEFT", left);
+        for (ClientConnection recipient : room.recipients()) {
+            if (recipient.isUpgraded()) {
+                if (joinedDelta != null) {
+                    recipient.send(joinedDelta);
+                }
+                if (leftDelta != null) {
+                    recipient.send(leftDelta);
+                }
+            } else if (joinedDelta != null || leftDelta != null) {
+                if (fullList == null) {
+                    fullList = Frame.droppable("ACTIVEUSERLIST " + activeUserList());
+                }
+                recipient.send(fullList);
+            }
+        }
+        if (joinedDelta != null) {
+            room.sendToSubscribers(joinedDelta);
+        }
+        if (leftDelta != null) {
+            room.sendToSubscribers(leftDelta);
+        }
+        changed.clear();
+        joinNotices.clear();
+        leaveNotices.clear();
+    }
+
+    //numbers the change of the given users as the next version of the room's users
+    private Frame delta(String change, Set<String> names) {
+        return Frame.droppable(change + " " + room.advancePresence() + " " + String.join(",", names));
+    }
+
+    //returns the given names as "a, b and c", naming only the first few of a long list
+    private static String describe(Set<String> names) {
+        List<String> named = new ArrayList<>(names);
+        if (named.size() > MAX_NAMED_USERS) {
+            int others = named.size() - MAX_NAMED_USERS;
+            named = named.subList(0, MAX_NAMED_USERS);
+            return String.join(", ", named) + " and " + others + " others";
+        }
+        if (named.size() == 1) {
+            return named.get(0);
+        }
+        return String.join(", ", named.subList(0, named.size() - 1)) + " and " + named.get(named.size() - 1);
+    }
+
+    //returns the names of the room's users, each followed by a comma
+    String activeUserList() {
+        StringBuilder activeUserList = new StringBuilder();
+        for (String name : room.names()) {
+            activeUserList.append(name).append(",");
+        }
+        return activeUserList.toString();
+    }
+}
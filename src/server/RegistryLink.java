@@ -0,0 +1,278 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * The connection of a MultiChat server to its master server, serviced by the master's EventLoop. The lines the server
+ * sends are handed to the ServerRegistry, and the lines sent to it are queued and written as the connection accepts
+ * them, so a server that stops reading never holds up the others.
+ *
+ * <p>A subscribed server that falls more than MAX_QUEUED_LINES behind has its queued changes replaced by a single
+ * SERVERLIST of the current version, which is all it needs to catch up. The private lines routed to it are kept, and
+ * a server that falls more than MAX_QUEUED_MESSAGES behind on them is dropped.
+ */
+class RegistryLink implements EventLoop.Handler {
+
+    //most lines queued for a subscribed server before they are replaced by the whole list
+    private static final int MAX_QUEUED_LINES = 256;
+    //most lines queued for a server before it is dropped for not reading the private lines routed to it
+    private static final int MAX_QUEUED_MESSAGES = 16384;
+    //longest line a server may send, a routed line of the longest a client may send with its addressing
+    private static final int MAX_LINE_LENGTH = WireFormat.MAX_PAYLOAD + 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final ServerRegistry registry;
+    private int id; //the number of the connection in the registry, given once it is open
+    private SelectionKey key;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(); //the line being read, until its newline
+    private final ArrayDeque<Queued> outbound = new ArrayDeque<>();
+    private boolean subscribed = false;
+    private boolean registered = false;
+    private boolean closed = false;
+    private boolean flushScheduled = false; //whether the queued lines are about to be written
+    private long lastReceived; //when the server last sent anything, in System.nanoTime
+    private long lastSent; //when anything was last queued for the server, in System.nanoTime
+
+    /**
+     * Creates the link of the given connection, which must be in non-blocking mode.
+     *
+     * @param channel  the connection of the server
+     * @param loop     the master server's event loop
+     * @param registry the registry of the master server
+     */
+    RegistryLink(SocketChannel channel, EventLoop loop, ServerRegistry registry) {
+        this.channel = channel;
+        this.loop = loop;
+        this.registry = registry;
+        this.lastReceived = System.nanoTime();
+        this.lastSent = lastReceived;
+    }
+
+    //starts reading the server's lines, must be called on the loop's thread
+    void open() throws IOException {
+        key = loop.register(channel, SelectionKey.OP_READ, this);
+        id = registry.connect(this);
+    }
+
+    //returns the number of the connection in the registry
+    int id() {
+        return id;
+    }
+
+    //returns whether the server subscribed to the versioned changes of the list
+    boolean isSubscribed() {
+        return subscribed;
+    }
+
+    //returns whether the server registered a room, after which it is sent the list of servers
+    boolean isRegistered() {
+        return registered;
+    }
+
+    @Override
+    public void handleReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (!closed && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException ioe) {
+            close(null);
+        }
+    }
+
+    //reads what the server sent, handing every complete line to the registry
+    private void read() throws IOException {
+        ByteBuffer buffer = loop.readBuffer();
+        buffer.clear();
+        int amountRead = channel.read(buffer);
+        if (amountRead < 0) {
+            close(null);
+            return;
+        }
+        lastReceived = System.nanoTime();
+        buffer.flip();
+        while (buffer.hasRemaining() && !closed) {
+            byte c = buffer.get();
+            if (c == '\n') {
+                handleLine(line.toString(StandardCharsets.UTF_8));
+                line.reset();
+            } else if (line.size() == MAX_LINE_LENGTH) {
+                close("sent a line longer than " + MAX_LINE_LENGTH + " bytes");
+            } else {
+                line.write(c);
+            }
+        }
+    }
+
+    /*
+    Handles a line sent by the server: a room it hosts, a subscription, a heartbeat, a user joining or leaving one of
+    its rooms, or a private line to be routed. A routed line is kept as it is, down to its spaces.
+     */
+    private void handleLine(String input) {
+        try {
+            if (input.startsWith("ROUTE ")) {
+                registry.route(this, input.substring(6));
+            } else if (input.startsWith("UNDELIVERABLE ")) {
+                registry.undeliverable(input.substring(14));
+            } else if (input.startsWith("USERJOINED ")) {
+                registry.userJoined(this, input.substring(11));
+            } else if (input.startsWith("USERLEFT ")) {
+                registry.userLeft(this, input.substring(9));
+            } else {
+                handleRegistryLine(input.trim());
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Malformed line from " + describe() + ": " + input);
+        }
+    }
+
+    //handles a line about the list of servers: a room the server hosts, a subscription or a heartbeat
+    private void handleRegistryLine(String input) {
+        if (input.startsWith("Server ")) {
+            registered = true;
+            registry.register(this, input);
+        } else if (input.equals("SUBSCRIBE")) {
+            subscribed = true;
+            registered = true;
+            resync();
+        } else if (!input.equals("HEARTBEAT") && !input.isEmpty()) {
+            System.out.println("Unknown line from " + describe() + ": " + input);
+        }
+    }
+
+    //queues a change of the list for the subscribed server, or the whole list once it has fallen too far behind
+    void sendChange(String change) {
+        if (outbound.size() >= MAX_QUEUED_LINES) {
+            resync();
+        } else {
+            send(change);
+        }
+    }
+
+    /*
+    Replaces the queued changes of the list by the whole list as of the current version, keeping a line partly
+    written already and the private lines routed to the server.
+     */
+    private void resync() {
+        outbound.removeIf(queued -> queued.listLine && queued.bytes.position() == 0);
+        send(registry.snapshot());
+    }
+
+    //queues a line of the list of servers, or a heartbeat, which the whole list may replace
+    void send(String output) {
+        queue(output, true);
+    }
+
+    //queues a private line routed to the server, dropping the server once it falls too far behind on them
+    void forward(String output) {
+        if (outbound.size() >= MAX_QUEUED_MESSAGES) {
+            close("fell more than " + MAX_QUEUED_MESSAGES + " lines behind");
+        } else {
+            queue(output, false);
+        }
+    }
+
+    /*
+    Queues the line for the server. The queue is written once the loop has handled what it is handling, so the
+    changes made by one event, such as a server registering all of its rooms, are written together.
+     */
+    private void queue(String output, boolean listLine) {
+        if (closed) {
+            return;
+        }
+        outbound.add(new Queued(ByteBuffer.wrap((output + "\n").getBytes(StandardCharsets.UTF_8)), listLine));
+        lastSent = System.nanoTime();
+        if (!flushScheduled) {
+            flushScheduled = true;
+            loop.execute(() -> {
+                flushScheduled = false;
+                try {
+                    if (!closed) {
+                        flush();
+                    }
+                } catch (IOException ioe) {
+                    close(null);
+                }
+            });
+        }
+    }
+
+    //writes the queued lines until the connection accepts no more, then waits for it to become writable again
+    private void flush() throws IOException {
+        Queued next;
+        while ((next = outbound.peek()) != null) {
+            channel.write(next.bytes);
+            if (next.bytes.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            outbound.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /*
+    Drops a subscribed server that has sent nothing for longer than the timeout, and sends a heartbeat to one that
+    has been sent nothing for a heartbeat interval. A server that never subscribed is not expected to send heartbeats.
+     */
+    void checkAlive(long now, long heartbeatNanos, long timeoutNanos) {
+        if (!subscribed) {
+            return;
+        }
+        if (now - lastReceived > timeoutNanos) {
+            close("sent no heartbeat for " + (now - lastReceived) / 1000000 + " ms");
+        } else if (now - lastSent >= heartbeatNanos) {
+            send("HEARTBEAT");
+        }
+    }
+
+    //closes the connection and removes the server's rooms, printing the reason unless it simply disconnected
+    void close(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (reason != null) {
+            System.out.println("Dropping " + describe() + ": " + reason);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            //the server's rooms are removed regardless
+        }
+        registry.disconnect(this);
+    }
+
+    //returns the remote address of the server for the master server's output
+    private String describe() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException ioe) {
+            return "a server";
+        }
+    }
+
+    //a line queued for the server, and whether it is about the list of servers, which the whole list may replace
+    private static final class Queued {
+        private final ByteBuffer bytes;
+        private final boolean listLine;
+
+        private Queued(ByteBuffer bytes, boolean listLine) {
+            this.bytes = bytes;
+            this.listLine = listLine;
+        }
+    }
+}
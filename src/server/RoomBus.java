@@ -0,0 +1,99 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * A publish/subscribe bus connecting the nodes that serve the same rooms, so that a busy room can be served by
+ * several MultiChatServers, each with its own share of the room's connections. A node publishes the lines of its
+ * rooms, such as their chat and their members joining and leaving, and is handed the lines the other nodes publish
+ * to the rooms it subscribed to, but never its own.
+ *
+ * <p>The lines a node publishes to a room reach every other node in the order they were published, so the messages
+ * of every sender stay in order. A bus tells the nodes when another node has left, after which none of its lines
+ * follow.
+ */
+interface RoomBus {
+
+    /**
+     * Takes the lines published to a room by the other nodes.
+     */
+    interface Listener {
+
+        /**
+         * Takes a line the given node published to the room.
+         *
+         * @param node the node that published the line, the same for all of its lines
+         * @param line the line published
+         */
+        void received(String node, String line);
+
+        /**
+         * Takes that the given node has left the bus, such as when it has stopped.
+         *
+         * @param node the node that has left
+         */
+        void nodeLeft(String node);
+    }
+
+    /**
+     * Hands the lines the other nodes publish to the given room to the given listener, on a thread of the bus.
+     *
+     * @param room     the number of the room
+     * @param listener the listener taking the room's lines
+     * @throws IOException when the bus cannot be told of the subscription
+     */
+    void subscribe(String room, Listener listener) throws IOException;
+
+    /**
+     * Publishes the line to every other node subscribed to the given room. The line is sent later, so publishing
+     * never blocks the thread of a client.
+     *
+     * @param room the number of the room
+     * @param line the line to be published, which must not contain a line break
+     * @throws IllegalArgumentException when the line contains a line break, which would let it pass as several lines
+     */
+    void publish(String room, String line);
+
+    /**
+     * The bus of a server sharing its rooms with no other node, which publishes nothing and never hands a line over.
+     */
+    RoomBus NONE = new RoomBus() {
+        @Override
+        public void subscribe(String room, Listener listener) {
+        }
+
+        @Override
+        public void publish(String room, String line) {
+            requireSingleLine(line);
+        }
+    };
+
+    /**
+     * Refuses a line to be published that contains a line feed or carriage return, either of which ends a line of
+     * the bus.
+     *
+     * @param line the line to be published
+     * @throws IllegalArgumentException when the line contains a line break
+     */
+    static void requireSingleLine(String line) {
+        if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Line break in a line published to a room bus.");
+        }
+    }
+
+    /**
+     * Returns the bus chosen by the system property "multichat.bus": a host:port of a MultiChatBusServer to share the
+     * rooms with the other nodes connected to it, or NONE when unset, serving the rooms with this server alone.
+     *
+     * @return the bus the rooms of this server are shared over
+     * @throws IOException when the MultiChatBusServer cannot be connected to
+     */
+    static RoomBus open() throws IOException {
+        String address = System.getProperty("multichat.bus");
+        if (address == null || address.isBlank()) {
+            return NONE;
+        }
+        int colon = address.lastIndexOf(':');
+        return new TcpRoomBus(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,246 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The members of a chat room and the connections that receive its broadcasts, shared by every thread serving the
+ * room. Names are reserved atomically without a global lock, and broadcasts iterate an immutable snapshot of the
+ * recipients, so they never block on (or fail because of) members joining and leaving at the same time.
+ *
+ * <p>Membership changes that are announced to the room are made through update, which applies them one at a time
+ * together with their announcements, so every client sees joins and leaves (and the user lists following them) in
+ * the order they happened.
+ *
+ * <p>Connections that joined another room of the same server can subscribe to this one as well. They are members
+ * like any other, but receive the room's broadcasts on its channel instead of stream 0.
+ *
+ * <p>A room served by several nodes over a RoomBus also knows the names of the members of its other nodes. They count
+ * as members for the room's presence and hold their names, but have no member object here and receive nothing.
+ *
+ * @param <M> the type of the room's members
+ */
+class RoomRegistry<M> {
+
+    private static final ClientConnection[] NO_RECIPIENTS = new ClientConnection[0];
+
+    private final Map<String, M> members = new ConcurrentHashMap<>();
+    //the names of the members of the room's other nodes, by the node serving each
+    private final Map<String, String> remoteMembers = new ConcurrentHashMap<>();
+    //replaced as a whole on every change, so a broadcast only ever reads a consistent snapshot
+    private volatile ClientConnection[] recipients = NO_RECIPIENTS;
+    private volatile ClientConnection[] subscribers = NO_RECIPIENTS; //receiving the broadcasts on the room's channel
+    private final int channel;
+    //orders membership changes and their announcements, a lock rather than a monitor so virtual threads never pin
+    private final ReentrantLock membershipLock = new ReentrantLock();
+    private long presenceVersion = 0; //the amount of announced membership changes, guarded by the membership lock
+
+    /**
+     * Creates an empty room whose subscribers receive its broadcasts on the given channel.
+     *
+     * @param channel the stream of the room's frames sent to its subscribers
+     */
+    RoomRegistry(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Reserves the given name for the given member, unless another member holds it already, here or on another node.
+     * Two nodes may still reserve the same name at the same time, as neither knows of the other's yet.
+     *
+     * @param name   the name to be reserved
+     * @param member the member reserving the name
+     * @return whether the name has been reserved for the member
+     */
+    boolean reserve(String name, M member) {
+        return !remoteMembers.containsKey(name) && members.putIfAbsent(name, member) == null;
+    }
+
+    //releases the name if it is still held by the given member, returns whether it was
+    boolean release(String name, M member) {
+        return members.remove(name, member);
+    }
+
+    //takes the name away from whoever holds it, returns that member or null when nobody held it
+    M remove(String name) {
+        return members.remove(name);
+    }
+
+    //returns the member holding the given name on this node, or null when nobody here does
+    M get(String name) {
+        return members.get(name);
+    }
+
+    //returns whether a member holds the given name, on this node or another
+    boolean contains(String name) {
+        return members.containsKey(name) || remoteMembers.containsKey(name);
+    }
+
+    //returns the amount of members of the room on this node
+    int size() {
+        return members.size();
+    }
+
+    //returns a snapshot of the names of the room's members, on this node and then on the others
+    Collection<String> names() {
+        if (remoteMembers.isEmpty()) {
+            return new ArrayList<>(members.keySet());
+        }
+        Collection<String> names = new LinkedHashSet<>(members.keySet());
+        names.addAll(remoteMembers.keySet());
+        return names;
+    }
+
+    //records that the named member joined on the given node, returns whether the name is new to the room
+    boolean joinedElsewhere(String name, String node) {
+        return remoteMembers.put(name, node) == null && !members.containsKey(name);
+    }
+
+    //records that the named member left the given node, returns whether the name has left the room
+    boolean leftElsewhere(String name, String node) {
+        return remoteMembers.remove(name, node) && !members.containsKey(name);
+    }
+
+    //forgets every member of the given node, returns the names that have left the room with them
+    List<String> nodeLeft(String node) {
+        List<String> left = new ArrayList<>();
+        remoteMembers.entrySet().removeIf(member -> {
+            if (!member.getValue().equals(node)) {
+                return false;
+            }
+            if (!members.containsKey(member.getKey())) {
+                left.add(member.getKey());
+            }
+            return true;
+        });
+        return left;
+    }
+
+    //returns a snapshot of the room's members by name
+    Map<String, M> snapshot() {
+        return Map.copyOf(members);
+    }
+
+    /**
+     * Runs the given membership change and its announcements while no other change made through update can run.
+     *
+     * @param change the membership change and the broadcasts announcing it
+     */
+    void update(Runnable change) {
+        membershipLock.lock();
+        try {
+            change.run();
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    //counts an announced membership change and returns its version, must be called inside update
+    long advancePresence() {
+        return ++presenceVersion;
+    }
+
+    //returns the version of the last announced membership change, must be called inside update
+    long presenceVersion() {
+        return presenceVersion;
+    }
+
+    //adds the connection to the recipients of the room's broadcasts
+    void addRecipient(ClientConnection connection) {
+        membershipLock.lock();
+        try {
+            recipients = added(recipients, connection);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    //removes the connection from the recipients of the room's broadcasts
+    void removeRecipient(ClientConnection connection) {
+        membershipLock.lock();
+        try {
+            recipients = removed(recipients, connection);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    //adds the connection to the subscribers receiving the room's broadcasts on its channel
+    void addSubscriber(ClientConnection connection) {
+        membershipLock.lock();
+        try {
+            subscribers = added(subscribers, connection);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    //removes the connection from the subscribers receiving the room's broadcasts on its channel
+    void removeSubscriber(ClientConnection connection) {
+        membershipLock.lock();
+        try {
+            subscribers = removed(subscribers, connection);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    //returns a copy of the connections with the given one added at the end
+    private static ClientConnection[] added(ClientConnection[] current, ClientConnection connection) {
+        ClientConnection[] added = Arrays.copyOf(current, current.length + 1);
+        added[added.length - 1] = connection;
+        return added;
+    }
+
+    //returns a copy of the connections without the given one, or the same connections when it is not one of them
+    private static ClientConnection[] removed(ClientConnection[] current, ClientConnection connection) {
+        int index = Arrays.asList(current).indexOf(connection);
+        if (index < 0) {
+            return current;
+        }
+        ClientConnection[] removed = new ClientConnection[current.length - 1];
+        System.arraycopy(current, 0, removed, 0, index);
+        System.arraycopy(current, index + 1, removed, index, removed.length - index);
+        return removed;
+    }
+
+    //sends the frame to every recipient of the room's broadcasts, and on the room's channel to every subscriber
+    void broadcast(Frame frame) {
+        for (ClientConnection recipient : recipients) {
+            recipient.send(frame);
+        }
+        sendToSubscribers(frame);
+    }
+
+    //sends the frame on the room's channel to every subscriber, encoding it for the channel only once
+    void sendToSubscribers(Frame frame) {
+        ClientConnection[] current = subscribers;
+        if (current.length == 0) {
+            return;
+        }
+        Frame onChannel = frame.onStream(channel);
+        for (ClientConnection subscriber : current) {
+            subscriber.send(onChannel);
+        }
+    }
+
+    //returns a snapshot of the recipients of the room's broadcasts
+    List<ClientConnection> recipients() {
+        return Collections.unmodifiableList(Arrays.asList(recipients));
+    }
+
+    //hands every recipient of the room's broadcasts to the given action
+    void forEachRecipient(Consumer<ClientConnection> action) {
+        for (ClientConnection recipient : recipients) {
+            action.accept(recipient);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The active MultiChat servers known to a master server, and the connections of the servers kept up to date on them.
+ * Every server connection registers the rooms it hosts with a "Server [port]" line each, and a room stays registered
+ * until the connection that registered it closes or stops sending heartbeats. The nodes serving a room together over
+ * a RoomBus each register it, and it stays registered until the last of them is gone.
+ *
+ * <p>The list of servers has a version, raised by one with every room added or removed. A server connection that
+ * sends SUBSCRIBE is answered with "SERVERLIST [version] [servers]", the whole list as of that version, and from then
+ * on with a "SERVERADDED [version] [server]" or "SERVERREMOVED [version] [server]" line per change, and a HEARTBEAT
+ * line whenever nothing else has been sent for a while. A server applies the changes that follow its version, and
+ * subscribes again when it notices one missing. Connections that never subscribe are sent the whole list as an
+ * "ACTIVESERVERLIST" line on every change instead, as they always were.
+ *
+ * <p>Subscribed servers send a HEARTBEAT line every "multichat.master.heartbeatMillis" (5 seconds by default) as
+ * well, and a server that has sent nothing for "multichat.master.timeoutMillis" (15 seconds by default) is dropped
+ * with its rooms, as is a master server by its servers.
+ *
+ * <p>A subscribed server also tells the registry the users of its rooms, with "USERJOINED [room]:[name]" and
+ * "USERLEFT [room]:[name]" lines, and has it route the private lines for users it does not host with
+ * "ROUTE [from room]:[sender]:[room]:[receiver]:[line]", the room left empty for a receiver in any room. The line is
+ * delivered to the server of the receiver as "DELIVER [origin]:[from room]:[sender]:[room]:[receiver]:[line]", where
+ * origin numbers the connection it came from. When the receiver is not found, or the server delivered to no longer
+ * has it, the server that routed the line is sent "UNDELIVERABLE [origin]:[from room]:[sender]:[receiver]" to tell
+ * its sender. Names cannot contain colons, so only the line may.
+ *
+ * <p>A registry belongs to the EventLoop of its master server, and is only used by the loop's thread.
+ */
+class ServerRegistry {
+
+    static final long HEARTBEAT_MILLIS = Long.getLong("multichat.master.heartbeatMillis", 5000);
+    static final long TIMEOUT_MILLIS = Long.getLong("multichat.master.timeoutMillis", 15000);
+
+    //the rooms registered by their name, with the connections that registered each, in the order they were registered
+    private final Map<String, Set<RegistryLink>> servers = new LinkedHashMap<>();
+    //the connections of the servers by the number they were given
+    private final Map<Integer, RegistryLink> links = new LinkedHashMap<>();
+    //the users of the subscribed servers by their name, with the connection of the server of each of their rooms
+    private final Map<String, Map<String, RegistryLink>> users = new HashMap<>();
+    private long version = 0;
+    private int lastLinkId = 0;
+
+    //adds the connection of a server, which is sent nothing until it registers or subscribes, returning its number
+    int connect(RegistryLink link) {
+        links.put(++lastLinkId, link);
+        return lastLinkId;
+    }
+
+    //returns the amount of connected servers
+    int connections() {
+        return links.size();
+    }
+
+    //registers the named room for the given connection, which is a change unless another connection registered it
+    void register(RegistryLink link, String server) {
+        Set<RegistryLink> owners = servers.computeIfAbsent(server, name -> new LinkedHashSet<>());
+        if (!owners.add(link) || owners.size() > 1) {
+            if (owners.size() > 1) {
+                System.out.println(server + " is served by " + owners.size() + " connections");
+            }
+            return;
+        }
+        version++;
+        System.out.println("[" + version + "] " + server + " registered");
+        publish("SERVERADDED " + version + " " + server);
+    }
+
+    //removes the connection and every room and user it registered
+    void disconnect(RegistryLink link) {
+        if (links.remove(link.id()) == null) {
+            return;
+        }
+        for (Iterator<Map<String, RegistryLink>> rooms = users.values().iterator(); rooms.hasNext(); ) {
+            Map<String, RegistryLink> userRooms = rooms.next();
+            userRooms.values().removeIf(owner -> owner == link);
+            if (userRooms.isEmpty()) {
+                rooms.remove();
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        servers.entrySet().removeIf(entry -> {
+            if (!entry.getValue().remove(link) || !entry.getValue().isEmpty()) {
+                return false;
+            }
+            removed.add(entry.getKey());
+            return true;
+        });
+        for (String server : removed) {
+            version++;
+            System.out.println("[" + version + "] " + server + " removed");
+            publish("SERVERREMOVED " + version + " " + server);
+        }
+    }
+
+    //drops the subscribed connections that stopped sending heartbeats, and sends heartbeats to the rest
+    void checkAlive() {
+        long now = System.nanoTime();
+        for (RegistryLink link : new ArrayList<>(links.values())) {
+            link.checkAlive(now, TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS),
+                    TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS));
+        }
+    }
+
+    //records that the user, USERJOINED [room]:[name], is in a room of the given connection's server
+    void userJoined(RegistryLink link, String user) {
+        int colon = user.indexOf(':');
+        users.computeIfAbsent(user.substring(colon + 1), name -> new LinkedHashMap<>())
+                .put(user.substring(0, colon), link);
+    }
+
+    //records that the user, USERLEFT [room]:[name], has left a room of the given connection's server
+    void userLeft(RegistryLink link, String user) {
+        int colon = user.indexOf(':');
+        String name = user.substring(colon + 1);
+        Map<String, RegistryLink> userRooms = users.get(name);
+        if (userRooms != null && userRooms.remove(user.substring(0, colon), link) && userRooms.isEmpty()) {
+            users.remove(name);
+        }
+    }
+
+    /*
+    Delivers a line routed by the given connection, ROUTE [from room]:[sender]:[room]:[receiver]:[line], to the
+    server of the receiver in the given room, or in the first room it joined when no room is given. The line is sent
+    back as undeliverable when no server has the receiver.
+     */
+    void route(RegistryLink from, String routed) {
+        String[] fields = routed.split(":", 5);
+        Map<String, RegistryLink> userRooms = users.get(fields[3]);
+        String room = fields[2];
+        if (userRooms != null && room.isEmpty()) {
+            room = userRooms.keySet().iterator().next();
+        }
+        RegistryLink to = userRooms == null ? null : userRooms.get(room);
+        if (to != null) {
+            to.forward("DELIVER " + from.id() + ":" + fields[0] + ":" + fields[1] + ":" + room + ":" + fields[3]
+                    + ":" + fields[4]);
+        } else {
+            from.forward("UNDELIVERABLE " + from.id() + ":" + fields[0] + ":" + fields[1] + ":" + fields[3]
+                    + (fields[2].isEmpty() ? "" : "@" + fields[2]));
+        }
+    }
+
+    //sends a line a server could not deliver, UNDELIVERABLE [origin]:..., back to the server that routed it
+    void undeliverable(String bounced) {
+        RegistryLink origin = links.get(Integer.valueOf(bounced.substring(0, bounced.indexOf(':'))));
+        if (origin != null) {
+            origin.forward("UNDELIVERABLE " + bounced);
+        }
+    }
+
+    //returns the SERVERLIST line of the whole list as of the current version
+    String snapshot() {
+        StringBuilder snapshot = new StringBuilder("SERVERLIST ").append(version).append(' ');
+        for (String server : servers.keySet()) {
+            snapshot.append(server).append(',');
+        }
+        return snapshot.toString();
+    }
+
+    /*
+    Sends the change to every subscribed connection, and the whole list to every other one, formatted once. A
+    connection found closed while sending is removed, so the connections are iterated over a copy.
+     */
+    private void publish(String change) {
+        String legacyList = null;
+        for (RegistryLink link : new ArrayList<>(links.values())) {
+            if (link.isSubscribed()) {
+                link.sendChange(change);
+            } else if (link.isRegistered()) {
+                if (legacyList == null) {
+                    legacyList = legacyList();
+                }
+                link.send(legacyList);
+            }
+        }
+    }
+
+    //returns the ACTIVESERVERLIST line of the servers that never subscribe
+    private String legacyList() {
+        StringBuilder list = new StringBuilder("ACTIVESERVERLIST ");
+        for (String server : servers.keySet()) {
+            list.append(server).append(", ");
+        }
+        return list.toString();
+    }
+}
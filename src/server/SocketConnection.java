@@ -0,0 +1,444 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A blocking connection to a single client, run by its own thread. Reads the client's SSLSocket input and feeds it
+ * through an InboundDecoder to the connection's MultiChatServer Task. Output is put in a bounded OutboundQueue and
+ * written to the socket by a writer task of its own, so a client that stops reading never blocks the threads sending
+ * to it. In version 2 of the wire format the contents of files being downloaded are written a DATA frame at a time
+ * between the rest of the output, so the room's messages keep arriving while a large file is downloaded.
+ */
+class SocketConnection implements ClientConnection, Runnable {
+
+    //most raw bytes of a file written to the socket at once in the text protocol, several TLS records' worth
+    private static final int RAW_CHUNK = 65536;
+
+    //longest time the writer task waits for more output to be written together with what it has already written
+    private static final long MAX_FLUSH_DELAY_MILLIS = Long.getLong("multichat.flush.maxDelayMillis", 0);
+
+    private final SSLSocket clientSocket; //the socket of the client connection
+    private final MultiChatServer.Task task; //the chat logic of the client
+    private final Executor writerExecutor; //runs the writer task that drains the output queue
+    private final InboundDecoder decoder; //decodes the input of the client
+    private OutputStream out; //the buffered output to the client, only flushed once the queue is drained
+    private volatile boolean upgraded = false; //whether the client has switched to version 2 of the wire format
+    private boolean binaryOutput = false; //whether the writer task encodes in version 2 of the wire format
+    private int nextStream = WireFormat.FIRST_SERVER_STREAM; //the id of the next download's stream, writer task only
+    private FrameDeflater deflater; //compresses the frames once the client has asked for it, writer task only
+
+    private final OutboundQueue<Outgoing> outbound = OutboundQueue.fromSystemProperties();
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private final ArrayDeque<FileOutgoing> transfers = new ArrayDeque<>(); //downloads in progress, used by the writer
+    private volatile boolean closeRequested = false;
+    private volatile boolean closed = false;
+
+    //guards whether reading the client's input is suspended, and wakes the reader once it is resumed
+    private final ReentrantLock inputLock = new ReentrantLock();
+    private final Condition inputResumed = inputLock.newCondition();
+    private boolean inputSuspended = false;
+
+    //Captures the client's socket as a field and creates the Task that handles its input.
+    SocketConnection(SSLSocket clientSocket, Executor writerExecutor, String portNumber) {
+        this.clientSocket = clientSocket;
+        this.writerExecutor = writerExecutor;
+        this.task = new MultiChatServer.Task(this, portNumber);
+        this.decoder = new InboundDecoder(task, this::upgrade);
+    }
+
+    @Override
+    public void run() {
+        try {
+            InputStream in = clientSocket.getInputStream();
+            //a TLS record holds at most 16KB, buffering that much lets a burst of lines share a single record
+            out = new BufferedOutputStream(clientSocket.getOutputStream(), 16384);
+            task.start();
+            byte[] buffer = new byte[16384];
+            int amountRead;
+            while ((amountRead = in.read(buffer)) > -1) {
+                decoder.decode(ByteBuffer.wrap(buffer, 0, amountRead));
+                awaitInput();
+            }
+        } catch (ProtocolException pe) {
+            System.out.println("Client sent a malformed message (" + pe.getMessage() + "): "
+                    + clientSocket.toString());
+        } catch (IOException ioe) {
+            if (!closeRequested) {
+                System.out.println("Client input/output failed to connect: " + clientSocket.toString());
+            }
+        } finally {
+            decoder.abort();
+            task.disconnected();
+        }
+    }
+
+    /*
+    Acknowledges the client's switch to version 2 with the last line of text. The writer task encodes everything
+    queued after the acknowledgement in version 2, so output queued by other threads meanwhile is never mixed up.
+     */
+    private void upgrade() {
+        upgraded = true;
+        enqueue(new FrameOutgoing(Frame.of(WireFormat.PROTOCOL_LINE), true));
+    }
+
+    @Override
+    public void send(Frame frame) {
+        enqueue(new FrameOutgoing(frame, false));
+    }
+
+    @Override
+    public void compressOutput() {
+        enqueue(new CompressOutgoing());
+    }
+
+    @Override
+    public void receiveRaw(long size, RawReceiver receiver) {
+        decoder.receiveRaw(size, receiver);
+    }
+
+    @Override
+    public void sendFile(String header, File file, long offset, long length) throws IOException {
+        enqueue(new FileOutgoing(header, new MappedFileChannel(file, offset, length)));
+    }
+
+    @Override
+    public void sendRelayed(FileRelay.Chunk chunk) {
+        enqueue(new RelayOutgoing(chunk));
+    }
+
+    @Override
+    public void suspendInput() {
+        inputLock.lock();
+        try {
+            inputSuspended = true;
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    @Override
+    public void resumeInput() {
+        inputLock.lock();
+        try {
+            inputSuspended = false;
+            inputResumed.signalAll();
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    //waits for the input to be resumed while it is suspended, unless the connection has been closed
+    private void awaitInput() throws InterruptedIOException {
+        inputLock.lock();
+        try {
+            while (inputSuspended && !closed) {
+                inputResumed.await();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    //returns the id of a new stream for a download, must be called by the writer task
+    private int openStream() {
+        int stream = nextStream;
+        nextStream += 2;
+        return stream;
+    }
+
+    @Override
+    public boolean isUpgraded() {
+        return upgraded;
+    }
+
+    @Override
+    public int queuedOutput() {
+        return outbound.size();
+    }
+
+    @Override
+    public long droppedFrames() {
+        return outbound.dropped();
+    }
+
+    //queues the output and makes sure the writer task will write it, disconnecting the client when it cannot keep up
+    private void enqueue(Outgoing outgoing) {
+        if (closeRequested) {
+            outgoing.discard();
+            return;
+        }
+        if (!outbound.offer(outgoing)) {
+            outgoing.discard();
+            System.out.println("[" + new Date() + "] Disconnecting " + clientSocket.toString()
+                    + ": too slow to receive the room's messages.");
+            //the writer task is blocked on the full socket, so the reason could only be sent by waiting on it
+            closeNow();
+            return;
+        }
+        scheduleWriter();
+    }
+
+    //starts the writer task unless it is already running
+    private void scheduleWriter() {
+        if (writing.compareAndSet(false, true)) {
+            writerExecutor.execute(this::writeQueued);
+        }
+    }
+
+    /*
+    Writes the queued output until the queue is empty, the only place output is written to the socket. Everything
+    written in one go is flushed together, so a burst of lines becomes a few TLS records instead of one per line. With
+    a flush delay, the writer first waits that long for more output to join the burst.
+
+    Once the queue is empty, the downloads in progress each write their next DATA frame in turn before the queue is
+    checked again, so queued output never waits for more than a frame of every download.
+     */
+    private void writeQueued() {
+        try {
+            if (MAX_FLUSH_DELAY_MILLIS > 0 && !closeRequested) {
+                Thread.sleep(MAX_FLUSH_DELAY_MILLIS);
+            }
+            while (!closed) {
+                Outgoing outgoing = outbound.peek();
+                if (outgoing != null) {
+                    outgoing.writeTo(this, out);
+                    outbound.poll();
+                    continue;
+                }
+                FileOutgoing transfer = transfers.peek();
+                if (transfer == null) {
+                    break;
+                }
+                //a DATA frame is as large as the stream's buffer, so it also flushes the output written before it
+                boolean more = transfer.writeChunk(out);
+                transfers.poll();
+                if (more) {
+                    transfers.add(transfer);
+                }
+            }
+            if (!closed) {
+                out.flush();
+            }
+            if (closeRequested && outbound.isEmpty()) {
+                closeNow();
+            }
+        } catch (IOException ioe) {
+            closeNow();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (closed) {
+                //the downloads and the compression are only used by the writer task, which is the one to release them
+                while (!transfers.isEmpty()) {
+                    transfers.poll().discard();
+                }
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            writing.set(false);
+        }
+        //output or a close requested after the last check would otherwise wait for the next send
+        if (!closed && (closeRequested || !outbound.isEmpty())) {
+            scheduleWriter();
+        }
+    }
+
+    @Override
+    public void close() {
+        //the writer task closes the socket once the queued output has been written
+        closeRequested = true;
+        scheduleWriter();
+    }
+
+    //closes the socket, discarding any output that has not been written
+    private void closeNow() {
+        closeRequested = true;
+        closed = true;
+        outbound.clear();
+        //the reader may be waiting for suspended input, it finds the socket closed instead
+        resumeInput();
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            System.out.println("Failure to close client socket: " + clientSocket.toString());
+        }
+    }
+
+    //an item of queued output, written by the writer task
+    private interface Outgoing extends OutboundQueue.Item {
+
+        //writes the whole item to the stream of the connection, which is flushed by the writer task
+        void writeTo(SocketConnection connection, OutputStream out) throws IOException;
+    }
+
+    //queued output of a single frame, which may be the acknowledgement that switches the output to version 2
+    //and is compressed once the client has asked for it
+    private static class FrameOutgoing implements Outgoing {
+        private final Frame frame;
+        private final boolean upgrade;
+
+        private FrameOutgoing(Frame frame, boolean upgrade) {
+            this.frame = frame;
+            this.upgrade = upgrade;
+        }
+
+        @Override
+        public void writeTo(SocketConnection connection, OutputStream out) throws IOException {
+            if (connection.deflater != null) {
+                out.write(connection.deflater.deflate(frame.buffer(true)));
+            } else {
+                frame.writeTo(out, connection.binaryOutput);
+            }
+            if (upgrade) {
+                connection.binaryOutput = true;
+            }
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return frame.isDroppable();
+        }
+
+        @Override
+        public void discard() {
+            //nothing to release
+        }
+    }
+
+    //marks where the client asked for compression, compressing every frame written after it
+    private static class CompressOutgoing implements Outgoing {
+
+        @Override
+        public void writeTo(SocketConnection connection, OutputStream out) {
+            if (connection.deflater == null) {
+                connection.deflater = new FrameDeflater();
+            }
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+
+        @Override
+        public void discard() {
+            //nothing to release
+        }
+    }
+
+    //queued output of a frame of a relayed file's stream, which opens a new stream when it is the first of the relay
+    private static class RelayOutgoing implements Outgoing {
+        private final FileRelay.Chunk chunk;
+
+        private RelayOutgoing(FileRelay.Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void writeTo(SocketConnection connection, OutputStream out) throws IOException {
+            out.write(chunk.encode(chunk.opensStream() ? connection.openStream() : 0));
+            chunk.release();
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+
+        @Override
+        public void discard() {
+            chunk.release();
+        }
+    }
+
+    /*
+    Queued output of a header line followed by the contents of a file. In version 2 the header is sent on a stream of
+    its own and the contents as DATA frames of that stream, which the writer task interleaves with the rest of the
+    output once the header is written. In the text protocol the contents follow the header raw and all at once. The
+    contents are copied from the mapped file into a chunk written past the stream's buffer, so every byte is only
+    copied once on its way to the socket's encryption.
+     */
+    private static class FileOutgoing implements Outgoing {
+        private final String header;
+        private final MappedFileChannel file;
+        private int stream; //the stream of the contents in version 2, 0 in the text protocol
+        private ByteBuffer buffer; //the chunk the contents are copied into, with room for a DATA header in version 2
+
+        private FileOutgoing(String header, MappedFileChannel file) {
+            this.header = header;
+            this.file = file;
+        }
+
+        @Override
+        public void writeTo(SocketConnection connection, OutputStream out) throws IOException {
+            boolean binary = connection.binaryOutput;
+            stream = binary ? connection.openStream() : 0;
+            buffer = ByteBuffer.allocate(binary ? WireFormat.HEADER_LENGTH + WireFormat.DATA_CHUNK : RAW_CHUNK);
+            out.write(Frame.encode(header, binary, stream));
+            if (binary) {
+                connection.transfers.add(this);
+                return;
+            }
+            //nothing can be written between the raw contents of the text protocol
+            boolean more = true;
+            while (more) {
+                more = writeChunk(out);
+            }
+        }
+
+        //writes the next chunk of the contents, returning false and closing the file once they have all been written
+        private boolean writeChunk(OutputStream out) throws IOException {
+            int offset = stream == 0 ? 0 : WireFormat.HEADER_LENGTH;
+            buffer.clear().position(offset);
+            //the mapped file copies at most to the end of its window, so a chunk may take a few reads
+            int amountRead = 0;
+            int read;
+            while (buffer.hasRemaining() && (read = file.read(buffer)) > 0) {
+                amountRead += read;
+            }
+            if (amountRead == 0) {
+                file.close();
+                return false;
+            }
+            if (stream != 0) {
+                buffer.position(0);
+                WireFormat.putHeader(buffer, WireFormat.DATA, stream, amountRead);
+            }
+            //a chunk at least as large as the stream's buffer is written through to the socket
+            out.write(buffer.array(), 0, offset + amountRead);
+            return true;
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return false;
+        }
+
+        @Override
+        public void discard() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                //the file was only being read
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A RoomBus over a TCP connection to a MultiChatBusServer, which passes the lines every node publishes to a room on to
+ * the other nodes subscribed to it, numbering every node by its connection. It is read by a thread of its own, and
+ * written by another that writes every line published since it last wrote together.
+ *
+ * <p>The lines sent to the bus server are "SUBSCRIBE [room]" and "PUBLISH [room] [line]", and the lines received are
+ * "MESSAGE [room] [node] [line]" and "NODELEFT [node]". When the connection to the bus server is lost, every other
+ * node is taken to have left, and the rooms are served by this node alone.
+ */
+class TcpRoomBus implements RoomBus {
+
+    private final Socket socket;
+    private final BlockingQueue<String> outbound = new LinkedBlockingQueue<>();
+    private final Map<String, Listener> listeners = new ConcurrentHashMap<>();
+    //the nodes that published a line to this node's rooms, which have left once the bus is lost
+    private final Set<String> nodes = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    /**
+     * Connects to the MultiChatBusServer at the given address and starts reading and writing its lines.
+     *
+     * @param host the host of the bus server
+     * @param port the port of the bus server
+     * @throws IOException when the bus server cannot be connected to
+     */
+    TcpRoomBus(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        //a line waits for those published before it, but not for the bus server to acknowledge them
+        socket.setTcpNoDelay(true);
+        Thread reader = new Thread(this::read, "MultiChat-bus");
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(this::write, "MultiChat-bus-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void subscribe(String room, Listener listener) {
+        listeners.put(room, listener);
+        outbound.add("SUBSCRIBE " + room);
+    }
+
+    @Override
+    public void publish(String room, String line) {
+        RoomBus.requireSingleLine(line);
+        if (!closed) {
+            outbound.add("PUBLISH " + room + " " + line);
+        }
+    }
+
+    //writes the queued lines for as long as the connection lasts, flushing once the queue has been emptied
+    private void write() {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                StandardCharsets.UTF_8), 65536)) {
+            while (true) {
+                String line = outbound.take();
+                do {
+                    out.write(line);
+                    out.write('\n');
+                } while ((line = outbound.poll()) != null);
+                out.flush();
+            }
+        } catch (IOException ioe) {
+            close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //hands the lines of the other nodes to the listeners of their rooms for as long as the connection lasts
+    private void read() {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8), 65536)) {
+            String input;
+            while ((input = in.readLine()) != null) {
+                if (input.startsWith("MESSAGE ")) {
+                    //MESSAGE [room] [node] [line]
+                    String[] fields = input.split(" ", 4);
+                    Listener listener = listeners.get(fields[1]);
+                    if (listener != null && fields.length == 4) {
+                        nodes.add(fields[2]);
+                        listener.received(fields[2], fields[3]);
+                    }
+                } else if (input.startsWith("NODELEFT ")) {
+                    String node = input.substring(9);
+                    nodes.remove(node);
+                    for (Listener listener : listeners.values()) {
+                        listener.nodeLeft(node);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            //the bus is lost either way
+        }
+        close();
+        System.out.println("Lost the connection to the room bus, the rooms are served by this server alone.");
+        for (String node : nodes) {
+            for (Listener listener : listeners.values()) {
+                listener.nodeLeft(node);
+            }
+        }
+        nodes.clear();
+    }
+
+    //closes the connection to the bus server, after which nothing more is published
+    private void close() {
+        closed = true;
+        outbound.clear();
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            //closed either way
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking TLS channel layered over a SocketChannel with an SSLEngine. Reads return decrypted application data
+ * and writes encrypt it, while handshakes (including those the peer starts again over the established session, and
+ * post-handshake messages such as key updates) are carried out transparently as part of reading and writing. Neither
+ * reads nor writes ever block: when the engine needs data from the peer, room in the socket's send buffer, or its
+ * delegated tasks to be run, they return 0 and the caller retries once the socket is ready again or the tasks are done.
+ * Delegated tasks run on a separate executor so the calling I/O thread is never stalled by them.
+ *
+ * <p>The buffers of the channel are taken from a shared BufferPool only while they hold data.
+ */
+class TlsChannel implements ByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final Executor taskExecutor;
+    private final Runnable onTasksDone;
+
+    private ByteBuffer netIn; //encrypted bytes read from the socket but not yet unwrapped, in write mode
+    private ByteBuffer appIn; //decrypted bytes not yet read by the caller, in read mode
+    private ByteBuffer netOut; //encrypted bytes not yet written to the socket, in read mode
+
+    private volatile boolean tasksRunning = false;
+    private boolean inboundClosed = false;
+    private boolean closed = false;
+
+    /**
+     * Creates a TLS channel over the given connected, non-blocking channel.
+     *
+     * @param channel      the channel to be layered over
+     * @param engine       the SSLEngine of the connection, already set to the proper client or server mode
+     * @param pool         the pool the channel's buffers are taken from
+     * @param taskExecutor the executor that runs the engine's delegated tasks
+     * @param onTasksDone  run on the task executor once delegated tasks are done, so the caller can retry its I/O
+     * @throws SSLException when the handshake cannot be started
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool pool, Executor taskExecutor,
+               Runnable onTasksDone) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.taskExecutor = taskExecutor;
+        this.onTasksDone = onTasksDone;
+        engine.beginHandshake();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        while (true) {
+            if (appIn != null) {
+                int amount = Math.min(appIn.remaining(), dst.remaining());
+                ByteBuffer slice = appIn.slice();
+                slice.limit(amount);
+                dst.put(slice);
+                appIn.position(appIn.position() + amount);
+                if (!appIn.hasRemaining()) {
+                    pool.release(appIn);
+                    appIn = null;
+                }
+                return amount;
+            }
+            if (inboundClosed) {
+                return -1;
+            }
+            if (!progressHandshake() || !unwrap()) {
+                return 0;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int written = 0;
+        while (src.hasRemaining()) {
+            if (!progressHandshake() || engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP || !flush()) {
+                break;
+            }
+            int remaining = src.remaining();
+            wrap(src);
+            if (src.remaining() == remaining) {
+                break;
+            }
+            written += remaining - src.remaining();
+        }
+        return written;
+    }
+
+    /**
+     * Writes the encrypted bytes that are waiting for room in the socket's send buffer.
+     *
+     * @return whether every encrypted byte has been written
+     * @throws IOException when writing to the socket fails
+     */
+    boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+            return false;
+        }
+        pool.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * Returns whether encrypted bytes are waiting for the socket to become writable.
+     *
+     * @return whether the channel waits for the socket to become writable
+     */
+    boolean wantsWrite() {
+        return netOut != null;
+    }
+
+    //carries out the handshake for as long as it needs this side to write or run tasks, returns false when blocked
+    private boolean progressHandshake() throws IOException {
+        while (true) {
+            if (tasksRunning) {
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    return false;
+                case NEED_WRAP:
+                    if (!flush()) {
+                        return false;
+                    }
+                    wrap(EMPTY);
+                    break;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    //runs the engine's delegated tasks on the task executor, then notifies the caller to retry its I/O
+    private void runDelegatedTasks() {
+        tasksRunning = true;
+        taskExecutor.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            tasksRunning = false;
+            onTasksDone.run();
+        });
+    }
+
+    //wraps the given bytes (or handshake data when empty) into a record then tries to write it, netOut must be empty
+    private void wrap(ByteBuffer src) throws IOException {
+        netOut = pool.acquire();
+        while (true) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                break;
+            }
+            netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+        }
+        netOut.flip();
+        if (!netOut.hasRemaining()) {
+            pool.release(netOut);
+            netOut = null;
+            return;
+        }
+        flush();
+    }
+
+    //unwraps one record from the socket into appIn, returns false when the socket has no more bytes for now
+    private boolean unwrap() throws IOException {
+        if (netIn == null) {
+            netIn = pool.acquire();
+        }
+        ByteBuffer unwrapped = pool.acquire();
+        try {
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, unwrapped);
+                } finally {
+                    netIn.compact();
+                }
+                switch (result.getStatus()) {
+                    case OK:
+                        return true;
+                    case CLOSED:
+                        inboundClosed = true;
+                        return true;
+                    case BUFFER_OVERFLOW:
+                        unwrapped = enlarge(unwrapped, engine.getSession().getApplicationBufferSize());
+                        break;
+                    default: //BUFFER_UNDERFLOW, the record is not whole yet
+                        if (!netIn.hasRemaining()) {
+                            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                        }
+                        int amountRead = channel.read(netIn);
+                        if (amountRead < 0) {
+                            inboundClosed = true;
+                            closeInbound();
+                            return true;
+                        }
+                        if (amountRead == 0) {
+                            return false;
+                        }
+                }
+            }
+        } finally {
+            unwrapped.flip();
+            if (unwrapped.hasRemaining()) {
+                appIn = unwrapped;
+            } else {
+                pool.release(unwrapped);
+            }
+            if (netIn.position() == 0) {
+                pool.release(netIn);
+                netIn = null;
+            }
+        }
+    }
+
+    //tells the engine no more data will come from a peer that went away without a close_notify
+    private void closeInbound() {
+        try {
+            engine.closeInbound();
+        } catch (SSLException ssle) {
+            //the peer closed the connection without a close_notify, which is how most clients leave
+        }
+    }
+
+    //returns a buffer of at least the given size holding the contents of the given buffer (in write mode)
+    private ByteBuffer enlarge(ByteBuffer buffer, int size) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        return larger;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Sends a close_notify when the socket accepts it without blocking, then closes the socket and returns the
+     * channel's buffers to the pool.
+     *
+     * @throws IOException when closing the socket fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            engine.closeOutbound();
+            if (!tasksRunning && flush()) {
+                wrap(EMPTY);
+            }
+        } catch (IOException ioe) {
+            //the close_notify is a courtesy, the socket is closed regardless
+        } finally {
+            closed = true;
+            for (ByteBuffer buffer : new ByteBuffer[]{netIn, appIn, netOut}) {
+                if (buffer != null) {
+                    pool.release(buffer);
+                }
+            }
+            netIn = null;
+            appIn = null;
+            netOut = null;
+            channel.close();
+        }
+    }
+}
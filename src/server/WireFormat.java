@@ -0,0 +1,105 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The layout of version 2 of the MultiChat wire format. Every message is a frame of a fixed header followed by its
+ * payload:
+ *
+ * <pre>
+ *   opcode  1 byte   the type of the frame, an Opcode from the server or a Command from the client
+ *   stream  4 bytes  0 for chat and commands, the id of a file transfer for the frames that belong to it, or
+ *                    the channel of a subscribed room
+ *   length  4 bytes  the amount of payload bytes that follow
+ *   payload          the UTF-8 text following the keyword in the text protocol, or raw bytes for DATA frames
+ * </pre>
+ *
+ * <p>Every connection starts out in the newline-delimited text protocol, and the server offers version 2 with the
+ * line "PROTOCOL 2". A client that understands it answers with that same line and sends frames from then on, and the
+ * server repeats the line once more as the last line of text before it sends frames as well. Clients that ignore the
+ * offer keep using the text protocol.
+ *
+ * <p>The streams a client opens for its uploads have odd ids and those the server opens for downloads even ids, so
+ * the server can answer an upload on the upload's own stream: FILEOFFSET tells the client how much of the file the
+ * server already holds from an earlier, cut off upload, and FILEACK how much has been stored so far.
+ *
+ * <p>A client can download a large file faster over a link with a high round trip time by fetching byte ranges of it
+ * over several connections at once, as every connection's throughput is held back by its own TCP window. A
+ * connection opened only for that sends a REQUESTRANGE command in place of its username: it is answered like a user's
+ * request, each range on a stream of its own announced by FILERANGE, but it never joins the room.
+ *
+ * <p>A client may ask for the frames sent to it to be compressed with a COMPRESS command naming "deflate", which
+ * servers that do not compress skip like any frame they do not know. The frames are then sent inside DEFLATED frames,
+ * except the DATA frames of files, whose contents are mostly compressed already. The DEFLATED frames of a connection
+ * carry one DEFLATE stream primed with DICTIONARY, and each holds a single frame flushed with SYNC_FLUSH, without the
+ * four bytes 00 00 FF FF every such flush ends with.
+ *
+ * <p>Besides the room it joined, a client may subscribe to the other rooms hosted by the same server with SUBSCRIBE
+ * and leave them with UNSUBSCRIBE, both naming the room, and is told SUBSCRIBED or UNSUBSCRIBED with the room's
+ * number (and why, when a subscription fails or ends on its own). Everything of a subscribed room then travels on the
+ * room's channel, the stream CHANNEL | [room number], in both directions: the room's chat and users reach the client
+ * on it, and the messages and commands the client sends on it are meant for that room. The room joined keeps
+ * stream 0, so a client that never subscribes sees no difference.
+ */
+final class WireFormat {
+
+    //the line that offers, accepts and acknowledges version 2
+    static final String PROTOCOL_LINE = "PROTOCOL 2";
+
+    static final int HEADER_LENGTH = 9;
+    //longest payload of a frame other than DATA, the same as the longest line accepted in the text protocol
+    static final int MAX_PAYLOAD = 1 << 16;
+    //longest payload of a DATA frame
+    static final int MAX_DATA_PAYLOAD = 1 << 20;
+    //payload of the DATA frames the server splits a file into
+    static final int DATA_CHUNK = 16384;
+
+    //the opcode of the frames that carry the raw bytes of a file transfer in both directions
+    static final byte DATA = 0x7F;
+    //the opcode of the frames that carry a compressed frame to a client that asked for compression
+    static final byte DEFLATED = 0x7E;
+
+    //the compression a client asks for with the COMPRESS command
+    static final String COMPRESSION = "deflate";
+    /*
+    The bytes the DEFLATE stream of every connection starts out knowing: the recurring text of the frames sent to
+    clients and the headers of the most common frames, with the most frequent last. In version 2 the keywords of the
+    text protocol are opcodes, so only the text that follows them is worth priming the stream with. Only what never
+    changes goes into it, as the client and the server must build the same bytes: the opcodes, and the brackets around
+    the date of a chat message but not the date's year or time zone.
+     */
+    static final byte[] DICTIONARY = dictionary(Opcode.USERJOINED.code(), Opcode.USERLEFT.code(),
+            Opcode.MESSAGE.code());
+
+    //the bit set in the stream of every room channel, whose other bits are the room's number
+    static final int CHANNEL = 0x80000000;
+    //the id of the first stream the server opens, every stream it opens after has the id two higher
+    static final int FIRST_SERVER_STREAM = 2;
+    //the bytes of an upload stored between the acknowledgements sent to the client
+    static final long ACK_BYTES = 1 << 20;
+
+    private WireFormat() {
+    }
+
+    //returns the dictionary: the recurring text, then the headers of the given opcodes with the brackets of a date
+    private static byte[] dictionary(byte joined, byte left, byte message) {
+        byte[] text = ("Type /quit to quit MultiChat. Type /help to access this help menu. "
+                + "Error communicating to server.Error fetching file.Successfully left."
+                + "Welcome to Multi-Chat, room . Use /help for help!"
+                + "Jan Feb Mar Apr May Jun Jul Aug Sep Oct Nov Dec Mon Tue Wed Thu Fri Sat Sun"
+                + " have joined. have left has left has joined.").getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer dictionary = ByteBuffer.allocate(text.length + 3 * HEADER_LENGTH + 3);
+        dictionary.put(text);
+        putHeader(dictionary, joined, 0, 0);
+        putHeader(dictionary, left, 0, 0);
+        dictionary.put("] ".getBytes(StandardCharsets.ISO_8859_1));
+        putHeader(dictionary, message, 0, 0);
+        return dictionary.put((byte) '[').array();
+    }
+
+    //puts the header of a frame into the buffer
+    static void putHeader(ByteBuffer buffer, byte opcode, int stream, int length) {
+        buffer.put(opcode).putInt(stream).putInt(length);
+    }
+}
@@ -0,0 +1,222 @@
+package client.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A local TCP proxy that makes the link to a server behave like one with a long round trip time and a limited TCP
+ * window. Each direction of every connection delivers the bytes it reads half the round trip time later, and stops
+ * reading once a window of bytes is in flight, a byte counting as acknowledged another half round trip after it was
+ * delivered. A single connection through the proxy is therefore held to about a window per round trip, however fast
+ * the server and the client are, as it would be over a long link.
+ */
+class DelayProxy implements AutoCloseable {
+
+    private static final int READ_SIZE = 65536;
+
+    private final ServerSocket listener;
+    private final int targetPort;
+    private final long delayNanos; //half the round trip time
+    private final int window;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet(); //both sides of every proxied connection
+    //delays the acknowledgements of every direction of every connection
+    private final ScheduledExecutorService acknowledgements = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DelayProxy-ack");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Starts a proxy on a free local port that forwards every connection to the given local port.
+     *
+     * @param targetPort      the port connections are forwarded to
+     * @param roundTripMillis the round trip time of the simulated link
+     * @param windowBytes     the most bytes in flight in either direction of a connection
+     * @throws IOException when the proxy cannot listen
+     */
+    DelayProxy(int targetPort, long roundTripMillis, int windowBytes) throws IOException {
+        this.listener = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        this.targetPort = targetPort;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(roundTripMillis) / 2;
+        this.window = windowBytes;
+        daemon(this::accept, "DelayProxy-accept");
+    }
+
+    //returns the local port clients connect to
+    int port() {
+        return listener.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        acknowledgements.shutdownNow();
+    }
+
+    //forwards every accepted connection until the proxy is closed
+    private void accept() {
+        try {
+            while (true) {
+                Socket client = listener.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                new Direction(client, server).start();
+                new Direction(server, client).start();
+            }
+        } catch (IOException ioe) {
+            //the proxy was closed
+        }
+    }
+
+    //runs the task on a daemon thread of the given name, so the proxy never keeps the JVM running
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * One direction of a proxied connection, read by one thread and written after the delay by another.
+     */
+    private class Direction {
+
+        private final Socket from;
+        private final Socket to;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final Queue<Delivery> deliveries = new ArrayDeque<>(); //guarded by the lock
+        private int inFlight = 0; //guarded by the lock
+
+        private Direction(Socket from, Socket to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        private void start() {
+            daemon(this::read, "DelayProxy-read");
+            daemon(this::write, "DelayProxy-write");
+        }
+
+        //reads while the window allows, queueing what was read for delivery after the delay, and the end last
+        private void read() {
+            byte[] buffer = new byte[Math.min(READ_SIZE, window)];
+            try {
+                InputStream in = from.getInputStream();
+                while (true) {
+                    lock.lock();
+                    try {
+                        while (inFlight >= window) {
+                            changed.await();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    int read = in.read(buffer);
+                    queue(read < 0 ? null : Arrays.copyOf(buffer, read));
+                    if (read < 0) {
+                        return;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                queue(null);
+            }
+        }
+
+        //queues the bytes read, or null for the end of the input, for delivery once the delay has passed
+        private void queue(byte[] bytes) {
+            lock.lock();
+            try {
+                deliveries.add(new Delivery(System.nanoTime() + delayNanos, bytes));
+                if (bytes != null) {
+                    inFlight += bytes.length;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //writes every delivery once it is due, acknowledging it another delay later
+        private void write() {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Delivery delivery;
+                    lock.lock();
+                    try {
+                        while (deliveries.isEmpty()) {
+                            changed.await();
+                        }
+                        delivery = deliveries.remove();
+                    } finally {
+                        lock.unlock();
+                    }
+                    long wait = delivery.due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (delivery.bytes == null) {
+                        to.shutdownOutput();
+                        return;
+                    }
+                    out.write(delivery.bytes);
+                    acknowledgements.schedule(() -> acknowledge(delivery.bytes.length), delayNanos,
+                            TimeUnit.NANOSECONDS);
+                }
+            } catch (IOException | InterruptedException | RejectedExecutionException e) {
+                //either side went away, which closes the other, or the proxy was closed
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException ioe) {
+                    //closing anyway
+                }
+            }
+        }
+
+        //frees the window of the acknowledged bytes, letting the reader read on
+        private void acknowledge(int bytes) {
+            lock.lock();
+            try {
+                inFlight -= bytes;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Bytes read from one side, due to be written to the other at the given time, or null for the end of the input.
+     */
+    private static class Delivery {
+        private final long due;
+        private final byte[] bytes;
+
+        private Delivery(long due, byte[] bytes) {
+            this.due = due;
+            this.bytes = bytes;
+        }
+    }
+}
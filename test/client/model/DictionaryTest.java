@@ -0,0 +1,56 @@
+package client.model;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Checks that the client and the server prime their DEFLATE streams with the same dictionary, which each builds in its
+ * own WireFormat: a client whose dictionary differs by a single byte cannot inflate a compressed frame of the server.
+ * The dictionary must also hold nothing that changes with the year or the time zone the server runs in, such as the
+ * parts of a chat message's date other than the names of the months and weekdays.
+ *
+ * <p>Run as:
+ * <pre>
+ *     java -cp out:test-out client.model.DictionaryTest
+ * </pre>
+ *
+ * <p>It exits with status 1 when a check fails.
+ */
+public class DictionaryTest {
+
+    /**
+     * Runs the test.
+     *
+     * @param args unused
+     * @throws ReflectiveOperationException when the server's WireFormat is not on the class path
+     */
+    public static void main(String[] args) throws ReflectiveOperationException {
+        Field field = Class.forName("server.WireFormat").getDeclaredField("DICTIONARY");
+        field.setAccessible(true);
+        byte[] server = (byte[]) field.get(null);
+        if (!Arrays.equals(WireFormat.DICTIONARY, server)) {
+            fail("the client's dictionary of " + WireFormat.DICTIONARY.length
+                    + " bytes differs from the server's of " + server.length + " bytes");
+        }
+        for (byte b : server) {
+            if (b >= '0' && b <= '9') {
+                fail("the dictionary holds the digit " + (char) b + ", as of a year");
+            }
+        }
+        String dictionary = new String(server, StandardCharsets.ISO_8859_1);
+        String zone = TimeZone.getDefault().getDisplayName(TimeZone.getDefault().inDaylightTime(new Date()),
+                TimeZone.SHORT);
+        if (dictionary.contains(" " + zone + " ")) {
+            fail("the dictionary holds the time zone " + zone);
+        }
+        System.out.println("passed");
+    }
+
+    private static void fail(String failure) {
+        System.out.println("FAILED: " + failure);
+        System.exit(1);
+    }
+}
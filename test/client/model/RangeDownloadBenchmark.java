@@ -0,0 +1,90 @@
+package client.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how long downloading a large file takes over a link with a long round trip time, saved over a single
+ * connection and in parallel byte ranges. A client uploads a file of random bytes straight to a running server, and
+ * another client in the same room then downloads it through a DelayProxy in each given amount of ranges, one range
+ * being the single connection of a download before ranges. Every download is checked to be the uploaded file.
+ *
+ * <p>Run against a running server, such as:
+ * <pre>
+ *     java -cp out server.MultiChatMasterServer 100
+ *     java -cp out server.MultiChatServer 59090 30
+ *     java -cp out:test-out client.model.RangeDownloadBenchmark 59090 16 50 256 1 2 4
+ * </pre>
+ * for a 16 MB file over a link with a round trip of 50 ms and a window of 256 KB, saved in 1, 2 and 4 ranges.
+ */
+public class RangeDownloadBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the port of the room, the size of the file in MB, the round trip time in milliseconds, the window
+     *             in KB, and the amounts of ranges the file is saved in
+     * @throws Exception when the server cannot be reached or a download fails
+     */
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int megabytes = Integer.parseInt(args[1]);
+        long roundTripMillis = Long.parseLong(args[2]);
+        int windowBytes = Integer.parseInt(args[3]) << 10;
+        String tag = Long.toString(System.nanoTime() % 10000);
+
+        byte[] contents = new byte[megabytes << 20];
+        new Random(5).nextBytes(contents);
+        File source = File.createTempFile("multichat-range", ".bin");
+        source.deleteOnExit();
+        Files.write(source.toPath(), contents);
+        MultiChatClientModelImpl uploader = join(new MultiChatClientModelImpl("localhost", port), "up" + tag);
+        Thread reader = new Thread(() -> {
+            while (uploader.isConnectionRunning()) {
+                uploader.getServerMessage();
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        uploader.sendFile("big.bin", contents.length, source);
+
+        try (DelayProxy proxy = new DelayProxy(port, roundTripMillis, windowBytes)) {
+            MultiChatClientModelImpl downloader = join(new MultiChatClientModelImpl("localhost", proxy.port()),
+                    "down" + tag);
+            File target = File.createTempFile("multichat-saved", ".bin");
+            target.deleteOnExit();
+            for (int i = 4; i < args.length; i++) {
+                int ranges = Integer.parseInt(args[i]);
+                long start = System.nanoTime();
+                downloader.saveFileInRanges(target, "up" + tag, "big.bin", ranges);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                boolean intact = Arrays.equals(contents, Files.readAllBytes(target.toPath()));
+                System.out.printf("%d MB in %d range%s over %d ms RTT, %d KB window: %d ms, %.1f MB/s%s%n",
+                        megabytes, ranges, ranges == 1 ? "" : "s", roundTripMillis, windowBytes >> 10, millis,
+                        megabytes * 1000.0 / millis, intact ? "" : " (CORRUPTED)");
+                if (!intact) {
+                    System.exit(1);
+                }
+            }
+            downloader.sendText("/quit");
+        }
+        uploader.sendText("/quit");
+    }
+
+    //submits the given name for the client until it is accepted
+    private static MultiChatClientModelImpl join(MultiChatClientModelImpl client, String name) throws IOException {
+        while (client.isConnectionRunning()) {
+            ServerMessage message = client.getServerMessage();
+            if (message.getType() == ServerMessage.Type.SUBMITNAME) {
+                client.sendText(name);
+            } else if (message.getType() == ServerMessage.Type.NAMEACCEPTED) {
+                client.setUsername(name);
+                return client;
+            }
+        }
+        throw new IOException("the connection closed before " + name + " was accepted");
+    }
+}
@@ -0,0 +1,77 @@
+package client.model;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures how long a client takes to change rooms with /join, from asking for the new room's connection until the new
+ * room's first message arrives, which takes the TLS handshake of the new connection. It prints the time of the
+ * client's very first connection, which also loads the client's keys and makes its SSLContext, then the times of
+ * switching back and forth between two rooms, and of reconnecting to the same room, whose TLS session is resumed.
+ *
+ * <p>Run against two running rooms, such as:
+ * <pre>
+ *     java -cp out server.MultiChatMasterServer 100
+ *     java -cp out server.MultiChatServer 59090,59091 30
+ *     java -cp out:test-out client.model.RoomSwitchBenchmark 59090 59091 200
+ * </pre>
+ */
+public class RoomSwitchBenchmark {
+
+    private static int names = 0;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the ports of the two rooms and the amount of switches timed of each kind
+     * @throws IOException when a room cannot be reached
+     */
+    public static void main(String[] args) throws IOException {
+        int firstPort = Integer.parseInt(args[0]);
+        int secondPort = Integer.parseInt(args[1]);
+        int switches = Integer.parseInt(args[2]);
+
+        long start = System.nanoTime();
+        MultiChatModel client = new MultiChatClientModelImpl("localhost", firstPort);
+        client.getServerMessage();
+        System.out.printf("first connection: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        join(client);
+        for (boolean reconnect : new boolean[]{false, true}) {
+            long[] times = new long[switches];
+            for (int i = 0; i < switches; i++) {
+                int port = reconnect || i % 2 == 1 ? firstPort : secondPort;
+                start = System.nanoTime();
+                MultiChatModel next = client.switchPorts(Integer.toString(port));
+                next.getServerMessage();
+                times[i] = System.nanoTime() - start;
+                client.sendText("/quit");
+                while (client.isConnectionRunning()) {
+                    client.getServerMessage();
+                }
+                client = next;
+                join(client);
+            }
+            Arrays.sort(times);
+            System.out.printf("%s x%d: median %.2f ms, p90 %.2f ms, min %.2f ms%n",
+                    reconnect ? "reconnect to the same room" : "switch between rooms", switches,
+                    times[switches / 2] / 1e6, times[switches * 9 / 10] / 1e6, times[0] / 1e6);
+        }
+        client.sendText("/quit");
+    }
+
+    //submits a fresh name for the client, whose name was already asked for, until one is accepted
+    private static void join(MultiChatModel client) {
+        String name = "switch" + names++ + "x" + System.nanoTime() % 1000;
+        client.sendText(name);
+        while (client.isConnectionRunning()) {
+            ServerMessage message = client.getServerMessage();
+            if (message.getType() == ServerMessage.Type.SUBMITANOTHERNAME) {
+                name += "y";
+                client.sendText(name);
+            } else if (message.getType() == ServerMessage.Type.NAMEACCEPTED) {
+                client.setUsername(name);
+                return;
+            }
+        }
+    }
+}
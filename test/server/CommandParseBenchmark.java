@@ -0,0 +1,103 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the dispatch of client lines through Command.parse with the chain of case-converting prefix checks that
+ * MultiChatServer used before, on plain chat and on a mix of commands. Every workload is run for a few warmup rounds
+ * and then measured over several more, printing the lines parsed per second and the bytes allocated per line of each.
+ *
+ * <p>Run as:
+ * <pre>
+ *     java -cp out:test-out server.CommandParseBenchmark [lines per round] [measured rounds]
+ * </pre>
+ *
+ * <p>Measuring allocation relies on the com.sun.management extension of the thread bean of HotSpot JVMs.
+ */
+public class CommandParseBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final String[][] WORKLOADS = {
+            {"Hello everyone, how is it going today? :)", "lol", "did anyone see the match last night"},
+            {"/whisper bob: hi there", "/requestfile bob:a.txt", "/HELP", "/privatefile bob:a.txt:12"}
+    };
+    private static final String[] WORKLOAD_NAMES = {"plain chat", "commands"};
+
+    private static long sink = 0; //consumes every result so the parsing is never optimized away
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the lines parsed every round and the amount of measured rounds
+     */
+    public static void main(String[] args) {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int workload = 0; workload < WORKLOADS.length; workload++) {
+            for (boolean trie : new boolean[]{false, true}) {
+                double best = 0;
+                double total = 0;
+                double bytes = 0;
+                for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+                    long allocated = threads.getThreadAllocatedBytes(thread);
+                    long start = System.nanoTime();
+                    run(WORKLOADS[workload], lines, trie);
+                    double perSecond = lines * 1e9 / (System.nanoTime() - start);
+                    if (round >= WARMUP_ROUNDS) {
+                        best = Math.max(best, perSecond);
+                        total += perSecond;
+                        bytes += (threads.getThreadAllocatedBytes(thread) - allocated) / (double) lines;
+                    }
+                }
+                System.out.printf("%-10s %-6s %7.2f M lines/s (best %7.2f)  %6.1f bytes/line%n",
+                        WORKLOAD_NAMES[workload], trie ? "trie" : "ladder", total / rounds / 1e6, best / 1e6,
+                        bytes / rounds);
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    //parses the given amount of lines of the workload in turn
+    private static void run(String[] workload, int lines, boolean trie) {
+        long result = 0;
+        for (int i = 0; i < lines; i++) {
+            String line = workload[i % workload.length];
+            result += trie ? Command.parse(line).ordinal() : ladder(line);
+        }
+        sink += result;
+    }
+
+    //the dispatch of MultiChatServer before Command, each check converting the whole line to lower case again
+    private static int ladder(String input) {
+        if (input.toLowerCase().startsWith("/quit")) {
+            return 1;
+        } else if (input.toLowerCase().startsWith("/help")) {
+            return 2;
+        } else if (input.toLowerCase().startsWith("/emotes")) {
+            return 3;
+        } else if (input.toLowerCase().startsWith("/join ")) {
+            return 4;
+        } else if (input.startsWith("UNSUCCESSFULROOMCHANGE ")) {
+            return 5;
+        } else if (input.startsWith("/votekick ")) {
+            return 6;
+        } else if (input.toLowerCase().startsWith("/whisper ")) {
+            return 7;
+        } else if (input.toLowerCase().startsWith("/privatemsg ")) {
+            return 8;
+        } else if (input.toLowerCase().startsWith("/file ")) {
+            return 9;
+        } else if (input.toLowerCase().startsWith("/privatefile ")) {
+            return 10;
+        } else if (input.toLowerCase().startsWith("/requestfile ")) {
+            return 11;
+        }
+        return 0;
+    }
+}
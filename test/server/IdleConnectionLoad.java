@@ -0,0 +1,161 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Compares the connection modes of a MultiChatServer by how many idle clients it serves and what every connection
+ * costs it. Opens the given amount of TLS clients to a running server at once, each of which submits a name and then
+ * stays connected without sending anything, and prints how many were given their name within the timeout. Given the
+ * process id of the server, it also prints the server's threads and resident memory before and after the clients
+ * connected, after a full garbage collection, and the memory taken per connection.
+ *
+ * <p>Run against a server started in each mode, such as:
+ * <pre>
+ *     java -cp out server.MultiChatServer 59090 30
+ *     java -cp out server.MultiChatServer 59090 400
+ *     java -Dmultichat.io=virtual -cp out server.MultiChatServer 59090 30
+ *     java -cp out:test-out server.IdleConnectionLoad 59090 400 60 [server pid]
+ * </pre>
+ *
+ * <p>Measuring memory reads /proc and runs jcmd, so it takes Linux and a JDK.
+ */
+public class IdleConnectionLoad {
+
+    /**
+     * Runs the load.
+     *
+     * @param args the port of the room, the amount of clients, the seconds to wait for them to be named, and
+     *             optionally the process id of the server
+     * @throws Exception when the clients cannot be set up
+     */
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int clients = Integer.parseInt(args[1]);
+        long timeoutSeconds = Long.parseLong(args[2]);
+        String serverPid = args.length > 3 ? args[3] : null;
+
+        String before = serverPid == null ? null : measure(serverPid);
+        SSLSocketFactory factory = trustingContext().getSocketFactory();
+        CountDownLatch named = new CountDownLatch(clients);
+        List<Socket> sockets = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            String name = "idle" + i;
+            //a small stack, as every client only waits for the lines of its connection
+            Thread client = new Thread(null, () -> connect(factory, port, name, named, sockets), name, 64 << 10);
+            client.setDaemon(true);
+            client.start();
+        }
+        boolean all = named.await(timeoutSeconds, TimeUnit.SECONDS);
+        System.out.printf("named %d/%d clients in %.1f s%s%n", clients - named.getCount(), clients,
+                (System.nanoTime() - start) / 1e9, all ? "" : " (timed out)");
+        if (serverPid != null) {
+            String after = measure(serverPid);
+            System.out.println("server before: " + before);
+            System.out.println("server after:  " + after);
+            long connected = clients - named.getCount();
+            if (connected > 0) {
+                System.out.printf("%.0f KB resident memory per named connection%n",
+                        (rssKilobytes(after) - rssKilobytes(before)) / (double) connected);
+            }
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    //connects one client, submits its name and keeps reading until the connection closes
+    private static void connect(SSLSocketFactory factory, int port, String name, CountDownLatch named,
+                                List<Socket> sockets) {
+        try {
+            Socket socket = factory.createSocket("localhost", port);
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+                    StandardCharsets.UTF_8), true);
+            boolean accepted = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("SUBMITNAME")) {
+                    out.println(name);
+                } else if (!accepted && line.startsWith("NAMEACCEPTED")) {
+                    accepted = true;
+                    named.countDown();
+                }
+            }
+        } catch (IOException ioe) {
+            //a client the server refused or dropped is simply not counted
+        }
+    }
+
+    //returns the threads and resident memory of the process after a full garbage collection
+    private static String measure(String pid) throws IOException, InterruptedException {
+        Path jcmd = Paths.get(System.getProperty("java.home"), "bin", "jcmd");
+        if (Files.isExecutable(jcmd)) {
+            new ProcessBuilder(jcmd.toString(), pid, "GC.run").redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+            Thread.sleep(1000);
+        }
+        String threads = "?";
+        String rss = "?";
+        for (String line : Files.readAllLines(Paths.get("/proc", pid, "status"))) {
+            if (line.startsWith("Threads:")) {
+                threads = line.substring(8).trim();
+            } else if (line.startsWith("VmRSS:")) {
+                rss = line.substring(6).trim();
+            }
+        }
+        return threads + " threads, " + rss + " resident";
+    }
+
+    //returns the kilobytes of resident memory of a measurement
+    private static long rssKilobytes(String measurement) {
+        String rss = measurement.substring(measurement.indexOf(", ") + 2, measurement.indexOf(" kB"));
+        return Long.parseLong(rss);
+    }
+
+    //returns a context trusting any certificate, as the clients only ever connect to the local server
+    private static SSLContext trustingContext() throws GeneralSecurityException {
+        TrustManager[] trustAll = {new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }};
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustAll, null);
+        return context;
+    }
+}
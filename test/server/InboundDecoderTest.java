@@ -0,0 +1,172 @@
+package server;
+
+import java.io.File;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a client cannot make the lines it sends break into several lines, which would reach other clients, the
+ * other servers of a room and the master server as lines of the server's own, such as a forged SUBMITNAME. A frame of
+ * version 2 of the wire format whose payload holds a line feed or carriage return, and a text line holding a carriage
+ * return, must be refused with a ProtocolException before they are handed to the client's Task, while ordinary lines
+ * and frames, text lines ending in a carriage return and line feed, and DATA frames of any bytes still pass.
+ *
+ * <p>Run as:
+ * <pre>
+ *     java -cp out:test-out server.InboundDecoderTest
+ * </pre>
+ *
+ * <p>It exits with status 1 when a check fails.
+ */
+public class InboundDecoderTest {
+
+    private static final List<String> failures = new ArrayList<>();
+
+    /**
+     * Runs the test.
+     *
+     * @param args unused
+     * @throws ProtocolException when a line or frame that should pass is refused
+     */
+    public static void main(String[] args) throws ProtocolException {
+        RecordingTask task = new RecordingTask();
+        InboundDecoder text = new InboundDecoder(task, () -> {
+        });
+        text.decode(bytes("hello\r\n"));
+        check(task.handled.equals(List.of("hello")), "a text line ending in CRLF was handed as " + task.handled);
+        refused(text, task, bytes("hi\rSUBMITNAME\n"), "a text line holding a carriage return");
+
+        for (String payload : new String[]{"hi\nSUBMITNAME", "hi\rSUBMITNAME", "\nACTIVEUSERLIST a,b,", "hi\r\n"}) {
+            InboundDecoder binary = upgraded(task);
+            refused(binary, task, frame(Command.MESSAGE.code(), payload.getBytes(StandardCharsets.UTF_8)),
+                    "a frame of " + payload.replace("\n", "\\n").replace("\r", "\\r"));
+        }
+        InboundDecoder upgraded = upgraded(task);
+        upgraded.decode(frame(WireFormat.DATA, "file\ncontents\r\n".getBytes(StandardCharsets.UTF_8)));
+        upgraded.decode(frame(Command.MESSAGE.code(), "hi there".getBytes(StandardCharsets.UTF_8)));
+        check(task.handled.equals(List.of("MESSAGE hi there")), "a frame was handed as " + task.handled);
+
+        if (!failures.isEmpty()) {
+            failures.forEach(failure -> System.out.println("FAILED: " + failure));
+            System.exit(1);
+        }
+        System.out.println("passed");
+    }
+
+    //returns a new decoder that has been upgraded to version 2, with nothing handed to the task yet
+    private static InboundDecoder upgraded(RecordingTask task) throws ProtocolException {
+        InboundDecoder decoder = new InboundDecoder(task, () -> {
+        });
+        decoder.decode(bytes(WireFormat.PROTOCOL_LINE + "\n"));
+        task.handled.clear();
+        return decoder;
+    }
+
+    //checks that decoding the bytes is refused and nothing is handed to the task
+    private static void refused(InboundDecoder decoder, RecordingTask task, ByteBuffer bytes, String description) {
+        task.handled.clear();
+        try {
+            decoder.decode(bytes);
+            failures.add(description + " was not refused");
+        } catch (ProtocolException pe) {
+            //refused as it should be
+        }
+        check(task.handled.isEmpty(), description + " was handed as " + task.handled);
+    }
+
+    private static ByteBuffer bytes(String line) {
+        return ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer frame(byte opcode, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(WireFormat.HEADER_LENGTH + payload.length);
+        WireFormat.putHeader(frame, opcode, 0, payload.length);
+        frame.put(payload).flip();
+        return frame;
+    }
+
+    private static void check(boolean passed, String failure) {
+        if (!passed) {
+            failures.add(failure);
+        }
+    }
+
+    /**
+     * A Task of no room that records the lines and commands it is handed instead of handling them.
+     */
+    private static class RecordingTask extends MultiChatServer.Task {
+
+        private final List<String> handled = new ArrayList<>();
+
+        RecordingTask() {
+            super(new NoConnection(), "0");
+        }
+
+        @Override
+        void handleLine(String input) {
+            handled.add(input);
+        }
+
+        @Override
+        void handleCommand(Command command, String argument, int stream) {
+            handled.add(command + " " + argument);
+        }
+    }
+
+    /**
+     * A connection that is never written to, as the recording task sends nothing.
+     */
+    private static class NoConnection implements ClientConnection {
+
+        @Override
+        public void send(Frame frame) {
+        }
+
+        @Override
+        public void receiveRaw(long size, RawReceiver receiver) {
+            receiver.complete();
+        }
+
+        @Override
+        public void sendFile(String header, File file, long offset, long length) {
+        }
+
+        @Override
+        public void sendRelayed(FileRelay.Chunk chunk) {
+        }
+
+        @Override
+        public void suspendInput() {
+        }
+
+        @Override
+        public void resumeInput() {
+        }
+
+        @Override
+        public void compressOutput() {
+        }
+
+        @Override
+        public boolean isUpgraded() {
+            return false;
+        }
+
+        @Override
+        public int queuedOutput() {
+            return 0;
+        }
+
+        @Override
+        public long droppedFrames() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures how fast a file to be downloaded is read, in MB/s, through a MappedFileChannel and through the reading it
+ * replaced. For the blocking connections it compares the old loop, a BufferedInputStream read into a 4 KB array, with
+ * a MappedFileChannel read into a 64 KB chunk the way SocketConnection sends the text protocol. For the event loop it
+ * compares FileChannel.read with a MappedFileChannel, both into a direct buffer the size of a TLS record. The bytes
+ * read go nowhere, so only the reading is measured, from a file that stays in the page cache.
+ *
+ * <p>Run as:
+ * <pre>
+ *     java -cp out:test-out server.MappedFileChannelBenchmark [file size in MB] [reads per round] [rounds]
+ * </pre>
+ */
+public class MappedFileChannelBenchmark {
+
+    private static final int WARMUP_READS = 5;
+
+    private static final ByteBuffer record = ByteBuffer.allocateDirect(16709); //the packet size of a TLS session
+    private static long sink = 0; //counts every byte read so the reading is never optimized away
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the size of the file in MB, the times it is read every round and the amount of rounds
+     * @throws IOException when the file cannot be written or read
+     */
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 25;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        File file = File.createTempFile("multichat-bench", ".bin");
+        file.deleteOnExit();
+        byte[] contents = new byte[megabytes << 20];
+        new Random(1).nextBytes(contents);
+        Files.write(file.toPath(), contents);
+
+        for (int round = 0; round < rounds; round++) {
+            System.out.printf("blocking: stream loop %5.0f MB/s, mapped %5.0f MB/s | "
+                            + "event loop: FileChannel.read %5.0f MB/s, mapped %5.0f MB/s%n",
+                    measure(() -> streamLoop(file), megabytes, reads),
+                    measure(() -> mappedChunks(file), megabytes, reads),
+                    measure(() -> intoRecords(FileChannel.open(file.toPath())), megabytes, reads),
+                    measure(() -> intoRecords(new MappedFileChannel(file, 0, file.length())), megabytes, reads));
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    //returns the MB/s of the given reading of the whole file, after a few reads to warm it up
+    private static double measure(Reading reading, int megabytes, int reads) throws IOException {
+        for (int i = 0; i < WARMUP_READS; i++) {
+            reading.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            reading.run();
+        }
+        return (double) reads * megabytes / ((System.nanoTime() - start) / 1e9);
+    }
+
+    //reads the file the way downloads were sent before MappedFileChannel
+    private static void streamLoop(File file) throws IOException {
+        byte[] buffer = new byte[4096];
+        int n;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            while ((n = in.read(buffer)) > -1) {
+                sink += n;
+            }
+        }
+    }
+
+    //reads the file a heap chunk at a time, the way SocketConnection sends it
+    private static void mappedChunks(File file) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(65536);
+        try (MappedFileChannel channel = new MappedFileChannel(file, 0, file.length())) {
+            while (true) {
+                chunk.clear();
+                int amountRead = 0;
+                int read;
+                while (chunk.hasRemaining() && (read = channel.read(chunk)) > 0) {
+                    amountRead += read;
+                }
+                if (amountRead == 0) {
+                    return;
+                }
+                sink += amountRead;
+            }
+        }
+    }
+
+    //reads the channel a TLS record at a time into a direct buffer, the way NioConnection fills its output
+    private static void intoRecords(ReadableByteChannel channel) throws IOException {
+        try (ReadableByteChannel file = channel) {
+            int read;
+            do {
+                record.clear();
+                while (record.hasRemaining() && (read = file.read(record)) > 0) {
+                    sink += read;
+                }
+            } while (record.position() > 0);
+        }
+    }
+
+    /**
+     * A way of reading the whole file once.
+     */
+    private interface Reading {
+
+        void run() throws IOException;
+    }
+}
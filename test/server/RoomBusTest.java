@@ -0,0 +1,317 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a MultiChatBusServer in this process and checks that two nodes sharing two rooms over it, each a TcpRoomBus,
+ * see each other's lines as a RoomBus promises. Both nodes publish numbered lines to both rooms from several threads
+ * at once, and every node must be handed every line of the other node in the room it was published to, every thread's
+ * in the order they were published, and none of its own, while a line holding a line break is refused. A third node
+ * then publishes a line and disconnects, which both nodes must be handed before being told that it has left. Last, a
+ * node that never reads subscribes to a room ahead of the two, which one of them then floods until the bus server
+ * drops the slow node: the other must still be handed every line, and both must be told that the slow node has left.
+ *
+ * <p>Run as:
+ * <pre>
+ *     java -cp out:test-out server.RoomBusTest [bus port] [threads per node] [lines per thread and room]
+ * </pre>
+ *
+ * <p>It exits with status 1 when a check fails.
+ */
+public class RoomBusTest {
+
+    private static final String[] ROOMS = {"59090", "59091"};
+    private static final String SLOW_ROOM = "59092";
+    private static final long TIMEOUT_MILLIS = 30_000;
+    //the lines flooding the slow node, more than the bus server queues for a node before dropping it
+    private static final int FLOOD_LINES = 3200;
+    private static final String FLOOD_PADDING = "x".repeat(32 << 10);
+
+    /**
+     * Runs the test.
+     *
+     * @param args optionally the port of the bus server, the threads publishing of every node and the lines every
+     *             thread publishes to each room
+     * @throws Exception when the bus server cannot be started or connected to
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 52099;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int lines = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        MultiChatBusServer.main(new String[]{Integer.toString(port)});
+
+        Node[] nodes = {new Node("a", port), new Node("b", port)};
+        subscribe(nodes, ROOMS);
+        //a line break would let a line pass as several, such as one telling the other nodes that a user was kicked
+        for (String forged : new String[]{"CHAT a\nKICKED b", "CHAT a\rKICKED b"}) {
+            try {
+                nodes[0].bus.publish(ROOMS[0], forged);
+                fail("a line with a line break was published");
+            } catch (IllegalArgumentException iae) {
+                //refused as it should be
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Thread> publishers = new ArrayList<>();
+        for (Node node : nodes) {
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                Thread publisher = new Thread(() -> {
+                    for (int i = 0; i < lines; i++) {
+                        for (String room : ROOMS) {
+                            node.bus.publish(room, "CHAT " + node.name + " " + room + " " + thread + " " + i);
+                        }
+                    }
+                });
+                publishers.add(publisher);
+                publisher.start();
+            }
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+        long expected = (long) threads * lines * ROOMS.length;
+        for (Node node : nodes) {
+            node.awaitLines(expected);
+        }
+        System.out.printf("%d nodes, %d threads each, %d lines per thread and room: %.1f s%n", nodes.length,
+                threads, lines, (System.nanoTime() - start) / 1e9);
+
+        //a node that publishes and disconnects, written by hand as a TcpRoomBus never leaves before its process does
+        Socket leaving = new Socket("localhost", port);
+        String leavingNode = hello(leaving, nodes, 1, "");
+        leaving.close();
+        for (Node node : nodes) {
+            node.awaitLeft(leavingNode);
+        }
+        for (Node node : nodes) {
+            node.check(threads, lines);
+        }
+
+        //a node that never reads, subscribed to the flooded room before the others so it is the first passed a line
+        try (Socket slow = new Socket("localhost", port)) {
+            String slowNode = hello(slow, nodes, 2, "SUBSCRIBE " + SLOW_ROOM + "\n");
+            subscribe(nodes, new String[]{SLOW_ROOM});
+            start = System.nanoTime();
+            for (int i = 0; i < FLOOD_LINES; i++) {
+                nodes[0].bus.publish(SLOW_ROOM, "FLOOD " + i + " " + FLOOD_PADDING);
+            }
+            nodes[1].awaitFlood();
+            for (Node node : nodes) {
+                node.awaitLeft(slowNode);
+            }
+            System.out.printf("%d MB flooded past a node that never reads: %.1f s%n",
+                    (long) FLOOD_LINES * FLOOD_PADDING.length() >> 20, (System.nanoTime() - start) / 1e9);
+        }
+        for (Node node : nodes) {
+            node.check(threads, lines);
+        }
+        System.out.println("passed");
+        System.exit(0);
+    }
+
+    //subscribes every node to the rooms, returning once every node has been handed a line of the others in each
+    private static void subscribe(Node[] nodes, String[] rooms) throws IOException, InterruptedException {
+        for (Node node : nodes) {
+            for (String room : rooms) {
+                node.bus.subscribe(room, node.listener(room));
+            }
+        }
+        //a node is subscribed once the others receive its lines, so every node pings until all of them have
+        CountDownLatch subscribed = new CountDownLatch(nodes.length);
+        for (Node node : nodes) {
+            node.pingUntil(rooms, subscribed);
+        }
+        if (!subscribed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            fail("the nodes never received each other's lines");
+        }
+    }
+
+    /*
+    Sends the given lines from a node written by hand, followed by a HELLO to the first room, and returns the number
+    of the node once every node has been handed its given count of HELLO lines, which all the lines before it precede.
+     */
+    private static String hello(Socket socket, Node[] nodes, int count, String lines) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write((lines + "SUBSCRIBE " + ROOMS[0] + "\nPUBLISH " + ROOMS[0] + " HELLO\n")
+                .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String node = null;
+        for (Node each : nodes) {
+            node = each.awaitHello(count);
+        }
+        return node;
+    }
+
+    private static void fail(String failure) {
+        System.out.println("FAILED: " + failure);
+        System.exit(1);
+    }
+
+    /**
+     * A node connected to the bus server, recording the lines it is handed.
+     */
+    private static class Node {
+
+        private final String name;
+        private final TcpRoomBus bus;
+        //the next line expected of every thread of the other node, by room and thread
+        private final Map<String, Integer> nextLine = new HashMap<>();
+        private final List<String> failures = new ArrayList<>();
+        private long received = 0;
+        private int nextFlood = 0;
+        private final Set<String> pinged = new HashSet<>(); //the rooms another node's ping was handed in
+        private final List<String> hellos = new ArrayList<>(); //the nodes written by hand, in the order they said hello
+        private final Set<String> leftNodes = new HashSet<>();
+
+        private Node(String name, int port) throws IOException {
+            this.name = name;
+            this.bus = new TcpRoomBus("localhost", port);
+        }
+
+        //returns the listener of the node for the given room
+        private RoomBus.Listener listener(String room) {
+            return new RoomBus.Listener() {
+                @Override
+                public void received(String node, String line) {
+                    receive(room, node, line);
+                }
+
+                @Override
+                public void nodeLeft(String node) {
+                    synchronized (Node.this) {
+                        leftNodes.add(node);
+                        Node.this.notifyAll();
+                    }
+                }
+            };
+        }
+
+        private synchronized void receive(String room, String node, String line) {
+            String[] fields = line.split(" ");
+            if (fields[0].equals("PING")) {
+                if (fields[1].equals(name)) {
+                    failures.add("was handed its own ping");
+                }
+                pinged.add(room);
+            } else if (fields[0].equals("HELLO")) {
+                hellos.add(node);
+            } else if (fields[0].equals("FLOOD")) {
+                int number = Integer.parseInt(fields[1]);
+                if (number != nextFlood) {
+                    failures.add("was handed flood line " + number + " after line " + (nextFlood - 1));
+                }
+                nextFlood = number + 1;
+            } else if (fields[1].equals(name)) {
+                failures.add("was handed its own line " + line);
+            } else if (!fields[2].equals(room)) {
+                failures.add("was handed " + line + " in room " + room);
+            } else {
+                String key = room + " " + fields[3];
+                int number = Integer.parseInt(fields[4]);
+                int next = nextLine.getOrDefault(key, 0);
+                if (number != next) {
+                    failures.add("was handed line " + number + " of thread " + key + " after line " + (next - 1));
+                }
+                nextLine.put(key, number + 1);
+                received++;
+            }
+            notifyAll();
+        }
+
+        //pings the rooms until every node has been handed a ping in each, counting this node down once it has
+        private void pingUntil(String[] rooms, CountDownLatch subscribed) {
+            Thread pinger = new Thread(() -> {
+                boolean counted = false;
+                try {
+                    while (subscribed.getCount() > 0) {
+                        for (String room : rooms) {
+                            bus.publish(room, "PING " + name);
+                        }
+                        synchronized (this) {
+                            if (pinged.containsAll(List.of(rooms)) && !counted) {
+                                counted = true;
+                                subscribed.countDown();
+                            }
+                        }
+                        Thread.sleep(20);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            pinger.setDaemon(true);
+            pinger.start();
+        }
+
+        private synchronized void awaitLines(long expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (received < expected && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            if (received != expected) {
+                failures.add("was handed " + received + " of " + expected + " lines");
+            }
+        }
+
+        private synchronized void awaitFlood() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (nextFlood < FLOOD_LINES && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            if (nextFlood != FLOOD_LINES) {
+                failures.add("was handed " + nextFlood + " of " + FLOOD_LINES + " flood lines");
+            }
+        }
+
+        //returns the node of the given count of HELLO lines, failing the test when it is never handed
+        private synchronized String awaitHello(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (hellos.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            if (hellos.size() < count) {
+                fail("node " + name + " was never handed the line of a node written by hand");
+            }
+            return hellos.get(count - 1);
+        }
+
+        private synchronized void awaitLeft(String node) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!leftNodes.contains(node) && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            if (!leftNodes.contains(node)) {
+                failures.add("was never told that node " + node + " left");
+            }
+        }
+
+        //fails the test when the node was handed a line it should not have been, or missed one
+        private synchronized void check(int threads, int lines) {
+            for (String room : ROOMS) {
+                for (int thread = 0; thread < threads; thread++) {
+                    int handed = nextLine.getOrDefault(room + " " + thread, 0);
+                    if (handed != lines) {
+                        failures.add("was handed " + handed + " of " + lines + " lines of thread " + thread
+                                + " in room " + room);
+                    }
+                }
+            }
+            if (!failures.isEmpty()) {
+                fail("node " + name + " " + String.join(", ", failures));
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package server;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers a RoomRegistry and its PresenceAggregator from many threads at once and checks that nothing was lost. Every
+ * thread's clients race a client of another thread for each of their names, the winners join the room, and then every
+ * thread broadcasts numbered messages while clients of their own join and leave the room over and over, until half of
+ * the winners leave again. The test fails when a name was reserved twice or not at all, when a member present for the
+ * whole broadcast missed a message or received a thread's messages out of order, or when the room's names, its
+ * recipients, the deltas of its users and its last full list of users disagree about who is left.
+ *
+ * <p>Run it with the default presence window and without one, such as:
+ * <pre>
+ *     java -cp out:test-out server.RoomRegistryStressTest 8 50 500
+ *     java -Dmultichat.presence.windowMillis=0 -cp out:test-out server.RoomRegistryStressTest 8 50 500
+ * </pre>
+ *
+ * <p>It exits with status 1 when a check fails.
+ */
+public class RoomRegistryStressTest {
+
+    private static final long WINDOW_MILLIS = Long.getLong("multichat.presence.windowMillis", 100);
+
+    private final RoomRegistry<RecordingConnection> room = new RoomRegistry<>(1);
+    private final PresenceAggregator presence = new PresenceAggregator(room);
+    //receive the room's changes of users from the start, as deltas and as full lists
+    private final RecordingConnection deltaObserver = new RecordingConnection(true);
+    private final RecordingConnection listObserver = new RecordingConnection(false);
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Runs the test.
+     *
+     * @param args optionally the amount of threads, the clients of every thread and the messages every thread
+     *             broadcasts
+     * @throws InterruptedException when interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        RoomRegistryStressTest test = new RoomRegistryStressTest();
+        long start = System.nanoTime();
+        test.run(threads, clients, messages);
+        System.out.printf("%d threads, %d clients each, %d messages each, presence window %d ms: %.1f s%n",
+                threads, clients, messages, WINDOW_MILLIS, (System.nanoTime() - start) / 1e9);
+        if (!test.failures.isEmpty()) {
+            test.failures.forEach(failure -> System.out.println("FAILED: " + failure));
+            System.exit(1);
+        }
+        System.out.println("passed");
+    }
+
+    private void run(int threads, int clients, int messages) throws InterruptedException {
+        room.addRecipient(deltaObserver);
+        room.addRecipient(listObserver);
+
+        //every name is raced for by a client of two threads, exactly one of which must win it
+        Map<String, RecordingConnection> winners = new ConcurrentHashMap<>();
+        AtomicInteger wins = new AtomicInteger();
+        inParallel(threads, thread -> {
+            for (int i = 0; i < clients; i++) {
+                String name = "user" + (thread / 2) + "-" + i;
+                RecordingConnection client = new RecordingConnection(i % 2 == 0);
+                if (room.reserve(name, client)) {
+                    wins.incrementAndGet();
+                    winners.put(name, client);
+                    room.update(() -> {
+                        room.addRecipient(client);
+                        presence.joined(name);
+                    });
+                } else if (room.release(name, client)) {
+                    failures.add("a client released the name " + name + " it lost");
+                }
+            }
+        });
+        int names = (threads + 1) / 2 * clients;
+        check(wins.get() == names, names + " names reserved " + wins.get() + " times");
+        check(room.size() == names, "the room holds " + room.size() + " of " + names + " names");
+
+        //every thread broadcasts while joining and leaving with clients of its own
+        inParallel(threads, thread -> {
+            for (int i = 0; i < messages; i++) {
+                room.broadcast(Frame.droppable("MESSAGE " + thread + " " + i));
+                if (i % 10 == 0) {
+                    String name = "churn" + thread + "-" + i;
+                    RecordingConnection client = new RecordingConnection(i % 20 == 0);
+                    if (!room.reserve(name, client)) {
+                        failures.add("the free name " + name + " could not be reserved");
+                        continue;
+                    }
+                    room.update(() -> {
+                        room.addRecipient(client);
+                        presence.joined(name);
+                    });
+                    room.update(() -> {
+                        room.removeRecipient(client);
+                        room.release(name, client);
+                        presence.left(name, true);
+                    });
+                }
+            }
+        });
+        for (Map.Entry<String, RecordingConnection> winner : winners.entrySet()) {
+            winner.getValue().checkMessages(winner.getKey(), threads, messages);
+        }
+
+        //half of the winners leave at once
+        List<String> leaving = new ArrayList<>(winners.keySet());
+        Collections.shuffle(leaving);
+        List<String> left = leaving.subList(0, leaving.size() / 2);
+        inParallel(threads, thread -> {
+            for (int i = thread; i < left.size(); i += threads) {
+                String name = left.get(i);
+                RecordingConnection client = winners.get(name);
+                room.update(() -> {
+                    room.removeRecipient(client);
+                    room.release(name, client);
+                    presence.left(name, true);
+                });
+            }
+        });
+        Set<String> remaining = new HashSet<>(winners.keySet());
+        left.forEach(remaining::remove);
+
+        //waits for the last window, and for any announcement it started, to end
+        Thread.sleep(3 * WINDOW_MILLIS + 200);
+        room.update(() -> {
+        });
+        check(new HashSet<>(room.names()).equals(remaining),
+                "the room names " + room.names().size() + " users instead of " + remaining.size());
+        check(room.recipients().size() == remaining.size() + 2,
+                "the room has " + room.recipients().size() + " recipients instead of " + (remaining.size() + 2));
+        deltaObserver.checkDeltas(remaining);
+        listObserver.checkLastList(remaining);
+    }
+
+    //runs the given task on the given amount of threads at once and waits for all of them to finish
+    private void inParallel(int threads, ThreadTask task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread runner = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run(thread);
+                } catch (InterruptedException | RuntimeException e) {
+                    failures.add("thread " + thread + " failed: " + e);
+                }
+            });
+            running.add(runner);
+            runner.start();
+        }
+        start.countDown();
+        for (Thread runner : running) {
+            runner.join();
+        }
+    }
+
+    private void check(boolean passed, String failure) {
+        if (!passed) {
+            failures.add(failure);
+        }
+    }
+
+    /**
+     * The work of one of the threads of a phase of the test.
+     */
+    private interface ThreadTask {
+
+        void run(int thread);
+    }
+
+    /**
+     * A client connection that records the lines it is sent instead of writing them anywhere. Chat messages are only
+     * counted and checked for their order, everything else is kept.
+     */
+    private class RecordingConnection implements ClientConnection {
+
+        private final boolean upgraded;
+        private final Map<Integer, Integer> nextMessage = new HashMap<>(); //by the thread that sent it
+        private final List<String> lines = new ArrayList<>();
+        private int messages = 0;
+        private boolean ordered = true;
+
+        RecordingConnection(boolean upgraded) {
+            this.upgraded = upgraded;
+        }
+
+        @Override
+        public synchronized void send(Frame frame) {
+            String line = StandardCharsets.UTF_8.decode(frame.buffer(false)).toString().trim();
+            if (line.startsWith("MESSAGE ")) {
+                String[] message = line.split(" ");
+                int thread = Integer.parseInt(message[1]);
+                int number = Integer.parseInt(message[2]);
+                if (nextMessage.getOrDefault(thread, 0) > number) {
+                    ordered = false;
+                }
+                nextMessage.put(thread, number + 1);
+                messages++;
+            } else {
+                lines.add(line);
+            }
+        }
+
+        //checks that every message of every thread was received, each thread's in the order it was sent
+        synchronized void checkMessages(String name, int threads, int sent) {
+            check(messages == threads * sent, name + " received " + messages + " of " + threads * sent + " messages");
+            check(ordered, name + " received messages out of order");
+        }
+
+        //checks that the deltas received are numbered without gaps and bring the users up to the given ones
+        synchronized void checkDeltas(Set<String> remaining) {
+            Set<String> users = new HashSet<>();
+            long version = 0;
+            for (String line : lines) {
+                String[] delta = line.split(" ");
+                if (!delta[0].equals("USERJOINED") && !delta[0].equals("USERLEFT")) {
+                    continue;
+                }
+                long number = Long.parseLong(delta[1]);
+                check(number == version + 1, "delta " + number + " followed delta " + version);
+                version = number;
+                for (String name : delta[2].split(",")) {
+                    if (delta[0].equals("USERJOINED")) {
+                        users.add(name);
+                    } else {
+                        users.remove(name);
+                    }
+                }
+            }
+            long[] announced = new long[1];
+            room.update(() -> announced[0] = room.presenceVersion());
+            check(version == announced[0], "received deltas up to " + version + " of " + announced[0]);
+            check(users.equals(remaining), "the deltas name " + users.size() + " users instead of "
+                    + remaining.size());
+        }
+
+        //checks that the last full list of users received names exactly the given ones
+        synchronized void checkLastList(Set<String> remaining) {
+            String last = null;
+            for (String line : lines) {
+                if (line.startsWith("ACTIVEUSERLIST ")) {
+                    last = line.substring("ACTIVEUSERLIST ".length());
+                }
+            }
+            Set<String> users = new HashSet<>();
+            if (last != null) {
+                for (String name : last.split(",")) {
+                    if (!name.isEmpty()) {
+                        users.add(name);
+                    }
+                }
+            }
+            check(users.equals(remaining), "the last list of users names " + users.size() + " users instead of "
+                    + remaining.size());
+        }
+
+        @Override
+        public void receiveRaw(long size, RawReceiver receiver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendFile(String header, File file, long offset, long length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendRelayed(FileRelay.Chunk chunk) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void suspendInput() {
+        }
+
+        @Override
+        public void resumeInput() {
+        }
+
+        @Override
+        public void compressOutput() {
+        }
+
+        @Override
+        public boolean isUpgraded() {
+            return upgraded;
+        }
+
+        @Override
+        public int queuedOutput() {
+            return 0;
+        }
+
+        @Override
+        public long droppedFrames() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}